@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.internal.index;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Annotation processor that generates an index of the types and methods carrying the annotations that the framework
+ * looks up at runtime. The index is written to {@link #INDEX_FILE} and is read by
+ * <code>rogue.app.framework.internal.util.ClassUtils</code>, which then no longer needs to scan the classes of the
+ * module at startup.
+ * <p/>
+ * Each line of the index has one of the following formats:
+ * <pre>
+ * T &lt;annotation class&gt; &lt;type&gt;
+ * M &lt;annotation class&gt; &lt;declaring type&gt; &lt;method name&gt; &lt;comma separated parameter types&gt;
+ * S &lt;type&gt; &lt;direct super class or interface&gt;
+ * </pre>
+ * The super types are recorded so that the subtypes of annotated types can be looked up as well, like a class path
+ * scan does. When only some of the classes of the module are compiled, e.g., by an incremental build, the entries of
+ * the existing index for the classes that were not compiled, and that still exist, are carried over.
+ */
+@SupportedAnnotationTypes("*")
+public class AnnotationIndexProcessor extends AbstractProcessor
+{
+    /**
+     * Location of the generated index, relative to the root of the class path entry.
+     */
+    public static final String INDEX_FILE = "META-INF/rogue/annotation.index";
+
+    /**
+     * Annotations that are indexed when found on types.
+     */
+    private static final Set<String> TYPE_ANNOTATIONS = new HashSet<>(Arrays.asList(
+            "javax.persistence.Entity",
+            "rogue.app.framework.persistence.EntityImplementationFor",
+            "rogue.app.framework.search.SearchIndex",
+            "rogue.app.framework.annotations.ControllerFor"));
+
+    /**
+     * Annotations that are indexed when found on methods.
+     */
+    private static final Set<String> METHOD_ANNOTATIONS = new HashSet<>(Arrays.asList(
+            "rogue.app.framework.event.ChangeListenerFor"));
+
+    private final Set<String> entries = new TreeSet<>();
+    private final Set<String> processedTypes = new HashSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        if (roundEnv.processingOver())
+        {
+            writeIndex();
+        }
+        else
+        {
+            for (Element element : roundEnv.getRootElements())
+            {
+                if (element instanceof TypeElement)
+                {
+                    processType((TypeElement) element);
+                }
+            }
+        }
+
+        // Never claim the annotations, other processors may be interested in them as well.
+        return false;
+    }
+
+    private void processType(TypeElement type)
+    {
+        String typeName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        processedTypes.add(typeName);
+
+        List<TypeMirror> superTypes = new ArrayList<>(type.getInterfaces());
+        superTypes.add(type.getSuperclass());
+        for (TypeMirror superType : superTypes)
+        {
+            if (superType.getKind() == TypeKind.DECLARED)
+            {
+                String superTypeName = processingEnv.getElementUtils().getBinaryName(
+                        (TypeElement) ((DeclaredType) superType).asElement()).toString();
+                if (!"java.lang.Object".equals(superTypeName))
+                {
+                    entries.add("S " + typeName + " " + superTypeName);
+                }
+            }
+        }
+
+        for (AnnotationMirror mirror : type.getAnnotationMirrors())
+        {
+            String annotation = getName(mirror.getAnnotationType());
+            if (TYPE_ANNOTATIONS.contains(annotation))
+            {
+                entries.add("T " + annotation + " " + typeName);
+            }
+        }
+
+        for (Element enclosed : type.getEnclosedElements())
+        {
+            if (enclosed.getKind() == ElementKind.METHOD)
+            {
+                for (AnnotationMirror mirror : enclosed.getAnnotationMirrors())
+                {
+                    String annotation = getName(mirror.getAnnotationType());
+                    if (METHOD_ANNOTATIONS.contains(annotation))
+                    {
+                        entries.add("M " + annotation + " " + typeName + " " + getMethodSignature(
+                                (ExecutableElement) enclosed));
+                    }
+                }
+            }
+            else if (enclosed instanceof TypeElement)
+            {
+                processType((TypeElement) enclosed);
+            }
+        }
+    }
+
+    private String getMethodSignature(ExecutableElement method)
+    {
+        StringBuilder builder = new StringBuilder(method.getSimpleName());
+        builder.append(' ');
+        List<? extends VariableElement> params = method.getParameters();
+        for (int i = 0; i < params.size(); i++)
+        {
+            if (i > 0)
+            {
+                builder.append(',');
+            }
+            builder.append(processingEnv.getTypeUtils().erasure(params.get(i).asType()));
+        }
+        return builder.toString();
+    }
+
+    private static String getName(DeclaredType type)
+    {
+        return ((TypeElement) type.asElement()).getQualifiedName().toString();
+    }
+
+    /**
+     * The index is written even when empty, so that the class path entry is known to have been indexed and does not
+     * need to be scanned at runtime.
+     */
+    private void writeIndex()
+    {
+        mergeExistingIndex();
+        try
+        {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_FILE);
+            try (Writer writer = file.openWriter())
+            {
+                for (String entry : entries)
+                {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                                                     "Unable to write the annotation index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Carry over the entries of the existing index, if any, that belong to types which were not compiled in this run
+     * and still exist.
+     */
+    private void mergeExistingIndex()
+    {
+        FileObject file;
+        try
+        {
+            file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_FILE);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            // No existing index.
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(file.openReader(true)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] tokens = line.trim().split(" ");
+                if (tokens.length < 3)
+                {
+                    continue;
+                }
+
+                String typeName = "S".equals(tokens[0]) ? tokens[1] : tokens[2];
+                if (!processedTypes.contains(typeName) &&
+                        processingEnv.getElementUtils().getTypeElement(typeName.replace('$', '.')) != null)
+                {
+                    entries.add(line.trim());
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // The file does not exist, e.g., on a clean build.
+        }
+    }
+}
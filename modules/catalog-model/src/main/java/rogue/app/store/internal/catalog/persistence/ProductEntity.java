@@ -19,6 +19,7 @@ package rogue.app.store.internal.catalog.persistence;
 import com.google.appengine.api.datastore.Key;
 import org.apache.commons.lang.StringUtils;
 import rogue.app.framework.persistence.*;
+import rogue.app.framework.persistence.annotations.ListingField;
 import rogue.app.store.catalog.model.Brand;
 import rogue.app.store.catalog.model.Product;
 import rogue.app.store.catalog.model.ProductCategory;
@@ -72,12 +73,15 @@ public class ProductEntity extends PersistentEntity<Product> implements Product
     private Key brandKey;
     @Column(nullable = false)
     private String name;
+    @ListingField(value = "name", filter = ListingField.Filter.PREFIX, lowerCase = true)
     private String lowerCaseName;
     private String description;
+    @ListingField(filter = ListingField.Filter.EQUALS)
     private Boolean enabled;
     private Key productCategoryKey;
     private List<String> tags;
 
+    @ListingField
     private float price;
     private int minimumQuantity;
     private int leadTime;
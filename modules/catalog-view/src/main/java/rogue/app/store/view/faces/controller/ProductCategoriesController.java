@@ -20,6 +20,7 @@ import org.apache.commons.lang.StringUtils;
 import rogue.app.framework.annotations.ControllerFor;
 import rogue.app.framework.model.PersistentObject;
 import rogue.app.framework.persistence.JpaQuery;
+import rogue.app.framework.persistence.NestedResourceTree;
 import rogue.app.framework.view.ActionType;
 import rogue.app.framework.view.PageMetadata;
 import rogue.app.framework.view.PageType;
@@ -112,17 +113,14 @@ public class ProductCategoriesController extends EntityFacesController<ProductCa
                     return;
                 }
 
-                String parentName = parent.getName();
-                while (parent != null)
+                NestedResourceTree<ProductCategory> tree = NestedResourceTree.getTree(ProductCategory.class);
+                if (parent.getId().equals(selectedCategory.getId())
+                        || tree.isDescendant(parent.getId(), selectedCategory.getId()))
                 {
-                    if (parent.getId().equals(selectedCategory.getId()))
-                    {
-                        String message = parentName + " cannot be set as the parent of " + selectedCategory
-                                .getName() + " . This will cause a cyclic dependency.";
-                        throw new ValidatorException(
-                                new FacesMessage(FacesMessage.SEVERITY_ERROR, message, message));
-                    }
-                    parent = parent.getParent();
+                    String message = parent.getName() + " cannot be set as the parent of " + selectedCategory
+                            .getName() + " . This will cause a cyclic dependency.";
+                    throw new ValidatorException(
+                            new FacesMessage(FacesMessage.SEVERITY_ERROR, message, message));
                 }
             }
         }
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.internal.persistence;
+
+import com.google.appengine.api.datastore.*;
+import com.google.common.io.BaseEncoding;
+import rogue.app.framework.AppRuntimeException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the content of binary resources as an ordered sequence of chunk entities, of kind {@link #CHUNK_KIND}, so that
+ * the size of the content is not bound by the maximum size of an entity, and the content is never loaded along with the
+ * metadata of the resource.
+ * <p/>
+ * Every piece of content is identified by a random content id, and is immutable. Replacing the content of a resource
+ * writes a new sequence of chunks; the old one is deleted once the resource has been saved.
+ */
+final class BinaryContentStore
+{
+    private static final String CLASS_NAME = BinaryContentStore.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    static final String CHUNK_KIND = "_BinaryResourceChunk";
+
+    /**
+     * Size of every chunk, except possibly the last one. Well below the maximum size of an entity.
+     */
+    static final int CHUNK_SIZE = 512 * 1024;
+
+    /**
+     * Number of chunks written per datastore call.
+     */
+    static final int WRITE_BATCH_SIZE = 4;
+
+    private static final String PROP_DATA = "data";
+
+    /**
+     * Algorithm used to compute the digest of the content.
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Private constructor.
+     */
+    private BinaryContentStore()
+    {
+    }
+
+    /**
+     * Write the given content into a new sequence of chunks, computing its digest along the way. The chunks are written
+     * {@link #WRITE_BATCH_SIZE} at a time, which bounds the amount of content held in memory.
+     *
+     * @param in the content to write. The stream is not closed.
+     * @return the description of the written content.
+     * @throws IOException if the content cannot be read.
+     */
+    static Content write(InputStream in) throws IOException
+    {
+        String contentId = UUID.randomUUID().toString();
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        MessageDigest digest = newDigest();
+
+        long length = 0;
+        int chunkCount = 0;
+        List<Entity> batch = new ArrayList<>(WRITE_BATCH_SIZE);
+        while (true)
+        {
+            // Every chunk is read into its own buffer, which is handed over to the entity as is.
+            byte[] data = new byte[CHUNK_SIZE];
+            int filled = 0;
+            int read;
+            while (filled < CHUNK_SIZE && (read = in.read(data, filled, CHUNK_SIZE - filled)) != -1)
+            {
+                filled += read;
+            }
+
+            if (filled == 0)
+            {
+                break;
+            }
+
+            if (filled < CHUNK_SIZE)
+            {
+                data = Arrays.copyOf(data, filled);
+            }
+            digest.update(data);
+            Entity chunk = new Entity(getChunkKey(contentId, chunkCount));
+            chunk.setUnindexedProperty(PROP_DATA, new Blob(data));
+            batch.add(chunk);
+
+            length += filled;
+            chunkCount++;
+
+            if (batch.size() == WRITE_BATCH_SIZE)
+            {
+                ds.put(batch);
+                batch.clear();
+            }
+
+            if (filled < CHUNK_SIZE)
+            {
+                break;
+            }
+        }
+
+        if (!batch.isEmpty())
+        {
+            ds.put(batch);
+        }
+
+        return new Content(contentId, length, chunkCount, BaseEncoding.base16().lowerCase().encode(digest.digest()));
+    }
+
+    /**
+     * Compute the digest of content that is held in memory.
+     *
+     * @param data the content.
+     * @return the hex encoded digest.
+     */
+    static String digest(byte[] data)
+    {
+        return BaseEncoding.base16().lowerCase().encode(newDigest().digest(data));
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every JVM is required to support SHA-256.
+            throw new AppRuntimeException(e);
+        }
+    }
+
+    /**
+     * Open a stream on the given content. Chunks are fetched lazily, as the stream is read, and the following chunk is
+     * prefetched in the background.
+     *
+     * @param contentId  the content id.
+     * @param length     the length of the content.
+     * @param chunkCount the number of chunks.
+     * @return the stream.
+     */
+    static InputStream open(String contentId, long length, int chunkCount)
+    {
+        return new ChunkInputStream(contentId, length, chunkCount);
+    }
+
+    /**
+     * Delete the chunks of the given content.
+     *
+     * @param contentId  the content id.
+     * @param chunkCount the number of chunks.
+     */
+    static void delete(String contentId, int chunkCount)
+    {
+        final String METHOD_NAME = "delete";
+
+        List<Key> keys = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++)
+        {
+            keys.add(getChunkKey(contentId, i));
+        }
+
+        try
+        {
+            DatastoreServiceFactory.getDatastoreService().delete(keys);
+        }
+        catch (DatastoreFailureException e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to delete the chunks of content " + contentId,
+                        e);
+        }
+    }
+
+    private static Key getChunkKey(String contentId, int index)
+    {
+        return KeyFactory.createKey(CHUNK_KIND, contentId + "/" + index);
+    }
+
+    /**
+     * Description of a sequence of chunks.
+     */
+    static final class Content
+    {
+        private final String contentId;
+        private final long length;
+        private final int chunkCount;
+        private final String digest;
+
+        Content(String contentId, long length, int chunkCount, String digest)
+        {
+            this.contentId = contentId;
+            this.length = length;
+            this.chunkCount = chunkCount;
+            this.digest = digest;
+        }
+
+        String getContentId()
+        {
+            return contentId;
+        }
+
+        long getLength()
+        {
+            return length;
+        }
+
+        int getChunkCount()
+        {
+            return chunkCount;
+        }
+
+        String getDigest()
+        {
+            return digest;
+        }
+    }
+
+    /**
+     * Stream that fetches chunks on demand.
+     */
+    private static final class ChunkInputStream extends InputStream
+    {
+        private final String contentId;
+        private final long length;
+        private final int chunkCount;
+        private final AsyncDatastoreService ds = DatastoreServiceFactory.getAsyncDatastoreService();
+
+        private byte[] chunk;
+        private int chunkPos;
+        // Index of the next chunk to be read.
+        private int nextChunk;
+        private Future<Entity> prefetched;
+        private long position;
+
+        private ChunkInputStream(String contentId, long length, int chunkCount)
+        {
+            this.contentId = contentId;
+            this.length = length;
+            this.chunkCount = chunkCount;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (!ensureChunk())
+            {
+                return -1;
+            }
+            position++;
+            return chunk[chunkPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!ensureChunk())
+            {
+                return -1;
+            }
+
+            int count = Math.min(len, chunk.length - chunkPos);
+            System.arraycopy(chunk, chunkPos, b, off, count);
+            chunkPos += count;
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            if (n <= 0)
+            {
+                return 0;
+            }
+
+            long target = Math.min(length, position + n);
+            long skipped = target - position;
+            int targetChunk = (int) (target / CHUNK_SIZE);
+            if (chunk != null && targetChunk == nextChunk - 1)
+            {
+                chunkPos = (int) (target % CHUNK_SIZE);
+            }
+            else if (chunk != null && targetChunk == nextChunk && target % CHUNK_SIZE == 0)
+            {
+                // The end of the current chunk, the next one is being prefetched already.
+                chunkPos = chunk.length;
+            }
+            else if (target >= length)
+            {
+                // The end of the content, there is nothing left to read.
+                cancelPrefetch();
+                chunk = null;
+                nextChunk = chunkCount;
+            }
+            else
+            {
+                // Jump straight to the target chunk, without fetching the ones in between.
+                cancelPrefetch();
+                chunk = null;
+                nextChunk = targetChunk;
+                ensureChunk();
+                chunkPos = (int) (target % CHUNK_SIZE);
+            }
+            position = target;
+            return skipped;
+        }
+
+        @Override
+        public int available()
+        {
+            return chunk != null ? chunk.length - chunkPos : 0;
+        }
+
+        @Override
+        public void close()
+        {
+            cancelPrefetch();
+            chunk = null;
+            nextChunk = chunkCount;
+        }
+
+        /**
+         * Make sure that there is data left to read in the current chunk, fetching the next one if required.
+         *
+         * @return false if the end of the content has been reached.
+         */
+        private boolean ensureChunk() throws IOException
+        {
+            while (chunk == null || chunkPos >= chunk.length)
+            {
+                if (nextChunk >= chunkCount)
+                {
+                    return false;
+                }
+
+                Entity entity;
+                try
+                {
+                    entity = prefetched != null ? prefetched.get() :
+                             ds.get(getChunkKey(contentId, nextChunk)).get();
+                }
+                catch (InterruptedException | ExecutionException e)
+                {
+                    throw new IOException("Unable to fetch chunk " + nextChunk + " of content " + contentId, e);
+                }
+                prefetched = null;
+
+                Blob data = (Blob) entity.getProperty(PROP_DATA);
+                chunk = data != null ? data.getBytes() : new byte[0];
+                chunkPos = 0;
+                nextChunk++;
+
+                if (nextChunk < chunkCount)
+                {
+                    prefetched = ds.get(getChunkKey(contentId, nextChunk));
+                }
+            }
+            return true;
+        }
+
+        private void cancelPrefetch()
+        {
+            if (prefetched != null)
+            {
+                prefetched.cancel(false);
+                prefetched = null;
+            }
+        }
+    }
+}
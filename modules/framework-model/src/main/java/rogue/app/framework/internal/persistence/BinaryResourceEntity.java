@@ -19,6 +19,7 @@ package rogue.app.framework.internal.persistence;
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Key;
 import org.apache.commons.lang.StringUtils;
+import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.model.BinaryResource;
 import rogue.app.framework.model.PersistentObject;
 import rogue.app.framework.persistence.*;
@@ -28,12 +29,16 @@ import javax.persistence.Entity;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Transient;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
 
 /**
- * Entity implementation of <code>BinaryResource</code>.
+ * Entity implementation of <code>BinaryResource</code>. The content is stored separately from the metadata, as a
+ * sequence of chunks managed by the {@link BinaryContentStore}. Resources created before the content was chunked keep
+ * their content inline, in the blob, until it is replaced.
  */
 @Entity
 @NamedQueries({
@@ -78,7 +83,12 @@ public class BinaryResourceEntity extends PersistentEntity<BinaryResource> imple
     }
 
 
+    // Inline content of resources created before the content was chunked.
     private Blob blob;
+    private String contentId;
+    private long contentLength;
+    private int chunkCount;
+    private String contentDigest;
     private String name;
     private String description;
     private String nameSpace;
@@ -95,6 +105,9 @@ public class BinaryResourceEntity extends PersistentEntity<BinaryResource> imple
     private String fileExtension;
     @Transient
     private String mimeType;
+    // Content that has been replaced, and should be deleted once this instance is saved.
+    @Transient
+    private transient List<BinaryContentStore.Content> replacedContent;
 
     public BinaryResourceEntity()
     {
@@ -156,21 +169,105 @@ public class BinaryResourceEntity extends PersistentEntity<BinaryResource> imple
     }
 
     @Override
+    @Deprecated
     public Blob getBlob()
     {
-        return blob;
+        if (contentId == null)
+        {
+            return blob;
+        }
+
+        try (InputStream in = getContentStream())
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) contentLength);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+            }
+            return new Blob(out.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new AppRuntimeException("Unable to read the content of " + name, e);
+        }
     }
 
     @Override
+    @Deprecated
     public void setBlob(Blob blob)
     {
         if (isMutable())
         {
-            this.blob = blob;
+            try
+            {
+                setContent(blob != null ? new ByteArrayInputStream(blob.getBytes()) : null);
+            }
+            catch (IOException e)
+            {
+                // Not thrown by in-memory streams.
+                throw new AppRuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public InputStream getContentStream()
+    {
+        if (contentId != null)
+        {
+            return BinaryContentStore.open(contentId, contentLength, chunkCount);
+        }
+        return blob != null ? new ByteArrayInputStream(blob.getBytes()) : null;
+    }
+
+    @Override
+    public void setContent(InputStream content) throws IOException
+    {
+        if (isMutable())
+        {
+            BinaryContentStore.Content written = content != null ? BinaryContentStore.write(content) : null;
+            if (contentId != null)
+            {
+                if (replacedContent == null)
+                {
+                    replacedContent = new ArrayList<>(1);
+                }
+                replacedContent.add(new BinaryContentStore.Content(contentId, contentLength, chunkCount,
+                                                                   contentDigest));
+            }
+
+            this.blob = null;
+            this.contentId = written != null ? written.getContentId() : null;
+            this.contentLength = written != null ? written.getLength() : 0;
+            this.chunkCount = written != null ? written.getChunkCount() : 0;
+            this.contentDigest = written != null ? written.getDigest() : null;
             markDirty();
         }
     }
 
+    @Override
+    public String getContentDigest()
+    {
+        if (contentId == null && blob != null && contentDigest == null)
+        {
+            // Inline content is already in memory.
+            contentDigest = BinaryContentStore.digest(blob.getBytes());
+        }
+        return contentDigest;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        if (contentId == null && blob != null)
+        {
+            return blob.getBytes().length;
+        }
+        return contentLength;
+    }
+
     public String getResourceType()
     {
         return resourceType;
@@ -220,6 +317,26 @@ public class BinaryResourceEntity extends PersistentEntity<BinaryResource> imple
         super.prePersist();
     }
 
+    @Override
+    protected void executeAfterPersist(boolean entityDeleted)
+    {
+        super.executeAfterPersist(entityDeleted);
+
+        if (replacedContent != null)
+        {
+            for (BinaryContentStore.Content content : replacedContent)
+            {
+                BinaryContentStore.delete(content.getContentId(), content.getChunkCount());
+            }
+            replacedContent = null;
+        }
+
+        if (entityDeleted && contentId != null)
+        {
+            BinaryContentStore.delete(contentId, chunkCount);
+        }
+    }
+
     ///
     /// Non-entity methods
     ///
@@ -306,6 +423,10 @@ public class BinaryResourceEntity extends PersistentEntity<BinaryResource> imple
         {
             return false;
         }
+        if (contentId != null ? !contentId.equals(that.contentId) : that.contentId != null)
+        {
+            return false;
+        }
         if (description != null ? !description.equals(that.description) : that.description != null)
         {
             return false;
@@ -331,6 +452,7 @@ public class BinaryResourceEntity extends PersistentEntity<BinaryResource> imple
     {
         int result = super.hashCode();
         result = 31 * result + (blob != null ? blob.hashCode() : 0);
+        result = 31 * result + (contentId != null ? contentId.hashCode() : 0);
         result = 31 * result + (name != null ? name.hashCode() : 0);
         result = 31 * result + (description != null ? description.hashCode() : 0);
         result = 31 * result + (nameSpace != null ? nameSpace.hashCode() : 0);
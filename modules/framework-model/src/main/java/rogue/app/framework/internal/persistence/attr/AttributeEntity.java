@@ -208,6 +208,19 @@ public class AttributeEntity extends PersistentEntity<Attribute> implements Attr
         this.lowerCaseName = StringUtils.lowerCase(getName());
     }
 
+    /**
+     * Invalidate the cached attributes of the owning object, and nothing else, whenever this attribute is written or
+     * deleted.
+     */
+    @PostExecute
+    protected void incrementOwnerRevision(boolean entityDeleted)
+    {
+        if (appObjRefKey != null)
+        {
+            AttributesManager.incrementRevision(appObjRefKey);
+        }
+    }
+
     @Override
     public PersistentObject<?> getAppObject()
     {
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.internal.persistence.attr;
+
+import com.google.appengine.api.datastore.Key;
+import rogue.app.framework.model.attr.Attribute;
+import rogue.app.framework.persistence.PersistenceUtils;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of all the attributes of an application object, across all the customization layers. The snapshot
+ * is tagged with the owner's key and the revision of the owner's attributes at the time it was loaded, so that it can
+ * be discarded as soon as any of them changes.
+ */
+final class AttributeSnapshot
+{
+    static final AttributeSnapshot EMPTY = new AttributeSnapshot(null, -1, Collections.<Attribute>emptyList());
+
+    private final Key owner;
+    private final int revision;
+    private final Map<String, Map<Key, Attribute>> attributes;
+    private final List<String> baseNames;
+
+    /**
+     * Construct a new snapshot.
+     *
+     * @param owner      the key of the application object that owns the attributes.
+     * @param revision   the revision of the owner's attributes at the time they were loaded.
+     * @param attributes all the attributes of the owner, ordered by name.
+     */
+    AttributeSnapshot(Key owner, int revision, List<Attribute> attributes)
+    {
+        this.owner = owner;
+        this.revision = revision;
+
+        Map<String, Map<Key, Attribute>> attributeMap = new HashMap<>(attributes.size());
+        List<String> names = new ArrayList<>(attributes.size());
+        for (Attribute attr : attributes)
+        {
+            if (attr == null || attr.getName() == null)
+            {
+                continue;
+            }
+
+            String lowerCaseName = attr.getName().toLowerCase();
+            Map<Key, Attribute> layers = attributeMap.get(lowerCaseName);
+            if (layers == null)
+            {
+                layers = new HashMap<>(2);
+                attributeMap.put(lowerCaseName, layers);
+            }
+
+            Key layerKey = attr instanceof AttributeEntity ? ((AttributeEntity) attr).getLayerKey() :
+                           PersistenceUtils.getEntityKey(attr.getCustomizationLayer());
+            layers.put(layerKey, attr);
+            if (layerKey == null)
+            {
+                names.add(attr.getName());
+            }
+        }
+
+        this.attributes = attributeMap;
+        this.baseNames = Collections.unmodifiableList(names);
+    }
+
+    Key getOwner()
+    {
+        return owner;
+    }
+
+    int getRevision()
+    {
+        return revision;
+    }
+
+    /**
+     * Get the attribute defined at exactly the given layer.
+     *
+     * @param name     the name of the attribute.
+     * @param layerKey the key of the customization layer, null for the base definition.
+     * @return the attribute, or null if it has not been defined at the given layer.
+     */
+    Attribute get(String name, Key layerKey)
+    {
+        if (name == null)
+        {
+            return null;
+        }
+        Map<Key, Attribute> layers = attributes.get(name.toLowerCase());
+        return layers != null ? layers.get(layerKey) : null;
+    }
+
+    /**
+     * Get the attribute, as defined at every layer.
+     *
+     * @param name the name of the attribute.
+     * @return an unmodifiable collection of the attribute's definitions.
+     */
+    Collection<Attribute> getAllLayers(String name)
+    {
+        Map<Key, Attribute> layers = name != null ? attributes.get(name.toLowerCase()) : null;
+        return layers != null ? Collections.unmodifiableCollection(layers.values()) :
+               Collections.<Attribute>emptyList();
+    }
+
+    /**
+     * Get the names of the attributes that have a base definition, ordered by name.
+     *
+     * @return an unmodifiable list of names.
+     */
+    List<String> getBaseNames()
+    {
+        return baseNames;
+    }
+}
@@ -17,6 +17,8 @@
 package rogue.app.framework.internal.persistence.attr;
 
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.primitives.Ints;
 import org.apache.commons.lang.StringUtils;
 import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.model.PersistentObject;
@@ -25,6 +27,7 @@ import rogue.app.framework.model.attr.Attributes;
 import rogue.app.framework.model.attr.CustomizedAttributes;
 import rogue.app.framework.model.attr.Layer;
 import rogue.app.framework.persistence.JpaController;
+import rogue.app.framework.persistence.MemcachedScoped;
 import rogue.app.framework.persistence.PersistenceUtils;
 import rogue.app.framework.util.ScopedStateHolder;
 import rogue.app.framework.util.StateHolder;
@@ -44,6 +47,7 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
     private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
 
     private static final Layer BASE_DEFINITION_LAYER = null;
+    private static final String REVISION_PREFIX = "attributes_revision_";
 
     private final PersistentObject<?> parent;
     private final List<String> attributeNames;
@@ -52,6 +56,11 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
 
     private boolean backendAttrNamesLoaded = false;
 
+    /**
+     * All the persisted attributes of the parent. Parent objects may be shared across requests, hence the volatile.
+     */
+    private transient volatile AttributeSnapshot snapshot;
+
     public AttributesManager(PersistentObject<?> parent)
     {
         if (parent == null)
@@ -81,12 +90,8 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
 
         if (!parent.isMutable())
         {
-            Map<String, Object> queryParams = new HashMap<>(3);
-            queryParams.put("nameSpace", PersistenceUtils.getAppObjectNameSpace(parent));
-            queryParams.put("appObjRefKey", parent.getId());
-            queryParams.put("layerKey", BASE_DEFINITION_LAYER); // base definitions only.
-            nameList = JpaController.getController(Attribute.class)
-                                    .executeNamedQueryListResult("AttributeEntity.getNames", 0, -1, queryParams);
+            // base definitions only.
+            nameList = new ArrayList<>(getSnapshot().getBaseNames());
         }
         else
         {
@@ -129,53 +134,35 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
             return attributeNames.size();
         }
 
-        String KEY = parent.hashCode() + "_attributeKey";
-        StateHolder stateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
+        // base definitions only.
+        int count = getSnapshot().getBaseNames().size();
 
-        Long count = stateHolder.get(KEY);
-        if (count == null)
+        if (parent.isMutable())
         {
-            Map<String, Object> queryParams = new HashMap<>(3);
-            queryParams.put("nameSpace", PersistenceUtils.getAppObjectNameSpace(parent));
-            queryParams.put("appObjRefKey", parent.getId());
-            queryParams.put("layerKey", BASE_DEFINITION_LAYER); // base definitions only.
-            count = JpaController.getController(Attribute.class)
-                                 .executeNamedQuerySingleResult("AttributeEntity.getNames.count", queryParams);
-
-            if (count == null)
+            // Add & deduct the attributes to persist / delete
+            if (parent.getId() == null)
             {
-                count = 0L;
+                count = attributesToPersist.size();
             }
-
-            if (parent.isMutable())
+            else
             {
-                // Add & deduct the attributes to persist / delete
-                if (parent.getId() == null)
+                count -= attributesToDelete.size();
+                for (Map.Entry<String, Map<Layer, Attribute>> entry : attributesToPersist.entrySet())
                 {
-                    count = (long) attributesToPersist.size();
-                }
-                else
-                {
-                    count -= attributesToDelete.size();
-                    for (Map.Entry<String, Map<Layer, Attribute>> entry : attributesToPersist.entrySet())
+                    Map<Layer, Attribute> custMap = entry.getValue();
+                    if (custMap != null && custMap.containsKey(BASE_DEFINITION_LAYER))
                     {
-                        Map<Layer, Attribute> custMap = entry.getValue();
-                        if (custMap != null && custMap.containsKey(BASE_DEFINITION_LAYER))
+                        Attribute attr = custMap.get(BASE_DEFINITION_LAYER);
+                        if (attr != null && attr.getId() == null)
                         {
-                            Attribute attr = custMap.get(BASE_DEFINITION_LAYER);
-                            if (attr != null && attr.getId() == null)
-                            {
-                                count++;
-                            }
+                            count++;
                         }
                     }
                 }
             }
-
-            stateHolder.put(KEY, count);
         }
 
-        return count.intValue();
+        return count;
     }
 
     /**
@@ -271,7 +258,7 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
         Attribute attribute;
         if (!parent.isMutable())
         {
-            attribute = getAttributeObject(name, layer);
+            attribute = resolveAttributeObject(name, layer);
         }
         else
         {
@@ -405,7 +392,8 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
 
     /**
      * Get hold of this object's associated named attribute, identified by the given <code>name</code> and customized
-     * at the specified <code>layer</code>. This operation runs against the data store directly.
+     * at the specified <code>layer</code>. This operation runs against the snapshot of all the persisted attributes of
+     * this object, which is loaded with a single query and reloaded whenever any attribute changes.
      *
      * @param name  name of the attribute.
      * @param layer customization layer.
@@ -420,14 +408,114 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
             return null;
         }
 
-        Map<String, Object> queryParams = new HashMap<>(4);
-        queryParams.put("nameSpace", PersistenceUtils.getAppObjectNameSpace(parent));
-        queryParams.put("appObjRefKey", parent.getId());
-        queryParams.put("layerKey", PersistenceUtils.getEntityKey(layer));
-        queryParams.put("queryString", name.toLowerCase());
+        return getSnapshot().get(name, PersistenceUtils.getEntityKey(layer));
+    }
 
-        return JpaController.getController(Attribute.class)
-                            .executeNamedQuerySingleResult("AttributeEntity.findByName", queryParams);
+    /**
+     * Get hold of the named attribute as seen from the specified <code>layer</code>. If the attribute has not been
+     * customized at the layer, then its parent layers are checked, up to the base definition.
+     *
+     * @param name  name of the attribute.
+     * @param layer customization layer to start looking from.
+     * @return the attribute object if found.
+     */
+    private Attribute resolveAttributeObject(String name, Layer layer)
+    {
+        AttributeSnapshot attrSnapshot = getSnapshot();
+        Attribute attribute = attrSnapshot.get(name, PersistenceUtils.getEntityKey(layer));
+        while (attribute == null && layer != BASE_DEFINITION_LAYER)
+        {
+            layer = layer.getParent();
+            attribute = attrSnapshot.get(name, PersistenceUtils.getEntityKey(layer));
+        }
+        return attribute;
+    }
+
+    /**
+     * Get the snapshot of all the persisted attributes of this object, across all layers, loading it if it is not
+     * available or the attributes have changed since it was loaded.
+     *
+     * @return the attribute snapshot.
+     */
+    private AttributeSnapshot getSnapshot()
+    {
+        Key owner = parent.getId();
+        if (owner == null)
+        {
+            return AttributeSnapshot.EMPTY;
+        }
+
+        JpaController<Attribute> controller = JpaController.getController(Attribute.class);
+        int revision = getRevision(owner);
+
+        AttributeSnapshot attrSnapshot = snapshot;
+        if (attrSnapshot == null || attrSnapshot.getRevision() != revision || !owner.equals(attrSnapshot.getOwner()))
+        {
+            Map<String, Object> queryParams = new HashMap<>(2);
+            queryParams.put("nameSpace", PersistenceUtils.getAppObjectNameSpace(parent));
+            queryParams.put("appObjRefKey", owner);
+            List<Attribute> attributes =
+                    controller.executeNamedQueryListResult("AttributeEntity.findAttributes.alLayers", 0, -1,
+                                                           queryParams);
+            attrSnapshot = new AttributeSnapshot(owner, revision, attributes);
+            snapshot = attrSnapshot;
+        }
+        return attrSnapshot;
+    }
+
+    /**
+     * Get the revision of the attributes of the given application object. Unlike the revision of the attribute entity
+     * class, it only changes when the attributes of this very object change. The revision is read from memcache once
+     * per request and memoized in the request scope thereafter.
+     *
+     * @param owner the key of the application object that owns the attributes.
+     * @return the current revision of the object's attributes.
+     */
+    public static int getRevision(Key owner)
+    {
+        String revisionKey = getRevisionKey(owner);
+        StateHolder requestStateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
+        Number rev = requestStateHolder.get(revisionKey);
+        if (rev == null)
+        {
+            rev = ScopedStateHolder.getStateHolder(MemcachedScoped.class).get(revisionKey);
+            if (rev == null)
+            {
+                rev = 0;
+            }
+            requestStateHolder.put(revisionKey, rev);
+        }
+        return rev.intValue();
+    }
+
+    /**
+     * Atomically increment the revision of the attributes of the given application object, and refresh the revision
+     * memoized in the current request. If the revision cannot be incremented, the memoized revision is discarded.
+     *
+     * @param owner the key of the application object that owns the attributes.
+     */
+    static void incrementRevision(Key owner)
+    {
+        final String METHOD_NAME = "incrementRevision";
+
+        String revisionKey = getRevisionKey(owner);
+        Long rev = ScopedStateHolder.getStateHolder(MemcachedScoped.class).increment(revisionKey, 1);
+        StateHolder requestStateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
+        if (rev != null)
+        {
+            requestStateHolder.put(revisionKey, Ints.checkedCast(rev));
+        }
+        else
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                        "Unable to increment the attribute revision of " + owner + ". Cached attributes may be stale.");
+            requestStateHolder.remove(revisionKey);
+        }
+    }
+
+    private static String getRevisionKey(Key owner)
+    {
+        return REVISION_PREFIX + KeyFactory.keyToString(owner);
     }
 
     public void persist()
@@ -443,6 +531,7 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
 
         // handle the objects that need to be persisted
         JpaController<Attribute> controller = JpaController.getController(Attribute.class);
+        List<Attribute> attributes = new ArrayList<>();
         for (Map.Entry<String, Map<Layer, Attribute>> e : attributesToPersist.entrySet())
         {
             for (Map.Entry<Layer, Attribute> f : e.getValue().entrySet())
@@ -486,54 +575,43 @@ public class AttributesManager implements Attributes, CustomizedAttributes, Seri
                                 new AppRuntimeException(builder.toString()));
                 }
 
-                controller.save(attr);
+                attributes.add(attr);
             }
         }
+        controller.saveAll(attributes);
 
         // handle the objects that need to be deleted
+        List<Key> keys = new ArrayList<>();
         for (Map.Entry<String, Map<Layer, Attribute>> e : attributesToDelete.entrySet())
         {
-            List<Key> keys = new ArrayList<>();
             for (Map.Entry<Layer, Attribute> f : e.getValue().entrySet())
             {
                 if (f.getKey() == BASE_DEFINITION_LAYER)
                 {
                     // Mark all customization for deletion.
-                    Map<String, Object> queryParams = new HashMap<>(3);
-                    queryParams.put("nameSpace", PersistenceUtils.getAppObjectNameSpace(parent));
-                    queryParams.put("appObjRefKey", parent.getId());
-                    queryParams.put("queryString", e.getKey().toLowerCase());
-
-                    // Delete all customizations also.
-                    List<Attribute> attributes =
-                            controller.executeNamedQueryListResult("AttributeEntity.findByName.allLayers",
-                                                                   0, -1, queryParams);
-                    if (!attributes.isEmpty())
+                    for (Attribute attr : getSnapshot().getAllLayers(e.getKey()))
                     {
-                        for (Attribute attr : attributes)
+                        Key k = PersistenceUtils.getEntityKey(attr);
+                        if (k != null && !keys.contains(k))
                         {
-                            Key k = PersistenceUtils.getEntityKey(attr);
-                            if (k != null && !keys.contains(k))
-                            {
-                                keys.add(k);
-                            }
+                            keys.add(k);
                         }
                     }
                 }
                 else
                 {
-                    if (f.getValue() != null && f.getValue().getId() != null)
+                    if (f.getValue() != null && f.getValue().getId() != null && !keys.contains(f.getValue().getId()))
                     {
                         keys.add(f.getValue().getId());
                     }
                 }
-
-                if (!keys.isEmpty())
-                {
-                    controller.deleteById(keys.toArray(new Key[keys.size()]));
-                }
             }
         }
+
+        if (!keys.isEmpty())
+        {
+            controller.deleteById(keys.toArray(new Key[keys.size()]));
+        }
     }
 
     private Attribute getLocalAttribute(String name, Layer layer, Map<String, Map<Layer, Attribute>> localAttrMap)
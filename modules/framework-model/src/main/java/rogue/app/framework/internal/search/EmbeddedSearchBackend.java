@@ -0,0 +1,446 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.internal.search;
+
+import org.apache.commons.lang.StringUtils;
+import rogue.app.framework.search.SearchBackend;
+import rogue.app.framework.search.SearchDocument;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Search backend that maintains in-process inverted indexes, so that search can be developed and benchmarked on a
+ * plain JVM. The indexes live in the memory of the current instance only, and are lost on restart.
+ * <p/>
+ * The backend understands a subset of the Search API query syntax:
+ * <pre>
+ *     shoes red      - documents that match all of the terms.
+ *     name:shoes     - documents whose <code>name</code> field matches the term.
+ *     sho*           - documents that have a term starting with the given prefix.
+ * </pre>
+ * Matches are scored using TF-IDF, with the term frequency of every field scaled by the
+ * {@link rogue.app.framework.search.SearchField#weight() weight} of the field and normalized by its length. TEXT and
+ * HTML fields are tokenized; ATOM, NUMBER and DATE fields are indexed as a single term; GEO_POINT fields are not
+ * searchable.
+ */
+public class EmbeddedSearchBackend implements SearchBackend
+{
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>");
+
+    private final ConcurrentMap<String, LocalIndex> indexes = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String indexName, Collection<SearchDocument> documents)
+    {
+        getIndex(indexName).put(documents);
+    }
+
+    @Override
+    public void delete(String indexName, Collection<String> docIds)
+    {
+        getIndex(indexName).delete(docIds);
+    }
+
+    @Override
+    public List<String> listIds(String indexName, String afterId, int limit)
+    {
+        return getIndex(indexName).listIds(afterId, limit);
+    }
+
+    @Override
+    public List<String> search(String indexName, String queryString, int offset, int limit)
+    {
+        return getIndex(indexName).search(parseQuery(queryString), Math.max(0, offset), limit);
+    }
+
+    private LocalIndex getIndex(String indexName)
+    {
+        LocalIndex index = indexes.get(indexName);
+        if (index == null)
+        {
+            index = new LocalIndex();
+            LocalIndex existing = indexes.putIfAbsent(indexName, index);
+            if (existing != null)
+            {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Split the given text into lower case terms.
+     *
+     * @param text the text to tokenize.
+     * @return the list of terms.
+     */
+    static List<String> tokenize(String text)
+    {
+        List<String> terms = new ArrayList<>();
+        if (text != null)
+        {
+            for (String token : TOKEN_SEPARATOR.split(text.toLowerCase(Locale.ROOT)))
+            {
+                if (!token.isEmpty())
+                {
+                    terms.add(token);
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Get the terms to index for the given field.
+     */
+    private static List<String> getTerms(SearchDocument.FieldValue field)
+    {
+        Object value = field.getValue();
+        if (value == null)
+        {
+            return Collections.emptyList();
+        }
+
+        switch (field.getType())
+        {
+            case TEXT:
+                return tokenize(String.valueOf(value));
+            case HTML:
+                return tokenize(HTML_TAG.matcher(String.valueOf(value)).replaceAll(" "));
+            case ATOM:
+                return Collections.singletonList(String.valueOf(value).toLowerCase(Locale.ROOT));
+            case NUMBER:
+                double number = ((Number) value).doubleValue();
+                return Collections.singletonList(number == Math.rint(number) ? Long.toString((long) number) :
+                                                 Double.toString(number));
+            case DATE:
+                return Collections.singletonList(new SimpleDateFormat("yyyy-MM-dd").format((Date) value));
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Parse the query string into a list of clauses, all of which should match.
+     */
+    private static List<Clause> parseQuery(String queryString)
+    {
+        List<Clause> clauses = new ArrayList<>();
+        for (String token : StringUtils.split(StringUtils.trimToEmpty(queryString)))
+        {
+            if ("AND".equals(token))
+            {
+                continue;
+            }
+
+            String fieldName = null;
+            int idx = token.indexOf(':');
+            if (idx > 0 && idx < token.length() - 1)
+            {
+                fieldName = token.substring(0, idx);
+                token = token.substring(idx + 1);
+            }
+
+            boolean prefix = token.endsWith("*");
+            List<String> terms = tokenize(prefix ? token.substring(0, token.length() - 1) : token);
+            for (int i = 0; i < terms.size(); i++)
+            {
+                // Only the last term of a token such as "e-boo*" is a prefix.
+                clauses.add(new Clause(fieldName, terms.get(i), prefix && i == terms.size() - 1));
+            }
+        }
+        return clauses;
+    }
+
+    /**
+     * A single term of the query.
+     */
+    private static final class Clause
+    {
+        private final String fieldName;
+        private final String term;
+        private final boolean prefix;
+
+        private Clause(String fieldName, String term, boolean prefix)
+        {
+            this.fieldName = fieldName;
+            this.term = term;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * The per document statistics of the indexed fields.
+     */
+    private static final class IndexedDocument
+    {
+        private final Set<String> terms = new HashSet<>();
+        // Field name -> weight / sqrt(number of terms in the field)
+        private final Map<String, Double> fieldNorms = new HashMap<>();
+    }
+
+    /**
+     * A single inverted index.
+     */
+    private static final class LocalIndex
+    {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, IndexedDocument> documents = new HashMap<>();
+        // The ids of the documents, in order, for listing.
+        private final NavigableSet<String> orderedIds = new TreeSet<>();
+        // Term -> document id -> field name -> term frequency
+        private final NavigableMap<String, Map<String, Map<String, Integer>>> postings = new TreeMap<>();
+
+        private void put(Collection<SearchDocument> docs)
+        {
+            lock.writeLock().lock();
+            try
+            {
+                for (SearchDocument doc : docs)
+                {
+                    remove(doc.getId());
+
+                    IndexedDocument indexed = new IndexedDocument();
+                    for (SearchDocument.FieldValue field : doc.getFields())
+                    {
+                        List<String> terms = getTerms(field);
+                        if (terms.isEmpty())
+                        {
+                            continue;
+                        }
+
+                        indexed.fieldNorms.put(field.getName(), field.getWeight() / Math.sqrt(terms.size()));
+                        for (String term : terms)
+                        {
+                            indexed.terms.add(term);
+                            Map<String, Map<String, Integer>> docPostings = postings.get(term);
+                            if (docPostings == null)
+                            {
+                                docPostings = new HashMap<>();
+                                postings.put(term, docPostings);
+                            }
+                            Map<String, Integer> frequencies = docPostings.get(doc.getId());
+                            if (frequencies == null)
+                            {
+                                frequencies = new HashMap<>(2);
+                                docPostings.put(doc.getId(), frequencies);
+                            }
+                            Integer tf = frequencies.get(field.getName());
+                            frequencies.put(field.getName(), tf != null ? tf + 1 : 1);
+                        }
+                    }
+                    documents.put(doc.getId(), indexed);
+                    orderedIds.add(doc.getId());
+                }
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void delete(Collection<String> docIds)
+        {
+            lock.writeLock().lock();
+            try
+            {
+                for (String docId : docIds)
+                {
+                    remove(docId);
+                }
+            }
+            finally
+            {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private List<String> listIds(String afterId, int limit)
+        {
+            lock.readLock().lock();
+            try
+            {
+                List<String> ids = new ArrayList<>(Math.min(limit, orderedIds.size()));
+                for (String docId : afterId != null ? orderedIds.tailSet(afterId, false) : orderedIds)
+                {
+                    if (ids.size() >= limit)
+                    {
+                        break;
+                    }
+                    ids.add(docId);
+                }
+                return ids;
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void remove(String docId)
+        {
+            IndexedDocument indexed = documents.remove(docId);
+            orderedIds.remove(docId);
+            if (indexed != null)
+            {
+                for (String term : indexed.terms)
+                {
+                    Map<String, Map<String, Integer>> docPostings = postings.get(term);
+                    if (docPostings != null)
+                    {
+                        docPostings.remove(docId);
+                        if (docPostings.isEmpty())
+                        {
+                            postings.remove(term);
+                        }
+                    }
+                }
+            }
+        }
+
+        private List<String> search(List<Clause> clauses, int offset, int limit)
+        {
+            if (clauses.isEmpty() || limit <= 0)
+            {
+                return Collections.emptyList();
+            }
+
+            lock.readLock().lock();
+            try
+            {
+                // 1. Score every clause, intersecting the matches as we go.
+                Map<String, Double> scores = null;
+                for (Clause clause : clauses)
+                {
+                    Map<String, Double> clauseScores = score(clause);
+                    if (scores == null)
+                    {
+                        scores = clauseScores;
+                    }
+                    else
+                    {
+                        Iterator<Map.Entry<String, Double>> iterator = scores.entrySet().iterator();
+                        while (iterator.hasNext())
+                        {
+                            Map.Entry<String, Double> entry = iterator.next();
+                            Double clauseScore = clauseScores.get(entry.getKey());
+                            if (clauseScore == null)
+                            {
+                                iterator.remove();
+                            }
+                            else
+                            {
+                                entry.setValue(entry.getValue() + clauseScore);
+                            }
+                        }
+                    }
+
+                    if (scores.isEmpty())
+                    {
+                        return Collections.emptyList();
+                    }
+                }
+
+                if (offset >= scores.size())
+                {
+                    return Collections.emptyList();
+                }
+
+                // 2. Rank the matches, keeping only the top (offset + limit) ones. The window is a long, as the sum
+                // overflows for large limits, and the queue never holds more than all the matches.
+                long window = (long) offset + limit;
+                PriorityQueue<Map.Entry<String, Double>> top =
+                        new PriorityQueue<>((int) Math.min(window, scores.size()), Collections.reverseOrder(RANKING));
+                for (Map.Entry<String, Double> entry : scores.entrySet())
+                {
+                    top.add(entry);
+                    if (top.size() > window)
+                    {
+                        top.poll();
+                    }
+                }
+
+                List<Map.Entry<String, Double>> ranked = new ArrayList<>(top);
+                Collections.sort(ranked, RANKING);
+                List<String> docIds = new ArrayList<>(Math.max(0, ranked.size() - offset));
+                for (int i = offset; i < ranked.size(); i++)
+                {
+                    docIds.add(ranked.get(i).getKey());
+                }
+                return docIds;
+            }
+            finally
+            {
+                lock.readLock().unlock();
+            }
+        }
+
+        private Map<String, Double> score(Clause clause)
+        {
+            Map<String, Double> scores = new HashMap<>();
+            Map<String, Map<String, Map<String, Integer>>> matches =
+                    clause.prefix ? postings.subMap(clause.term, true, clause.term + Character.MAX_VALUE, true) :
+                    postings.containsKey(clause.term) ?
+                    Collections.singletonMap(clause.term, postings.get(clause.term)) :
+                    Collections.<String, Map<String, Map<String, Integer>>>emptyMap();
+
+            for (Map<String, Map<String, Integer>> docPostings : matches.values())
+            {
+                double idf = 1 + Math.log((double) documents.size() / (docPostings.size() + 1));
+                for (Map.Entry<String, Map<String, Integer>> posting : docPostings.entrySet())
+                {
+                    IndexedDocument indexed = documents.get(posting.getKey());
+                    double tf = 0;
+                    for (Map.Entry<String, Integer> frequency : posting.getValue().entrySet())
+                    {
+                        if (clause.fieldName == null || clause.fieldName.equals(frequency.getKey()))
+                        {
+                            tf += Math.sqrt(frequency.getValue()) * indexed.fieldNorms.get(frequency.getKey());
+                        }
+                    }
+
+                    if (tf > 0)
+                    {
+                        Double score = scores.get(posting.getKey());
+                        scores.put(posting.getKey(), (score != null ? score : 0) + tf * idf * idf);
+                    }
+                }
+            }
+            return scores;
+        }
+    }
+
+    /**
+     * Orders matches by descending score, and then by document id, so that paging is stable.
+     */
+    private static final Comparator<Map.Entry<String, Double>> RANKING = new Comparator<Map.Entry<String, Double>>()
+    {
+        @Override
+        public int compare(Map.Entry<String, Double> o1, Map.Entry<String, Double> o2)
+        {
+            int result = Double.compare(o2.getValue(), o1.getValue());
+            return result != 0 ? result : o1.getKey().compareTo(o2.getKey());
+        }
+    };
+}
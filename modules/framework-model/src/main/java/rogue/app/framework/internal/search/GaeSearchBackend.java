@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.internal.search;
+
+import com.google.appengine.api.search.*;
+import rogue.app.framework.search.SearchBackend;
+import rogue.app.framework.search.SearchDocument;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Search backend that uses the App Engine Search API. Field weights are not supported by the Search API, and are
+ * ignored.
+ */
+public class GaeSearchBackend implements SearchBackend
+{
+    private static final String CLASS_NAME = GaeSearchBackend.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    /**
+     * Maximum number of documents that can be added or removed in a single call to the Search API.
+     */
+    private static final int MAX_DOCUMENTS_PER_CALL = 200;
+
+    private final ConcurrentMap<String, Index> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Get the named search index.
+     *
+     * @param indexName the name of the index.
+     * @return the search index.
+     */
+    public Index getIndex(String indexName)
+    {
+        Index index = indexes.get(indexName);
+        if (index == null)
+        {
+            index = SearchServiceFactory.getSearchService().getIndex(IndexSpec.newBuilder().setName(indexName).build());
+            Index existing = indexes.putIfAbsent(indexName, index);
+            if (existing != null)
+            {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public void put(String indexName, Collection<SearchDocument> documents)
+    {
+        List<Document> docList = new ArrayList<>(documents.size());
+        for (SearchDocument document : documents)
+        {
+            docList.add(toDocument(document));
+        }
+
+        Index index = getIndex(indexName);
+        for (int i = 0; i < docList.size(); i += MAX_DOCUMENTS_PER_CALL)
+        {
+            index.put(docList.subList(i, Math.min(i + MAX_DOCUMENTS_PER_CALL, docList.size())));
+        }
+    }
+
+    @Override
+    public void delete(String indexName, Collection<String> docIds)
+    {
+        final String METHOD_NAME = "delete";
+
+        List<String> idList = new ArrayList<>(docIds);
+        Index index = getIndex(indexName);
+        for (int i = 0; i < idList.size(); i += MAX_DOCUMENTS_PER_CALL)
+        {
+            List<String> batch = idList.subList(i, Math.min(i + MAX_DOCUMENTS_PER_CALL, idList.size()));
+            try
+            {
+                index.delete(batch);
+            }
+            catch (DeleteException e)
+            {
+                List<String> failedIds = new ArrayList<>();
+                Iterator<OperationResult> resultIterator = e.getResults().iterator();
+                Iterator<String> docIdIterator = batch.iterator();
+                while (resultIterator.hasNext() && docIdIterator.hasNext())
+                {
+                    OperationResult result = resultIterator.next();
+                    String docId = docIdIterator.next();
+                    if (!StatusCode.OK.equals(result.getCode()))
+                    {
+                        failedIds.add(docId);
+                    }
+                }
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to remove documents " + failedIds, e);
+            }
+        }
+    }
+
+    @Override
+    public List<String> listIds(String indexName, String afterId, int limit)
+    {
+        GetRequest.Builder request = GetRequest.newBuilder().setReturningIdsOnly(true).setLimit(limit);
+        if (afterId != null)
+        {
+            request.setStartId(afterId).setIncludeStartId(false);
+        }
+
+        List<String> docIds = new ArrayList<>(limit);
+        for (Document doc : getIndex(indexName).getRange(request.build()))
+        {
+            docIds.add(doc.getId());
+        }
+        return docIds;
+    }
+
+    @Override
+    public List<String> search(String indexName, String queryString, int offset, int limit)
+    {
+        Query query = Query.newBuilder()
+                           .setOptions(QueryOptions.newBuilder().setOffset(offset).setLimit(limit).build())
+                           .build(queryString);
+        return search(indexName, query);
+    }
+
+    /**
+     * Execute a Search API query against the named index.
+     *
+     * @param indexName the name of the index.
+     * @param query     the query to execute.
+     * @return the ids of the matching documents.
+     */
+    public List<String> search(String indexName, Query query)
+    {
+        Results<ScoredDocument> results = getIndex(indexName).search(query);
+        List<String> docIds = new ArrayList<>(results.getNumberReturned());
+        for (ScoredDocument doc : results)
+        {
+            docIds.add(doc.getId());
+        }
+        return docIds;
+    }
+
+    private static Document toDocument(SearchDocument document)
+    {
+        Document.Builder docBuilder = Document.newBuilder().setId(document.getId());
+        for (SearchDocument.FieldValue fv : document.getFields())
+        {
+            Field.Builder builder = Field.newBuilder().setName(fv.getName());
+            switch (fv.getType())
+            {
+                case HTML:
+                    builder.setHTML((String) fv.getValue());
+                    break;
+                case NUMBER:
+                    builder.setNumber((Double) fv.getValue());
+                    break;
+                case ATOM:
+                    builder.setAtom((String) fv.getValue());
+                    break;
+                case DATE:
+                    builder.setDate((Date) fv.getValue());
+                    break;
+                case GEO_POINT:
+                    builder.setGeoPoint((GeoPoint) fv.getValue());
+                    break;
+                default:
+                    builder.setText(String.valueOf(fv.getValue()));
+            }
+            docBuilder.addField(builder);
+        }
+        return docBuilder.build();
+    }
+}
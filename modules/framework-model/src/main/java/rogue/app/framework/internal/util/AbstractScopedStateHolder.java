@@ -19,6 +19,7 @@ package rogue.app.framework.internal.util;
 import rogue.app.framework.util.StateHolder;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -63,4 +64,44 @@ public abstract class AbstractScopedStateHolder implements StateHolder, Serializ
     {
         return cacheMap != null && cacheMap.containsKey(key);
     }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Map<String, T> getAll(Collection<String> keys)
+    {
+        Map<String, T> result = new HashMap<>();
+        if (cacheMap != null && keys != null)
+        {
+            for (String key : keys)
+            {
+                if (cacheMap.containsKey(key))
+                {
+                    result.put(key, (T) cacheMap.get(key));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll(Map<String, ?> values)
+    {
+        if (values != null && !values.isEmpty())
+        {
+            if (cacheMap == null)
+            {
+                cacheMap = new HashMap<>(values.size() + 5);
+            }
+            cacheMap.putAll(values);
+        }
+    }
+
+    @Override
+    public synchronized Long increment(String key, long delta)
+    {
+        Object value = get(key);
+        long result = (value instanceof Number ? ((Number) value).longValue() : 0) + delta;
+        put(key, result);
+        return result;
+    }
 }
@@ -21,8 +21,10 @@ import org.reflections.Reflections;
 import org.reflections.scanners.MethodAnnotationsScanner;
 import org.reflections.scanners.TypeAnnotationsScanner;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -44,6 +46,17 @@ public final class ClassUtils
      * The set of marker files that we would look for, to identify the code paths that need to be searched.
      */
     private static final String[] MARKER_FILES = {"META-INF/persistence.xml", "META-INF/orm.xml", "META-INF/beans.xml"};
+
+    /**
+     * The annotation index generated at compile time by <code>AnnotationIndexProcessor</code>.
+     */
+    private static final String INDEX_FILE = "META-INF/rogue/annotation.index";
+
+    private static volatile Map<String, Set<Class<?>>> TYPE_INDEX;
+    private static Map<String, Set<Method>> METHOD_INDEX;
+    // Type name -> names of its direct subtypes, as recorded by the annotation index.
+    private static Map<String, Set<String>> SUBTYPE_INDEX;
+    private static ClassLoader INDEX_CLASS_LOADER;
     private static Reflections REFLECTIONS;
 
     private ClassUtils()
@@ -154,74 +167,311 @@ public final class ClassUtils
         return Collections.unmodifiableList(metadataList);
     }
 
+    /**
+     * Get all the types annotated with the given annotation, along with their subtypes. The generated annotation index
+     * is used for the class path entries that have one, and the remaining entries are scanned.
+     *
+     * @param annotation the annotation to look for.
+     * @return an iterator over the annotated types.
+     */
     public static Iterator<Class<?>> getTypesAnnotatedWith(Class<? extends Annotation> annotation)
     {
-        initReflections();
+        initIndex();
 
-        Set<Class<?>> classes = REFLECTIONS.getTypesAnnotatedWith(annotation);
-        return classes != null ? classes.iterator() : null;
+        Set<Class<?>> classes = new LinkedHashSet<>();
+        Set<Class<?>> indexed = TYPE_INDEX.get(annotation.getName());
+        if (indexed != null)
+        {
+            classes.addAll(indexed);
+        }
+        if (REFLECTIONS != null)
+        {
+            classes.addAll(REFLECTIONS.getTypesAnnotatedWith(annotation));
+        }
+        addSubTypes(classes);
+        return classes.iterator();
     }
 
+    /**
+     * Get all the methods annotated with the given annotation. The generated annotation index is used for the class
+     * path entries that have one, and the remaining entries are scanned.
+     *
+     * @param annotation the annotation to look for.
+     * @return an iterator over the annotated methods.
+     */
     public static Iterator<Method> getMethodsAnnotatedWith(Class<? extends Annotation> annotation)
     {
-        initReflections();
-        Set<Method> methods = REFLECTIONS.getMethodsAnnotatedWith(annotation);
-        return methods != null ? methods.iterator() : null;
+        initIndex();
+
+        Set<Method> methods = new LinkedHashSet<>();
+        Set<Method> indexed = METHOD_INDEX.get(annotation.getName());
+        if (indexed != null)
+        {
+            methods.addAll(indexed);
+        }
+        if (REFLECTIONS != null)
+        {
+            methods.addAll(REFLECTIONS.getMethodsAnnotatedWith(annotation));
+        }
+        return methods.iterator();
+    }
+
+    /**
+     * Reads the annotation index of every class path entry that contains one of the {@link #MARKER_FILES}, and scans
+     * the entries which do not have an index.
+     */
+    private static void initIndex()
+    {
+        if (TYPE_INDEX == null)
+        {
+            synchronized (ClassUtils.class)
+            {
+                if (TYPE_INDEX == null)
+                {
+                    buildIndex();
+                }
+            }
+        }
+    }
+
+    private static void buildIndex()
+    {
+        final String METHOD_NAME = "buildIndex";
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Set<URL> markedUrls = getClassPathRoots(classLoader, MARKER_FILES);
+        Set<URL> indexedUrls = new HashSet<>();
+        Map<String, Set<Class<?>>> typeIndex = new HashMap<>();
+        Map<String, Set<Method>> methodIndex = new HashMap<>();
+        Map<String, Set<String>> subTypeIndex = new HashMap<>();
+
+        try
+        {
+            Enumeration<URL> resources = classLoader.getResources(INDEX_FILE);
+            while (resources.hasMoreElements())
+            {
+                URL url = resources.nextElement();
+                URL root = getClassPathRoot(url, INDEX_FILE);
+                if (root != null && markedUrls.contains(root))
+                {
+                    readIndex(url, classLoader, typeIndex, methodIndex, subTypeIndex);
+                    indexedUrls.add(root);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to read the annotation index.", e);
+        }
+
+        Set<URL> scanUrls = new HashSet<>(markedUrls);
+        scanUrls.removeAll(indexedUrls);
+        if (!scanUrls.isEmpty())
+        {
+            LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "No annotation index found, scanning: " + scanUrls);
+            REFLECTIONS = new Reflections(new TypeAnnotationsScanner(), new MethodAnnotationsScanner(),
+                                          scanUrls.toArray());
+        }
+
+        INDEX_CLASS_LOADER = classLoader;
+        SUBTYPE_INDEX = subTypeIndex;
+        METHOD_INDEX = methodIndex;
+        TYPE_INDEX = typeIndex;
     }
 
-    private static void initReflections()
+    private static void readIndex(URL url, ClassLoader classLoader, Map<String, Set<Class<?>>> typeIndex,
+                                  Map<String, Set<Method>> methodIndex, Map<String, Set<String>> subTypeIndex)
+            throws IOException
     {
-        final String METHOD_NAME = "initReflections";
-        if (REFLECTIONS == null)
+        final String METHOD_NAME = "readIndex";
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8")))
         {
-            Set<URL> processedUrls = new HashSet<>();
-            for (String marker : MARKER_FILES)
+            String line;
+            while ((line = reader.readLine()) != null)
             {
+                String[] tokens = line.trim().split(" ");
                 try
                 {
-                    Enumeration<URL> resources = Thread.currentThread().getContextClassLoader().getResources(marker);
-                    while (resources.hasMoreElements())
+                    if (tokens.length == 3 && "S".equals(tokens[0]))
                     {
-                        URL url = resources.nextElement();
-                        if ("jar".equalsIgnoreCase(url.getProtocol()))
-                        {
-                            try
-                            {
-                                JarURLConnection conn = (JarURLConnection) url.openConnection();
-                                processedUrls.add(conn.getJarFileURL());
-                            }
-                            catch (IOException e)
-                            {
-                                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to open jar file.", e);
-                            }
-                        }
-                        else if ("file".equalsIgnoreCase(url.getProtocol()))
+                        // Subtypes are only loaded when they are looked up.
+                        addToIndex(subTypeIndex, tokens[2], tokens[1]);
+                    }
+                    else if (tokens.length == 3 && "T".equals(tokens[0]))
+                    {
+                        Class<?> clazz = Class.forName(tokens[2], false, classLoader);
+                        addToIndex(typeIndex, tokens[1], clazz);
+                    }
+                    else if (tokens.length >= 4 && "M".equals(tokens[0]))
+                    {
+                        Class<?> clazz = Class.forName(tokens[2], false, classLoader);
+                        Method method = findMethod(clazz, tokens[3], tokens.length > 4 ? tokens[4] : "");
+                        if (method != null)
                         {
-                            String file = url.getFile();
-                            int idx = file.indexOf(marker);
-                            if (idx != -1)
-                            {
-                                file = file.substring(0, idx);
-                            }
-                            processedUrls.add(new File(file).toURI().toURL());
+                            addToIndex(methodIndex, tokens[1], method);
                         }
                         else
                         {
-                            LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Ignoring unhandled protocol: " + url);
+                            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Indexed method not found: " + line);
                         }
+                    }
+                }
+                catch (ClassNotFoundException | LinkageError e)
+                {
+                    LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to load indexed class: " + line, e);
+                }
+            }
+        }
+    }
+
+    private static <E> void addToIndex(Map<String, Set<E>> index, String annotation, E element)
+    {
+        Set<E> elements = index.get(annotation);
+        if (elements == null)
+        {
+            elements = new LinkedHashSet<>();
+            index.put(annotation, elements);
+        }
+        elements.add(element);
+    }
 
+    /**
+     * Add the subtypes of the given types, recorded by the annotation index, to the set.
+     */
+    private static void addSubTypes(Set<Class<?>> classes)
+    {
+        final String METHOD_NAME = "addSubTypes";
+
+        Deque<String> pending = new ArrayDeque<>();
+        for (Class<?> clazz : classes)
+        {
+            pending.add(clazz.getName());
+        }
+
+        Set<String> visited = new HashSet<>(pending);
+        while (!pending.isEmpty())
+        {
+            Set<String> subTypes = SUBTYPE_INDEX.get(pending.poll());
+            if (subTypes == null)
+            {
+                continue;
+            }
+
+            for (String subType : subTypes)
+            {
+                if (visited.add(subType))
+                {
+                    try
+                    {
+                        classes.add(Class.forName(subType, false, INDEX_CLASS_LOADER));
+                        pending.add(subType);
+                    }
+                    catch (ClassNotFoundException | LinkageError e)
+                    {
+                        LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to load indexed class: " + subType,
+                                    e);
                     }
                 }
-                catch (IOException e)
+            }
+        }
+    }
+
+    /**
+     * Find the declared method with the given name and comma separated list of (canonical) parameter type names.
+     */
+    private static Method findMethod(Class<?> clazz, String name, String paramTypes)
+    {
+        for (Method m : clazz.getDeclaredMethods())
+        {
+            if (!m.getName().equals(name))
+            {
+                continue;
+            }
+
+            StringBuilder builder = new StringBuilder();
+            for (Class<?> paramType : m.getParameterTypes())
+            {
+                if (builder.length() != 0)
                 {
-                    LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME,
-                                "Failed to parse marker files in the runtime paths");
-                    LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
-                                "Failed to parse marker files in the runtime paths", e);
+                    builder.append(',');
                 }
+                builder.append(paramType.getCanonicalName());
+            }
+            if (builder.toString().equals(paramTypes))
+            {
+                return m;
             }
-            REFLECTIONS = new Reflections(new TypeAnnotationsScanner(), new MethodAnnotationsScanner(),
-                                          processedUrls.toArray());
         }
+        return null;
+    }
+
+    /**
+     * Get the roots of the class path entries that contain any of the given resources.
+     */
+    private static Set<URL> getClassPathRoots(ClassLoader classLoader, String... markers)
+    {
+        final String METHOD_NAME = "getClassPathRoots";
+        Set<URL> roots = new HashSet<>();
+        for (String marker : markers)
+        {
+            try
+            {
+                Enumeration<URL> resources = classLoader.getResources(marker);
+                while (resources.hasMoreElements())
+                {
+                    URL root = getClassPathRoot(resources.nextElement(), marker);
+                    if (root != null)
+                    {
+                        roots.add(root);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME,
+                            "Failed to parse marker files in the runtime paths");
+                LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
+                            "Failed to parse marker files in the runtime paths", e);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Get the root of the class path entry, given the URL of a resource within it.
+     *
+     * @param url      the URL of the resource.
+     * @param resource the name of the resource.
+     * @return the URL of the jar file or directory, or null if the protocol is not supported.
+     */
+    private static URL getClassPathRoot(URL url, String resource)
+    {
+        final String METHOD_NAME = "getClassPathRoot";
+        try
+        {
+            if ("jar".equalsIgnoreCase(url.getProtocol()))
+            {
+                JarURLConnection conn = (JarURLConnection) url.openConnection();
+                return conn.getJarFileURL();
+            }
+            else if ("file".equalsIgnoreCase(url.getProtocol()))
+            {
+                String file = url.getFile();
+                int idx = file.indexOf(resource);
+                if (idx != -1)
+                {
+                    file = file.substring(0, idx);
+                }
+                return new File(file).toURI().toURL();
+            }
+            else
+            {
+                LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Ignoring unhandled protocol: " + url);
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to open jar file.", e);
+        }
+        return null;
     }
 }
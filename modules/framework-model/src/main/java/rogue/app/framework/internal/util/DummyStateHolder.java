@@ -18,6 +18,10 @@ package rogue.app.framework.internal.util;
 
 import rogue.app.framework.util.StateHolder;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Implementation of {@link rogue.app.framework.util.StateHolder} that does not store any data.
  */
@@ -50,4 +54,22 @@ public class DummyStateHolder implements StateHolder
     {
         return false;
     }
+
+    @Override
+    public <T> Map<String, T> getAll(Collection<String> keys)
+    {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void putAll(Map<String, ?> values)
+    {
+        // Do nothing
+    }
+
+    @Override
+    public Long increment(String key, long delta)
+    {
+        return delta;
+    }
 }
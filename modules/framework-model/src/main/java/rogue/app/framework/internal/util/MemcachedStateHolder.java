@@ -24,6 +24,10 @@ import rogue.app.framework.persistence.MemcachedScoped;
 import rogue.app.framework.util.StateHolder;
 
 import javax.enterprise.context.ApplicationScoped;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -120,4 +124,74 @@ public class MemcachedStateHolder implements StateHolder
     {
         return memCache.contains(key);
     }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Map<String, T> getAll(Collection<String> keys)
+    {
+        final String METHOD_NAME = "getAll";
+        if (keys != null && !keys.isEmpty())
+        {
+            try
+            {
+                return (Map<String, T>) memCache.getAll(keys);
+            }
+            catch (Exception ex)
+            {
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to fetch cached values for keys: " + keys,
+                            ex);
+            }
+        }
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void putAll(Map<String, ?> values)
+    {
+        final String METHOD_NAME = "putAll";
+        if (values != null && !values.isEmpty())
+        {
+            if (values.containsKey(null))
+            {
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Key is null. This should never happen.",
+                            new AppRuntimeException("Cache key was null."));
+                values = new HashMap<>(values);
+                values.remove(null);
+            }
+
+            try
+            {
+                memCache.putAll(values, DEFAULT_EXPIRATION);
+            }
+            catch (Exception ex)
+            {
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                            "Unable to add objects to cache " + values.keySet(), ex);
+            }
+        }
+    }
+
+    @Override
+    public Long increment(String key, long delta)
+    {
+        final String METHOD_NAME = "increment";
+        if (key != null)
+        {
+            try
+            {
+                return memCache.increment(key, delta, 0L);
+            }
+            catch (Exception ex)
+            {
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to increment cached value for key: " + key,
+                            ex);
+            }
+        }
+        else
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Key is null. This should never happen.",
+                        new AppRuntimeException("Cache key was null."));
+        }
+        return null;
+    }
 }
@@ -19,6 +19,9 @@ package rogue.app.framework.model;
 import com.google.appengine.api.datastore.Blob;
 import rogue.app.framework.patterns.Association;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * Represents a binary object stored in the backend. Each binary resource is associated with a name space that helps in
  * categorizing resource objects. For e.g., all images belonging to a product could be classified as product-images.
@@ -43,16 +46,51 @@ public interface BinaryResource extends PersistentObject<BinaryResource>, NamedR
      * Get the binary object used to store this image.
      *
      * @return the binary object used to store this image.
+     * @deprecated loads the entire content in memory, use {@link #getContentStream()} instead.
      */
+    @Deprecated
     public Blob getBlob();
 
     /**
      * Set the binary object used for storing this image.
      *
      * @param blob the binary object used for storing this image.
+     * @deprecated use {@link #setContent(java.io.InputStream)} instead.
      */
+    @Deprecated
     public void setBlob(Blob blob);
 
+    /**
+     * Get a stream on the content of this resource. The content is read lazily, as the stream is consumed.
+     *
+     * @return a stream on the content, or null if the resource does not have any content.
+     */
+    public InputStream getContentStream();
+
+    /**
+     * Replace the content of this resource. The content is written to the backend as it is read, hence it is not
+     * bound by the available memory.
+     *
+     * @param content the new content. The stream is not closed.
+     * @throws IOException if the content cannot be read.
+     */
+    public void setContent(InputStream content) throws IOException;
+
+    /**
+     * Get the digest of the content, computed when the content was set. Two resources have the same content if, and
+     * only if, they have the same digest.
+     *
+     * @return the hex encoded SHA-256 digest of the content, or null if the resource does not have any content.
+     */
+    public String getContentDigest();
+
+    /**
+     * Get the length of the content, in bytes.
+     *
+     * @return the length of the content, in bytes.
+     */
+    public long getContentLength();
+
     /**
      * Get the file extension if available.
      *
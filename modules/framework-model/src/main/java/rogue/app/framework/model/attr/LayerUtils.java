@@ -58,11 +58,7 @@ public final class LayerUtils implements Serializable
 
         JpaController<Layer> controller = JpaController.getController(Layer.class);
 
-        Map<String, Object> params = new HashMap<>(1);
-        params.put("baseRefKey", appObject.getId());
-
-        Layer layer = JpaController.getController(Layer.class)
-                                   .executeNamedQuerySingleResult("LayerEntity.findByBaseRef", params);
+        Layer layer = findLayerForObject(appObject);
 
         if (layer == null)
         {
@@ -86,6 +82,26 @@ public final class LayerUtils implements Serializable
         return layer;
     }
 
+    /**
+     * Find the layer object associated with the given application object, without creating one.
+     *
+     * @param appObject the application object
+     * @return the layer object, or null if the specified argument is null or no layer has been created for it yet.
+     */
+    public static Layer findLayerForObject(PersistentObject<?> appObject)
+    {
+        if (appObject == null || appObject.getId() == null)
+        {
+            return null;
+        }
+
+        Map<String, Object> params = new HashMap<>(1);
+        params.put("baseRefKey", appObject.getId());
+
+        return JpaController.getController(Layer.class)
+                            .executeNamedQuerySingleResult("LayerEntity.findByBaseRef", params);
+    }
+
     /**
      * Get a list of layer objects, creating them if need be.
      *
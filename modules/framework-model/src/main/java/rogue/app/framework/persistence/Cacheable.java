@@ -37,4 +37,20 @@ public @interface Cacheable
      * @return the scope at which the object should be cached.
      */
     Class<? extends Annotation> preferredScope() default RequestScoped.class;
+
+    /**
+     * The maximum number of entities that should be held in the per-instance near cache, which sits in front of the
+     * {@link MemcachedScoped} tier. The near cache is used only when the preferred scope is <code>MemcachedScoped</code>.
+     * A value of 0 disables the near cache.
+     *
+     * @return the maximum number of entities held in the near cache.
+     */
+    int nearCacheSize() default 500;
+
+    /**
+     * The time, in seconds, for which an entity stays in the near cache after it has been fetched.
+     *
+     * @return the time to live, in seconds, of entries in the near cache.
+     */
+    int nearCacheTimeToLive() default 60;
 }
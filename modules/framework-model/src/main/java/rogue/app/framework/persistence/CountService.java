@@ -0,0 +1,331 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rogue.app.framework.persistence;
+
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import rogue.app.framework.AppRuntimeException;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Provides the row counts of listings, without ever scanning all the matching entities.
+ * <ul>
+ * <li>The total number of entities of a kind, i.e., count queries without a <code>WHERE</code> clause, is kept in a
+ * sharded counter that is updated as entities are created and deleted. The counter is seeded with an exact count the
+ * first time it is read.</li>
+ * <li>Any other count query is answered from a cached count that is at most
+ * <code>rogue.app.framework.count.STALENESS</code> seconds old. The count is recomputed by fetching at most
+ * <code>rogue.app.framework.count.MAX_COUNT + 1</code> keys; beyond that, the count is reported as a lower bound, so
+ * that the listing can display "more than N".</li>
+ * </ul>
+ * The counts are approximate: writes that race with the seeding of a counter, or that happen within the staleness
+ * budget, may not be reflected. Use {@link JpaController#count(rogue.app.framework.model.Query)} where an exact count
+ * is required.
+ */
+public final class CountService
+{
+    private static final String CLASS_NAME = CountService.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    static final String COUNTER_KIND = "_ShardedCounter";
+    private static final String PROP_COUNT = "count";
+    private static final String SEED_SUFFIX = "/seed";
+    private static final String CACHE_PREFIX = "_count_";
+
+    /**
+     * Number of shards per counter. Every shard sustains roughly one write per second.
+     */
+    private static final int SHARDS = Math.max(1, Integer.getInteger("rogue.app.framework.count.SHARDS", 10));
+
+    /**
+     * Maximum age, in seconds, of a cached count.
+     */
+    private static final int STALENESS = Math.max(1, Integer.getInteger("rogue.app.framework.count.STALENESS", 300));
+
+    /**
+     * Maximum number of keys fetched to compute a count.
+     */
+    private static final int MAX_COUNT = Math.max(1, Integer.getInteger("rogue.app.framework.count.MAX_COUNT", 1000));
+
+    /**
+     * Number of times an update of a counter is attempted.
+     */
+    private static final int MAX_INCREMENT_ATTEMPTS = 5;
+
+    private static final Pattern COUNT = Pattern.compile("^\\s*SELECT\\s+COUNT\\s*\\(\\s*(\\w+)\\s*\\)\\s+FROM\\s+" +
+                                                                 "(\\w+)\\s+(?:AS\\s+)?(\\w+)(.*)$",
+                                                         Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern ORDER_BY = Pattern.compile("\\s+ORDER\\s+BY\\s+.*$",
+                                                            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Private constructor.
+     */
+    private CountService()
+    {
+    }
+
+    /**
+     * Get the approximate number of entities matching the given count query.
+     *
+     * @param controller the controller of the counted entities.
+     * @param query      the count query, i.e., <code>SELECT COUNT(e) FROM ...</code>, or the name of the query.
+     * @param namedQuery true if the query is a named query.
+     * @param params     the query parameters.
+     * @return the count.
+     * @throws AppRuntimeException if the operation fails.
+     */
+    public static Count count(JpaController<?> controller, String query, boolean namedQuery,
+                              Map<String, Object> params) throws AppRuntimeException
+    {
+        String jpql = namedQuery ? controller.getNamedQueryString(query) : query;
+        Matcher matcher = jpql != null ? COUNT.matcher(jpql) : null;
+        if (matcher == null || !matcher.matches() || !matcher.group(1).equals(matcher.group(3)))
+        {
+            // Not a query that we understand, count it the hard way.
+            Long count = namedQuery ? controller.<Long>executeNamedQuerySingleResult(query, params) :
+                         controller.<Long>executeQuerySingleResult(query, params);
+            return new Count(count != null ? count : 0, false);
+        }
+
+        String conditions = ORDER_BY.matcher(matcher.group(4)).replaceFirst("");
+        if (conditions.trim().isEmpty())
+        {
+            return new Count(getTotal(controller, jpql), false);
+        }
+
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        String cacheKey = new QueryCacheKey(CACHE_PREFIX + controller.getEntityClass().getName() + "_", jpql, params,
+                                            null, null, 0).getDigest();
+        Count count = (Count) memcache.get(cacheKey);
+        if (count == null)
+        {
+            String alias = matcher.group(3);
+            String keysQuery = "SELECT " + alias + ".id FROM " + matcher.group(2) + " " + alias + conditions;
+            List<Object> keys = controller.executeQueryListResult(keysQuery, 0, MAX_COUNT + 1, params);
+            count = keys.size() > MAX_COUNT ? new Count(MAX_COUNT, true) : new Count(keys.size(), false);
+            memcache.put(cacheKey, count, Expiration.byDeltaSeconds(STALENESS));
+        }
+        return count;
+    }
+
+    /**
+     * Get the approximate number of entities managed by the given controller.
+     *
+     * @param controller the controller.
+     * @return the count.
+     * @throws AppRuntimeException if the operation fails.
+     */
+    public static Count count(JpaController<?> controller) throws AppRuntimeException
+    {
+        return new Count(getTotal(controller, "SELECT COUNT(e) FROM " + controller.getEntityClass().getSimpleName() +
+                " e"), false);
+    }
+
+    /**
+     * Update the counter of the entities managed by the given controller. Invoked as entities are created and deleted.
+     *
+     * @param controller the controller.
+     * @param delta      the number of entities created, or the negated number of entities deleted.
+     */
+    static void increment(JpaController<?> controller, long delta)
+    {
+        final String METHOD_NAME = "increment";
+        if (delta == 0)
+        {
+            return;
+        }
+
+        String counter = getCounterName(controller);
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        for (int attempt = 1; ; attempt++)
+        {
+            // Every attempt picks a shard at random, which spreads out the contention.
+            Key shardKey = getShardKey(counter, RANDOM.nextInt(SHARDS));
+            Transaction txn = ds.beginTransaction();
+            try
+            {
+                Entity shard;
+                try
+                {
+                    shard = ds.get(txn, shardKey);
+                }
+                catch (EntityNotFoundException e)
+                {
+                    shard = new Entity(shardKey);
+                }
+                Long value = (Long) shard.getProperty(PROP_COUNT);
+                shard.setUnindexedProperty(PROP_COUNT, (value != null ? value : 0) + delta);
+                ds.put(txn, shard);
+                txn.commit();
+
+                // Only updates the cached total if it is present.
+                MemcacheServiceFactory.getMemcacheService().increment(CACHE_PREFIX + counter, delta);
+                return;
+            }
+            catch (DatastoreFailureException | ConcurrentModificationException e)
+            {
+                if (attempt >= MAX_INCREMENT_ATTEMPTS)
+                {
+                    LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to update counter " + counter +
+                            " after " + attempt + " attempts. The count is off by " + delta + ".", e);
+                    return;
+                }
+            }
+            finally
+            {
+                if (txn.isActive())
+                {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the total of the counter of the given controller, seeding it if required.
+     */
+    private static long getTotal(JpaController<?> controller, String countQuery)
+    {
+        String counter = getCounterName(controller);
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        Object cached = memcache.get(CACHE_PREFIX + counter);
+        if (cached instanceof Number)
+        {
+            return ((Number) cached).longValue();
+        }
+
+        List<Key> keys = new ArrayList<>(SHARDS + 1);
+        keys.add(KeyFactory.createKey(COUNTER_KIND, counter + SEED_SUFFIX));
+        for (int i = 0; i < SHARDS; i++)
+        {
+            keys.add(getShardKey(counter, i));
+        }
+
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        Map<Key, Entity> shards = ds.get(keys);
+        long total;
+        if (!shards.containsKey(keys.get(0)))
+        {
+            total = seed(controller, countQuery, keys);
+        }
+        else
+        {
+            total = 0;
+            for (Entity shard : shards.values())
+            {
+                Long value = (Long) shard.getProperty(PROP_COUNT);
+                total += value != null ? value : 0;
+            }
+        }
+
+        // Stored as a Long, so that it can be incremented in place.
+        memcache.put(CACHE_PREFIX + counter, Math.max(0, total), Expiration.byDeltaSeconds(STALENESS),
+                     MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        return Math.max(0, total);
+    }
+
+    /**
+     * Seed the counter with an exact count. This is the only time that the entities are scanned.
+     */
+    private static long seed(JpaController<?> controller, String countQuery, List<Key> keys)
+    {
+        final String METHOD_NAME = "seed";
+        LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME, "Seeding counter: " + keys.get(0).getName());
+
+        Long count = controller.executeQuerySingleResult(countQuery, null);
+        long total = count != null ? count : 0;
+
+        // The seed holds the exact count, minus whatever the shards had accumulated until now.
+        long accumulated = 0;
+        DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+        for (Entity shard : ds.get(keys.subList(1, keys.size())).values())
+        {
+            Long value = (Long) shard.getProperty(PROP_COUNT);
+            accumulated += value != null ? value : 0;
+        }
+
+        Entity seed = new Entity(keys.get(0));
+        seed.setUnindexedProperty(PROP_COUNT, total - accumulated);
+        ds.put(seed);
+        return total;
+    }
+
+    private static String getCounterName(JpaController<?> controller)
+    {
+        return controller.getEntityClass().getName();
+    }
+
+    private static Key getShardKey(String counter, int shard)
+    {
+        return KeyFactory.createKey(COUNTER_KIND, counter + "/" + shard);
+    }
+
+    /**
+     * An approximate count.
+     */
+    public static final class Count implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final long value;
+        private final boolean lowerBound;
+
+        private Count(long value, boolean lowerBound)
+        {
+            this.value = value;
+            this.lowerBound = lowerBound;
+        }
+
+        /**
+         * Get the count.
+         *
+         * @return the count.
+         */
+        public long getValue()
+        {
+            return value;
+        }
+
+        /**
+         * Identifies if there are more matching entities than the count, i.e., the count is a lower bound.
+         *
+         * @return true if the count is a lower bound.
+         */
+        public boolean isLowerBound()
+        {
+            return lowerBound;
+        }
+
+        @Override
+        public String toString()
+        {
+            return lowerBound ? "more than " + value : String.valueOf(value);
+        }
+    }
+}
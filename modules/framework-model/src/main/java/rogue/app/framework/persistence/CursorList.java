@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rogue.app.framework.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A page of query results, along with the datastore cursor that points right after its last result. Passing the
+ * cursor back into the query fetches the following page without reading, and discarding, any of the preceding results.
+ *
+ * @param <E> type of the results.
+ */
+public class CursorList<E> extends ArrayList<E>
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String cursor;
+
+    /**
+     * Create a new <code>CursorList</code>.
+     *
+     * @param results the results.
+     * @param cursor  the web safe representation of the cursor following the last result, or null if the query does
+     *                not support cursors.
+     */
+    public CursorList(Collection<? extends E> results, String cursor)
+    {
+        super(results);
+        this.cursor = cursor;
+    }
+
+    /**
+     * Get the web safe representation of the cursor that points right after the last result.
+     *
+     * @return the cursor, or null if the query does not support cursors.
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+}
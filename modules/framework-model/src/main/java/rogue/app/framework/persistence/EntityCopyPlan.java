@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.persistence;
+
+import rogue.app.framework.AppRuntimeException;
+
+import javax.persistence.Transient;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Precomputed plan for creating mutable copies of a <code>PersistentEntity</code> class. The plan holds the copy
+ * constructor and a getter / setter pair of method handles for every persistent field in the class hierarchy, so
+ * that the class is introspected only once.
+ */
+final class EntityCopyPlan
+{
+    private static final String CLASS_NAME = EntityCopyPlan.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    private static final ConcurrentMap<Class<?>, EntityCopyPlan> PLANS = new ConcurrentHashMap<>();
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Constructor<?> copyConstructor;
+    private final MethodHandle[] getters;
+    private final MethodHandle[] setters;
+
+    private EntityCopyPlan(Class<?> entityClass)
+    {
+        final String METHOD_NAME = "<ctor>";
+
+        Constructor<?> ctor = null;
+        for (Constructor<?> c : entityClass.getDeclaredConstructors())
+        {
+            Class<?>[] paramTypes = c.getParameterTypes();
+            if (paramTypes.length == 1 && PersistentEntity.class.isAssignableFrom(paramTypes[0]))
+            {
+                c.setAccessible(true);
+                ctor = c;
+                break;
+            }
+        }
+        this.copyConstructor = ctor;
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<MethodHandle> getterList = new ArrayList<>();
+        List<MethodHandle> setterList = new ArrayList<>();
+
+        Class<?> clazz = entityClass;
+        while (clazz != null && PersistentEntity.class.isAssignableFrom(clazz))
+        {
+            for (Field f : clazz.getDeclaredFields())
+            {
+                int fieldModifiers = f.getModifiers();
+                // Ignore fields that are:
+                // 1. marked as transient - JPA as well as field lifecycle
+                // 2. Static or final in nature
+                // 3. field name begins with jdo - those are internal to JDO.
+                if (Modifier.isTransient(fieldModifiers) || Modifier.isFinal(fieldModifiers)
+                        || Modifier.isStatic(fieldModifiers) || f.getName().startsWith("jdo")
+                        || f.isAnnotationPresent(Transient.class))
+                {
+                    continue;
+                }
+
+                if (LOGGER.isLoggable(Level.FINEST))
+                {
+                    LOGGER.logp(Level.FINEST, CLASS_NAME, METHOD_NAME,
+                                "Adding field to the copy plan of " + entityClass.getName() + " : " + f.getName());
+                }
+
+                try
+                {
+                    f.setAccessible(true);
+                    getterList.add(lookup.unreflectGetter(f).asType(GETTER_TYPE));
+                    setterList.add(lookup.unreflectSetter(f).asType(SETTER_TYPE));
+                }
+                catch (IllegalAccessException e)
+                {
+                    LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "This should not occur.", e);
+                }
+            }
+
+            // Move to the parent clazz
+            clazz = clazz.getSuperclass();
+        }
+
+        this.getters = getterList.toArray(new MethodHandle[getterList.size()]);
+        this.setters = setterList.toArray(new MethodHandle[setterList.size()]);
+    }
+
+    /**
+     * Get the copy plan for the given entity class.
+     *
+     * @param entityClass the entity class.
+     * @return the copy plan for the entity class.
+     */
+    static EntityCopyPlan forClass(Class<?> entityClass)
+    {
+        EntityCopyPlan plan = PLANS.get(entityClass);
+        if (plan == null)
+        {
+            plan = new EntityCopyPlan(entityClass);
+            EntityCopyPlan existing = PLANS.putIfAbsent(entityClass, plan);
+            if (existing != null)
+            {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Get the constructor that accepts a single <code>PersistentEntity</code> argument.
+     *
+     * @return the copy constructor, or null if the class does not declare one.
+     */
+    Constructor<?> getCopyConstructor()
+    {
+        return copyConstructor;
+    }
+
+    /**
+     * Copy the values of all the persistent fields from the source object to the target object.
+     *
+     * @param source the object to copy from.
+     * @param target the object to copy to.
+     */
+    void copy(Object source, Object target)
+    {
+        try
+        {
+            for (int i = 0; i < getters.length; i++)
+            {
+                setters[i].invokeExact(target, getters[i].invokeExact(source));
+            }
+        }
+        catch (RuntimeException | Error e)
+        {
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            throw new AppRuntimeException(t);
+        }
+    }
+}
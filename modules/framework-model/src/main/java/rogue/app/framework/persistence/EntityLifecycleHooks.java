@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.persistence;
+
+import rogue.app.framework.AppRuntimeException;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link PreExecute} and {@link PostExecute} hooks of a <code>PersistentEntity</code> class, resolved once per
+ * class. Hooks are methods, declared anywhere in the entity's class hierarchy, that are annotated with one of these
+ * annotations and accept a single boolean argument. They are invoked in the order in which they are declared, starting
+ * with the entity class and moving up the hierarchy.
+ */
+final class EntityLifecycleHooks
+{
+    private static final ConcurrentMap<Class<?>, EntityLifecycleHooks> HOOKS = new ConcurrentHashMap<>();
+
+    private static final MethodType HOOK_TYPE = MethodType.methodType(void.class, PersistentEntity.class,
+                                                                      boolean.class);
+
+    private final MethodHandle[] preExecuteHooks;
+    private final MethodHandle[] postExecuteHooks;
+
+    private EntityLifecycleHooks(Class<?> entityClass)
+    {
+        this.preExecuteHooks = resolveHooks(entityClass, PreExecute.class);
+        this.postExecuteHooks = resolveHooks(entityClass, PostExecute.class);
+    }
+
+    /**
+     * Get the lifecycle hooks of the given entity class.
+     *
+     * @param entityClass the entity class.
+     * @return the lifecycle hooks of the entity class.
+     */
+    static EntityLifecycleHooks forClass(Class<?> entityClass)
+    {
+        EntityLifecycleHooks hooks = HOOKS.get(entityClass);
+        if (hooks == null)
+        {
+            hooks = new EntityLifecycleHooks(entityClass);
+            EntityLifecycleHooks existing = HOOKS.putIfAbsent(entityClass, hooks);
+            if (existing != null)
+            {
+                hooks = existing;
+            }
+        }
+        return hooks;
+    }
+
+    /**
+     * Invoke the hooks associated with the given annotation.
+     *
+     * @param annotation    either {@link PreExecute} or {@link PostExecute}.
+     * @param entity        the entity on which the hooks should be invoked.
+     * @param entityDeleted true if the entity is being deleted.
+     * @throws AppRuntimeException if any of the hooks fails.
+     */
+    void invoke(Class<? extends Annotation> annotation, PersistentEntity entity, boolean entityDeleted)
+            throws AppRuntimeException
+    {
+        MethodHandle[] hooks = PreExecute.class.equals(annotation) ? preExecuteHooks :
+                               PostExecute.class.equals(annotation) ? postExecuteHooks : null;
+        if (hooks == null)
+        {
+            return;
+        }
+
+        try
+        {
+            for (MethodHandle hook : hooks)
+            {
+                hook.invokeExact(entity, entityDeleted);
+            }
+        }
+        catch (AppRuntimeException | Error e)
+        {
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            throw new AppRuntimeException(t);
+        }
+    }
+
+    private static MethodHandle[] resolveHooks(Class<?> entityClass, Class<? extends Annotation> annotation)
+    {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<MethodHandle> hooks = new ArrayList<>(2);
+
+        Class<?> clazz = entityClass;
+        while (PersistentEntity.class.isAssignableFrom(clazz))
+        {
+            for (Method m : clazz.getDeclaredMethods())
+            {
+                if (m.isAnnotationPresent(annotation))
+                {
+                    Class[] params = m.getParameterTypes();
+                    if (params.length == 1 && params[0] == boolean.class)
+                    {
+                        try
+                        {
+                            m.setAccessible(true);
+                            hooks.add(lookup.unreflect(m).asType(HOOK_TYPE));
+                        }
+                        catch (IllegalAccessException e)
+                        {
+                            throw new AppRuntimeException(e);
+                        }
+                    }
+                }
+            }
+            clazz = clazz.getSuperclass();
+        }
+
+        return hooks.toArray(new MethodHandle[hooks.size()]);
+    }
+}
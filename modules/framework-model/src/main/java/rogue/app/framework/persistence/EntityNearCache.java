@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.persistence;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, per-instance cache of the entities of a single entity class, that sits in front of the
+ * {@link MemcachedScoped} tier. Entries are evicted based on size and time to live, and are considered stale as soon as
+ * the revision of the entity class changes.
+ * <p/>
+ * Entities held in this cache are shared across requests, hence callers must never modify them directly. Use
+ * {@link rogue.app.framework.model.PersistentObject#getMutableInstance()} instead.
+ */
+final class EntityNearCache
+{
+    private final Cache<Key, Entry> cache;
+
+    EntityNearCache(int maxSize, int timeToLive)
+    {
+        this.cache = CacheBuilder.newBuilder()
+                                 .maximumSize(maxSize)
+                                 .expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                                 .build();
+    }
+
+    /**
+     * Get the cached entity identified by the given key, provided it was cached at the given revision.
+     *
+     * @param key      the entity key.
+     * @param revision the current revision of the entity class.
+     * @return the cached entity, or null if no such entity exists or the cached copy is stale.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(Key key, int revision)
+    {
+        if (key == null)
+        {
+            return null;
+        }
+
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null)
+        {
+            return null;
+        }
+
+        if (entry.revision != revision)
+        {
+            cache.invalidate(key);
+            return null;
+        }
+        return (T) entry.entity;
+    }
+
+    /**
+     * Cache the given entity against the revision at which it was read.
+     *
+     * @param key      the entity key.
+     * @param entity   the entity.
+     * @param revision the revision of the entity class at the time the entity was read.
+     */
+    void put(Key key, Object entity, int revision)
+    {
+        if (key != null && entity != null)
+        {
+            cache.put(key, new Entry(entity, revision));
+        }
+    }
+
+    /**
+     * Discard the entity identified by the given key.
+     *
+     * @param key the entity key.
+     */
+    void remove(Key key)
+    {
+        if (key != null)
+        {
+            cache.invalidate(key);
+        }
+    }
+
+    private static final class Entry
+    {
+        private final Object entity;
+        private final int revision;
+
+        private Entry(Object entity, int revision)
+        {
+            this.entity = entity;
+            this.revision = revision;
+        }
+    }
+}
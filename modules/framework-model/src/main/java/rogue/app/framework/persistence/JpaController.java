@@ -16,9 +16,11 @@
 
 package rogue.app.framework.persistence;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import org.apache.commons.lang.StringUtils;
+import com.google.appengine.datanucleus.query.JPACursorHelper;
+import com.google.common.primitives.Ints;
 import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.event.ChangeEvent;
 import rogue.app.framework.event.ChangeListenerFor;
@@ -33,11 +35,16 @@ import rogue.app.framework.persistence.annotations.ParentRef;
 import rogue.app.framework.util.ScopedStateHolder;
 import rogue.app.framework.util.StateHolder;
 
-import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.RequestScoped;
 import javax.persistence.*;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,14 +55,27 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
 {
     private static final String CLASS_NAME = JpaController.class.getName();
     private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
-    private static final Map<Class<? extends PersistentObject>, JpaController<? extends PersistentObject>>
-            controllersMap = new HashMap<>();
-    private static final Map<Class<? extends PersistentObject>, Class<? extends PersistentEntity>> classMappingReference
-            = new HashMap<>();
-    private static final Map<Class<? extends PersistentObject>, List<Method>> changeListenerMethods = new HashMap<>(3);
+    private static final ConcurrentMap<Class<? extends PersistentObject>, JpaController<? extends PersistentObject>>
+            controllersMap = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<? extends PersistentObject>, Class<? extends PersistentEntity>>
+            classMappingReference = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<? extends PersistentObject>, List<MethodHandle>> changeListeners =
+            new ConcurrentHashMap<>(3);
+    private static final MethodType CHANGE_LISTENER_TYPE = MethodType.methodType(void.class, ChangeEvent.class);
+    /**
+     * Maximum number of entities written to the datastore within a single transaction.
+     */
+    private static final int WRITE_BATCH_SIZE = 500;
+    /**
+     * Maximum number of entity groups that a single cross-group transaction can span.
+     */
+    private static final int MAX_XG_GROUPS = 25;
     private Map<String, String> namedQueries = new HashMap<>(6);
 
-    private static final String ANNOTATIONS_PROCESSED = CLASS_NAME + "_annotations_processed";
+    /**
+     * Set once all the annotated entity classes and change listeners have been registered.
+     */
+    private static volatile boolean annotationsProcessed;
 
 
     ///
@@ -65,6 +85,11 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
     private Class<? extends PersistentEntity> entityClass;
     private transient Constructor<? extends PersistentEntity> constructor;
     private Class<? extends Annotation> cacheScope;
+    private EntityNearCache nearCache;
+    /**
+     * True if the cache scope is shared across requests in memory, i.e., the cached values are not serialized.
+     */
+    private boolean sharedCache;
     private final String cachePrefix;
     private final String cacheRevision;
     private final String findEntitiesCacheKey;
@@ -97,8 +122,17 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
         if (c != null)
         {
             cacheScope = c.preferredScope();
+
+            // Entities cached in memcache are additionally held in a near cache to avoid the deserialization cost.
+            if (MemcachedScoped.class.equals(cacheScope) && c.nearCacheSize() > 0 && c.nearCacheTimeToLive() > 0)
+            {
+                nearCache = new EntityNearCache(c.nearCacheSize(), c.nearCacheTimeToLive());
+            }
         }
 
+        sharedCache = cacheScope != null && !MemcachedScoped.class.equals(cacheScope) &&
+                !RequestScoped.class.equals(cacheScope);
+
         // Create a cache prefix
         cachePrefix = "cache_" + entityClass.getName() + "_";
         cacheRevision = cachePrefix + "revision";
@@ -149,6 +183,17 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
         return entityClass;
     }
 
+    /**
+     * Get the JPQL of a named query associated with the entity class.
+     *
+     * @param namedQuery the name of the query.
+     * @return the query string, or null if the entity class does not declare the named query.
+     */
+    String getNamedQueryString(String namedQuery)
+    {
+        return namedQueries.get(namedQuery);
+    }
+
     /**
      * Utility method to construct the key given it's internal ID.
      *
@@ -226,20 +271,129 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
         T entity = null;
         if (id != null)
         {
+            int revision = getRevision();
+            if (nearCache != null)
+            {
+                entity = nearCache.get(id, revision);
+                if (entity != null)
+                {
+                    return entity;
+                }
+            }
+
             StateHolder stateHolder = getStateHolder();
-            String cacheKey = getCacheKey(id);
+            String cacheKey = getCacheKey(id, revision);
 
             entity = stateHolder.get(cacheKey);
 
             if (entity == null && !stateHolder.containsKey(cacheKey))
             {
                 entity = (T) PersistenceUtils.executeJpaCallback(FIND_BY_ID_CALLBACK, false, entityClass, id);
-                stateHolder.put(cacheKey, entity);
+                cache(stateHolder, cacheKey, entity);
+            }
+
+            if (nearCache != null)
+            {
+                nearCache.put(id, PersistenceUtils.detach(entity), revision);
             }
         }
         return entity;
     }
 
+    /**
+     * Find the application objects identified by the given keys. Cached objects are fetched in a single round trip to
+     * the cache, and the remaining objects are looked up by key, using a single entity manager. Unlike a query, a
+     * lookup by key is strongly consistent, hence objects that have just been written are never missed.
+     *
+     * @param ids the keys of the objects to fetch.
+     * @return the list of objects found, in the order of the specified keys.
+     * @throws AppRuntimeException if the operation fails.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> findByIds(Collection<Key> ids) throws AppRuntimeException
+    {
+        if (ids == null || ids.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+
+        int revision = getRevision();
+        Map<Key, T> entities = new HashMap<>(ids.size());
+        Map<String, Key> cacheKeys = new LinkedHashMap<>(ids.size());
+        for (Key id : ids)
+        {
+            if (id == null || entities.containsKey(id))
+            {
+                continue;
+            }
+
+            T entity = nearCache != null ? nearCache.<T>get(id, revision) : null;
+            if (entity != null)
+            {
+                entities.put(id, entity);
+            }
+            else
+            {
+                cacheKeys.put(getCacheKey(id, revision), id);
+            }
+        }
+
+        if (!cacheKeys.isEmpty())
+        {
+            StateHolder stateHolder = getStateHolder();
+            Map<String, T> cached = stateHolder.getAll(cacheKeys.keySet());
+
+            List<Key> missingKeys = new ArrayList<>(cacheKeys.size());
+            for (Map.Entry<String, Key> entry : cacheKeys.entrySet())
+            {
+                if (cached.containsKey(entry.getKey()))
+                {
+                    entities.put(entry.getValue(), cached.get(entry.getKey()));
+                }
+                else
+                {
+                    missingKeys.add(entry.getValue());
+                }
+            }
+
+            if (!missingKeys.isEmpty())
+            {
+                List<T> fetched = (List<T>) PersistenceUtils.executeJpaCallback(FIND_BY_IDS_CALLBACK, false,
+                                                                                 entityClass, missingKeys);
+                Map<String, Object> toCache = new HashMap<>(missingKeys.size());
+                for (T entity : fetched)
+                {
+                    entities.put(entity.getId(), entity);
+                }
+                for (Key id : missingKeys)
+                {
+                    T entity = entities.get(id);
+                    toCache.put(getCacheKey(id, revision), sharedCache ? PersistenceUtils.detach(entity) : entity);
+                }
+                stateHolder.putAll(toCache);
+            }
+
+            if (nearCache != null)
+            {
+                for (Key id : cacheKeys.values())
+                {
+                    nearCache.put(id, PersistenceUtils.detach(entities.get(id)), revision);
+                }
+            }
+        }
+
+        List<T> result = new ArrayList<>(ids.size());
+        for (Key id : ids)
+        {
+            T entity = id != null ? entities.get(id) : null;
+            if (entity != null)
+            {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -287,13 +441,14 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
         {
             if (query instanceof JpaQuery)
             {
+                // The results carry the cursor of the following page.
                 JpaQuery jpaQuery = (JpaQuery) query;
                 return jpaQuery.isNamedQuery() ?
-                       this.<T>executeNamedQueryListResult(jpaQuery.getQuery(), jpaQuery.getStartIndex(),
-                                                           jpaQuery.getMaxResults(),
+                       this.<T>executeNamedQueryListResult(jpaQuery.getQuery(), jpaQuery.getCursor(),
+                                                           jpaQuery.getStartIndex(), jpaQuery.getMaxResults(),
                                                            jpaQuery.getQueryParams()) :
-                       this.<T>executeQueryListResult(jpaQuery.getQuery(), jpaQuery.getStartIndex(),
-                                                      jpaQuery.getMaxResults(),
+                       this.<T>executeQueryListResult(jpaQuery.getQuery(), jpaQuery.getCursor(),
+                                                      jpaQuery.getStartIndex(), jpaQuery.getMaxResults(),
                                                       jpaQuery.getQueryParams());
             }
             else if (query instanceof CompositeQuery)
@@ -301,9 +456,9 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                 // TODO: Ugly! Clean this up.
                 CompositeQuery cq = (CompositeQuery) query;
                 Map<String, Object> params = new HashMap<>();
-                params.put("parent", cq.getParent());
+                params.put("parent", cq.getParent() != null ? cq.getParent().getId() : null);
 
-                String cacheKey = getCacheKey(findEntitiesCacheKey, null, cq.getStartIndex(), cq.getMaxResults());
+                String cacheKey = getCacheKey(findEntitiesCacheKey, params, cq.getStartIndex(), cq.getMaxResults());
                 StateHolder stateHolder = getStateHolder();
 
                 List<T> list = stateHolder.get(cacheKey);
@@ -312,7 +467,7 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                     list = (List<T>) PersistenceUtils
                             .executeJpaCallback(FIND_ENTITIES_CALLBACK, false, entityClass, cq.getStartIndex(),
                                                 cq.getMaxResults(), cq.getParent());
-                    stateHolder.put(cacheKey, list);
+                    cache(stateHolder, cacheKey, list);
                 }
                 return list;
 
@@ -342,16 +497,16 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
             {
                 CompositeQuery cq = (CompositeQuery) query;
                 Map<String, Object> params = new HashMap<>();
-                params.put("parent", cq.getParent());
+                params.put("parent", cq.getParent() != null ? cq.getParent().getId() : null);
 
-                String cacheKey = getCacheKey(getEntitiesCountCacheKey, null, 0, -1);
+                String cacheKey = getCacheKey(getEntitiesCountCacheKey, params, 0, -1);
                 StateHolder stateHolder = getStateHolder();
                 Long count = stateHolder.get(cacheKey);
                 if (count == null && !stateHolder.containsKey(cacheKey))
                 {
                     count = PersistenceUtils
                             .executeJpaCallback(FIND_ENTITIES_COUNT_CALLBACK, false, entityClass, cq.getParent());
-                    stateHolder.put(cacheKey, count);
+                    cache(stateHolder, cacheKey, count);
                 }
                 return count == null ? 0 : count;
             }
@@ -378,7 +533,7 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
         {
             list = (List<T>) PersistenceUtils
                     .executeJpaCallback(FIND_ENTITIES_CALLBACK, false, entityClass, startIndex, itemCount);
-            stateHolder.put(cacheKey, list);
+            cache(stateHolder, cacheKey, list);
         }
         return list;
     }
@@ -397,7 +552,7 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
         if (count == null && !stateHolder.containsKey(cacheKey))
         {
             count = PersistenceUtils.executeJpaCallback(FIND_ENTITIES_COUNT_CALLBACK, false, entityClass);
-            stateHolder.put(cacheKey, count);
+            cache(stateHolder, cacheKey, count);
         }
         return count == null ? 0 : count;
     }
@@ -427,31 +582,96 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
 
         invokeAnnotatedMethods((PersistentEntity) entity, PreExecute.class, false);
         PersistenceUtils.executeJpaCallback(PERSIST_ENTITY_CALLBACK, true, entityClass, entity);
-        invokeAnnotatedMethods((PersistentEntity) entity, PostExecute.class, false);
-        // Clear the entity from the cache so that it can be fetched again afresh.
-        getStateHolder().remove(getCacheKey(entity.getId()));
+        // Clear the entity from the cache so that it can be fetched again afresh, before the hooks run, as they do in
+        // saveAll and deleteById.
+        evict(entity.getId());
         incrementRevision();
+        invokeAnnotatedMethods((PersistentEntity) entity, PostExecute.class, false);
+        if (oldObject == null)
+        {
+            CountService.increment(this, 1);
+        }
+
+        fireChangeEvent(oldObject, entity);
+    }
+
+    /**
+     * Persist the given entities, using a single entity manager. Root entities are written together in cross-group
+     * transactions of at most {@link #MAX_XG_GROUPS} entities, while child entities that belong to the same entity
+     * group are written together within a single transaction, in batches of at most {@link #WRITE_BATCH_SIZE} entities.
+     * The revision of the entity class is incremented once, and the change events are fired after all the writes have
+     * been committed.
+     *
+     * @param entities the entities to persist.
+     * @throws AppRuntimeException if the operation fails.
+     */
+    @SuppressWarnings("unchecked")
+    public void saveAll(Collection<T> entities) throws AppRuntimeException
+    {
+        if (entities == null || entities.isEmpty())
+        {
+            return;
+        }
 
-        T newObject = entity;
-        List<Method> changeListeners = changeListenerMethods.get(appObjectClass);
-        if (changeListeners != null && !changeListeners.isEmpty())
+        List<T> toSave = new ArrayList<>(entities.size());
+        List<T> oldObjects = new ArrayList<>(entities.size());
+        List<Key> keys = new ArrayList<>(entities.size());
+        for (T entity : entities)
         {
-            ChangeEvent<T> event = new ChangeEvent<>(this, oldObject, newObject);
-            for (Method m : changeListeners)
+            if (entity == null)
             {
-                try
-                {
-                    m.setAccessible(true);
-                    m.invoke(null, event);
-                    m.setAccessible(false);
-                }
-                catch (IllegalAccessException | InvocationTargetException e)
-                {
-                    LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to invoke change listener on method.",
-                                e);
-                }
+                throw new AppRuntimeException("Entity cannot be null.");
+            }
+
+            if (entity instanceof Delegation)
+            {
+                entity = ((Delegation<T>) entity).getDelegate();
+            }
+
+            toSave.add(entity);
+            oldObjects.add(entity.getBaseResource());
+            keys.add(entity.getId());
+        }
+
+        for (T entity : toSave)
+        {
+            invokeAnnotatedMethods((PersistentEntity) entity, PreExecute.class, false);
+        }
+
+        try
+        {
+            PersistenceUtils.executeJpaCallback(PERSIST_ENTITIES_CALLBACK, false, entityClass,
+                                                partitionByEntityGroup(toSave, keys));
+        }
+        finally
+        {
+            // Batches may have been committed before a failure, hence always clear the entities from the cache.
+            for (T entity : toSave)
+            {
+                evict(entity.getId());
+            }
+            incrementRevision();
+        }
+
+        for (T entity : toSave)
+        {
+            invokeAnnotatedMethods((PersistentEntity) entity, PostExecute.class, false);
+        }
+
+        int created = 0;
+        for (T oldObject : oldObjects)
+        {
+            if (oldObject == null)
+            {
+                created++;
             }
         }
+        CountService.increment(this, created);
+
+        for (int i = 0; i < toSave.size(); i++)
+        {
+            fireChangeEvent(oldObjects.get(i), toSave.get(i));
+        }
     }
 
     /**
@@ -486,24 +706,64 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * The entities are deleted in batches, see {@link #saveAll(Collection)}, so the lifecycle hooks are not
+     * interleaved with the deletes anymore: the {@link PreExecute} hooks of all the entities are invoked before any of
+     * them is deleted, and the {@link PostExecute} hooks after all of them have been deleted. A hook that vetoes the
+     * operation, by throwing an exception, hence prevents the whole batch from being deleted.
      */
     @Override
     public void deleteById(Key... entityKeys) throws AppRuntimeException
     {
         if (entityKeys != null && entityKeys.length != 0)
         {
-            StateHolder stateHolder = getStateHolder();
-
+            Set<Key> uniqueKeys = new LinkedHashSet<>(entityKeys.length);
             for (Key k : entityKeys)
             {
-                PersistentEntity entity = PersistenceUtils.getAppObject(entityClass, k);
-                invokeAnnotatedMethods(entity, PreExecute.class, true);
-                PersistenceUtils.executeJpaCallback(DELETE_ENTITY_BY_ID_CALLBACK, true, entityClass, k);
-                invokeAnnotatedMethods(entity, PostExecute.class, true);
+                if (k != null)
+                {
+                    uniqueKeys.add(k);
+                }
+            }
+            List<Key> keys = new ArrayList<>(uniqueKeys);
 
-                stateHolder.remove(getCacheKey(k));
+            if (keys.isEmpty())
+            {
+                return;
+            }
+
+            // Load all the entities in one go, for the benefit of the lifecycle hooks.
+            Map<Key, PersistentEntity> entities = new HashMap<>(keys.size());
+            for (T entity : findByIds(keys))
+            {
+                entities.put(entity.getId(), (PersistentEntity) entity);
+            }
+
+            for (Key k : keys)
+            {
+                invokeAnnotatedMethods(entities.get(k), PreExecute.class, true);
+            }
+
+            try
+            {
+                PersistenceUtils.executeJpaCallback(DELETE_ENTITIES_BY_ID_CALLBACK, false, entityClass,
+                                                    partitionByEntityGroup(keys, keys));
+            }
+            finally
+            {
+                for (Key k : keys)
+                {
+                    evict(k);
+                }
+                incrementRevision();
+            }
+
+            CountService.increment(this, -entities.size());
+
+            for (Key k : keys)
+            {
+                invokeAnnotatedMethods(entities.get(k), PostExecute.class, true);
             }
-            incrementRevision();
         }
     }
 
@@ -529,7 +789,7 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                                                         entityClass.getName()));
         }
 
-        String cacheKey = getCacheKey(namedQueries.get(namedQuery), params, startIndex, itemCount);
+        String cacheKey = getCacheKey(namedQuery, params, startIndex, itemCount);
 
         StateHolder stateHolder = getStateHolder();
         List<E> result = stateHolder.get(cacheKey);
@@ -539,7 +799,49 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
             result = PersistenceUtils.executeJpaCallback(GENERIC_NAMED_QUERY_LIST_RESULT, false, null,
                                                          namedQuery, startIndex, itemCount, params);
 
-            stateHolder.put(cacheKey, result);
+            cache(stateHolder, cacheKey, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Execute a given named query, associated with the entity managed by this controller, starting at the given
+     * datastore cursor. Unlike a plain start index, the cost of the query does not depend on the number of results that
+     * precede the cursor.
+     *
+     * @param namedQuery the named query to execute
+     * @param cursor     the web safe cursor to start from, or null to start from the first result.
+     * @param startIndex the number of results to skip after the cursor.
+     * @param itemCount  the maximum number of items in the result
+     * @param params     the query parameters that should be applied to the query.
+     * @return a list of results, along with the cursor that points after the last one.
+     * @throws AppRuntimeException if the operation fails.
+     */
+    @SuppressWarnings("unchecked")
+    public <E> CursorList<E> executeNamedQueryListResult(String namedQuery, String cursor, Integer startIndex,
+                                                         Integer itemCount, Map<String, Object> params)
+            throws AppRuntimeException
+    {
+        // Verify if the named query belongs to the entity class that is being accessed or not.
+        if (!namedQueries.containsKey(namedQuery))
+        {
+            throw new AppRuntimeException(String.format("Unable to find NamedQuery: %s on entity class %s", namedQuery,
+                                                        entityClass.getName()));
+        }
+
+        String cacheKey = getCacheKey(namedQuery + " @" + cursor, params, startIndex, itemCount);
+
+        StateHolder stateHolder = getStateHolder();
+        CursorList<E> result = stateHolder.get(cacheKey);
+
+        if (result == null)
+        {
+            result = (CursorList<E>) PersistenceUtils
+                    .executeJpaCallback(GENERIC_NAMED_QUERY_LIST_RESULT, false, null, namedQuery, startIndex,
+                                        itemCount, params, cursor);
+
+            cache(stateHolder, cacheKey, result);
         }
 
         return result;
@@ -562,7 +864,7 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                                                         entityClass.getName()));
         }
 
-        String cacheKey = getCacheKey(namedQueries.get(namedQuery), params, null, null);
+        String cacheKey = getCacheKey(namedQuery, params, null, null);
         StateHolder stateHolder = getStateHolder();
         E result = stateHolder.get(cacheKey);
 
@@ -571,7 +873,7 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
             result = (E) PersistenceUtils.executeJpaCallback(GENERIC_NAMED_QUERY_SINGLE_RESULT, false,
                                                              null, namedQuery, params);
 
-            stateHolder.put(cacheKey, result);
+            cache(stateHolder, cacheKey, result);
         }
         return result;
     }
@@ -613,7 +915,42 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
             result = PersistenceUtils.executeJpaCallback(GENERIC_QUERY_LIST_RESULT, false, null,
                                                          query, startIndex, itemCount, params);
 
-            stateHolder.put(cacheKey, result);
+            cache(stateHolder, cacheKey, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Execute the given query, associated with the entity managed by this controller, starting at the given datastore
+     * cursor.
+     *
+     * @param query      the query to execute
+     * @param cursor     the web safe cursor to start from, or null to start from the first result.
+     * @param startIndex the number of results to skip after the cursor.
+     * @param itemCount  the maximum number of items in the result
+     * @param params     the query parameters that should be applied to the query.
+     * @return a list of results, along with the cursor that points after the last one.
+     * @throws AppRuntimeException if the operation fails.
+     * @see #executeNamedQueryListResult(String, String, Integer, Integer, java.util.Map)
+     */
+    @SuppressWarnings("unchecked")
+    public <E> CursorList<E> executeQueryListResult(String query, String cursor, Integer startIndex,
+                                                    Integer itemCount, Map<String, Object> params)
+            throws AppRuntimeException
+    {
+        String cacheKey = getCacheKey(query + " @" + cursor, params, startIndex, itemCount);
+
+        StateHolder stateHolder = getStateHolder();
+        CursorList<E> result = stateHolder.get(cacheKey);
+
+        if (result == null)
+        {
+            result = (CursorList<E>) PersistenceUtils
+                    .executeJpaCallback(GENERIC_QUERY_LIST_RESULT, false, null, query, startIndex, itemCount, params,
+                                        cursor);
+
+            cache(stateHolder, cacheKey, result);
         }
 
         return result;
@@ -638,7 +975,7 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
         {
             result = (E) PersistenceUtils.executeJpaCallback(GENERIC_QUERY_SINGLE_RESULT, false,
                                                              null, query, params);
-            stateHolder.put(cacheKey, result);
+            cache(stateHolder, cacheKey, result);
         }
         return result;
     }
@@ -653,45 +990,50 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
     @SuppressWarnings("unchecked")
     public static <E extends PersistentObject<E>> JpaController<E> getController(Class<E> appObjClassRef)
     {
-        initController();
-
+        // Hot path, a single lock free read.
         JpaController<E> controller = (JpaController<E>) controllersMap.get(appObjClassRef);
+        if (controller != null)
+        {
+            return controller;
+        }
 
-        if (controller == null)
+        initController();
+
+        // Check if any of the super interfaces / classes have registered an JpaController.
+        Class<?>[] ifs = appObjClassRef.getInterfaces();
+        for (Class c : ifs)
         {
-            // Check if any of the super interfaces / classes have registered an JpaController.
-            Class<?>[] ifs = appObjClassRef.getInterfaces();
-            for (Class c : ifs)
+            if (c.isInterface() && PersistentObject.class.isAssignableFrom(c))
             {
-                if (c.isInterface() && PersistentObject.class.isAssignableFrom(c))
-                {
-                    controller = (JpaController<E>) controllersMap.get(c);
-                }
-                if (controller != null)
-                {
-                    break;
-                }
+                controller = (JpaController<E>) controllersMap.get(c);
+            }
+            if (controller != null)
+            {
+                break;
             }
         }
 
         if (controller == null)
         {
             controller = new JpaController<>(appObjClassRef);
-            controllersMap.put(appObjClassRef, controller);
         }
-        return controller;
+
+        JpaController<E> existing = (JpaController<E>) controllersMap.putIfAbsent(appObjClassRef, controller);
+        return existing != null ? existing : controller;
     }
 
     @SuppressWarnings("unchecked")
     private static void initController()
     {
         final String METHOD_NAME = "initController";
-        if (!isAnnotationsProcessed())
+        if (!annotationsProcessed)
         {
             synchronized (JpaController.class)
             {
-                if (!isAnnotationsProcessed())
+                if (!annotationsProcessed)
                 {
+                    Map<Class<? extends PersistentObject>, List<Method>> listeners = new HashMap<>();
+                    MethodHandles.Lookup lookup = MethodHandles.lookup();
                     try
                     {
                         // Process classes
@@ -747,11 +1089,11 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                                 {
                                     Class<? extends PersistentObject> pClass =
                                             (Class<? extends PersistentObject>) sourceClass;
-                                    List<Method> mList = changeListenerMethods.get(pClass);
+                                    List<Method> mList = listeners.get(pClass);
                                     if (mList == null)
                                     {
                                         mList = new ArrayList<>();
-                                        changeListenerMethods.put(pClass, mList);
+                                        listeners.put(pClass, mList);
                                     }
                                     if (!mList.contains(method))
                                     {
@@ -776,7 +1118,27 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                         LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to initialize application.", e);
                     }
 
-                    markAnnotationsProcessed();
+                    // Publish the listeners as immutable lists of method handles, so that they can be invoked without any
+                    // further reflection or locking.
+                    for (Map.Entry<Class<? extends PersistentObject>, List<Method>> entry : listeners.entrySet())
+                    {
+                        List<MethodHandle> handles = new ArrayList<>(entry.getValue().size());
+                        for (Method method : entry.getValue())
+                        {
+                            try
+                            {
+                                method.setAccessible(true);
+                                handles.add(lookup.unreflect(method).asType(CHANGE_LISTENER_TYPE));
+                            }
+                            catch (IllegalAccessException e)
+                            {
+                                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                                            "Failed to register change listener: " + method, e);
+                            }
+                        }
+                        changeListeners.put(entry.getKey(), Collections.unmodifiableList(handles));
+                    }
+                    annotationsProcessed = true;
                 }
             }
         }
@@ -802,69 +1164,92 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
      */
     protected String getCacheKey(Key id)
     {
-        return id != null ? cachePrefix + id.getId() + " / " + getRevision() : null;
+        return id != null ? getCacheKey(id, getRevision()) : null;
     }
 
-    protected String getCacheKey(String query, Map<String, Object> params, Integer start, Integer count)
+    private String getCacheKey(Key id, int revision)
     {
-        StringBuilder bldr = new StringBuilder(100);
-        bldr.append(query);
-        if (params != null && !params.isEmpty())
-        {
-            for (Map.Entry<String, Object> entry : params.entrySet())
-            {
-                if (StringUtils.isEmpty(entry.getKey()))
-                {
-                    continue;
-                }
-
-                String key = ":" + entry.getKey();
-                Object value = entry.getValue();
-                int idx = -1;
-                while ((idx = bldr.indexOf(key, idx + 1)) != -1)
-                {
-                    bldr.replace(idx, idx + key.length(), value != null ? value.toString() : "null");
-                }
-            }
-        }
+        return cachePrefix + id.getId() + " / " + revision;
+    }
 
-        // Add the start & stop indices
-        if (start != null)
-        {
-            bldr.append(" start=").append(start);
-        }
-        if (count != null)
-        {
-            bldr.append(" count=").append(count);
-        }
+    /**
+     * Centralize the logic of generating cache keys for queries.
+     *
+     * @param queryId the named query, or the query string itself.
+     * @param params  the query parameters.
+     * @param start   the index of the first result.
+     * @param count   the maximum number of results.
+     * @return the cache key.
+     */
+    protected String getCacheKey(String queryId, Map<String, Object> params, Integer start, Integer count)
+    {
+        return getQueryCacheKey(queryId, params, start, count).getDigest();
+    }
 
-        // Append the revision number
-        bldr.append(" / ").append(getRevision());
-        return bldr.toString();
+    /**
+     * Construct the structured key that identifies the cached results of a query.
+     *
+     * @param queryId the named query, or the query string itself.
+     * @param params  the query parameters.
+     * @param start   the index of the first result.
+     * @param count   the maximum number of results.
+     * @return the query cache key.
+     */
+    protected QueryCacheKey getQueryCacheKey(String queryId, Map<String, Object> params, Integer start,
+                                             Integer count)
+    {
+        return new QueryCacheKey(cachePrefix, queryId, params, start, count, getRevision());
     }
 
-    protected int getRevision()
+    /**
+     * Get the current revision of the entity class. The revision is read from memcache once per request and memoized
+     * in the request scope thereafter.
+     *
+     * @return the current revision of the entity class.
+     */
+    public int getRevision()
     {
         // This is kinda flaky, but should work for a large number of use-cases. Worse case scenario, you will need
         // to flush the cache.
 
-        Integer rev = ScopedStateHolder.getStateHolder(MemcachedScoped.class).get(cacheRevision);
+        StateHolder requestStateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
+        Number rev = requestStateHolder.get(cacheRevision);
         if (rev == null)
         {
-            rev = 0;
+            rev = ScopedStateHolder.getStateHolder(MemcachedScoped.class).get(cacheRevision);
+            if (rev == null)
+            {
+                rev = 0;
+            }
+            requestStateHolder.put(cacheRevision, rev);
         }
-        return rev;
+        return rev.intValue();
     }
 
+    /**
+     * Atomically increment the revision of the entity class, thereby invalidating all cached results, and refresh
+     * the revision memoized in the current request. If the revision cannot be incremented, the memoized revision is
+     * discarded, so that the following reads go back to memcache rather than trusting a revision that is known to be
+     * stale. Either way, the nested resource tree of the class held by this instance is discarded.
+     */
     protected void incrementRevision()
     {
-        StateHolder stateHolder = ScopedStateHolder.getStateHolder(MemcachedScoped.class);
-        Integer rev = stateHolder.get(cacheRevision);
-        if (rev == null)
+        final String METHOD_NAME = "incrementRevision";
+
+        Long rev = ScopedStateHolder.getStateHolder(MemcachedScoped.class).increment(cacheRevision, 1);
+        NestedResourceTree.invalidate(getAppObjectClass());
+        StateHolder requestStateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
+        if (rev != null)
+        {
+            requestStateHolder.put(cacheRevision, Ints.checkedCast(rev));
+        }
+        else
         {
-            rev = 0;
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                        "Unable to increment the revision of " + entityClass.getName() +
+                                ". Cached results may be stale.");
+            requestStateHolder.remove(cacheRevision);
         }
-        stateHolder.put(cacheRevision, ++rev);
     }
 
     protected StateHolder getStateHolder()
@@ -872,54 +1257,126 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
         return ScopedStateHolder.getStateHolder(cacheScope);
     }
 
-    @SuppressWarnings("unchecked")
-    private static void invokeAnnotatedMethods(PersistentEntity entity, Class annotation, boolean entityDeleted)
+    /**
+     * Cache the given result. Within a unit of work, the entities remain managed until the end of the request, hence
+     * caches that hold on to the very instances beyond the request get a detached copy instead.
+     */
+    private void cache(StateHolder stateHolder, String cacheKey, Object value)
     {
-        if (entity == null || annotation == null)
+        stateHolder.put(cacheKey, sharedCache ? PersistenceUtils.detach(value) : value);
+    }
+
+    /**
+     * Clear the entity identified by the given key from the caches.
+     *
+     * @param id the entity key.
+     */
+    private void evict(Key id)
+    {
+        if (id != null)
         {
-            return;
+            getStateHolder().remove(getCacheKey(id));
+            if (nearCache != null)
+            {
+                nearCache.remove(id);
+            }
         }
+    }
+
+    /**
+     * Notify the registered change listeners about a persisted entity.
+     *
+     * @param oldObject the base resource of the entity, if any.
+     * @param newObject the persisted entity.
+     */
+    private void fireChangeEvent(T oldObject, T newObject)
+    {
+        final String METHOD_NAME = "fireChangeEvent";
 
-        Class clazz = entity.getClass();
-        while (PersistentEntity.class.isAssignableFrom(clazz))
+        List<MethodHandle> listeners = changeListeners.get(appObjectClass);
+        if (listeners != null && !listeners.isEmpty())
         {
-            try
+            ChangeEvent<T> event = new ChangeEvent<>(this, oldObject, newObject);
+            for (MethodHandle listener : listeners)
             {
-                Method[] methods = clazz.getDeclaredMethods();
-                for (Method m : methods)
+                try
                 {
-                    if (m.isAnnotationPresent(annotation))
-                    {
-                        Class[] params = m.getParameterTypes();
-                        if (params.length == 1 && params[0] == boolean.class)
-                        {
-                            m.setAccessible(true);
-                            m.invoke(entity, entityDeleted);
-                            m.setAccessible(false);
-                        }
-                    }
+                    listener.invokeExact(event);
+                }
+                catch (Error e)
+                {
+                    throw e;
+                }
+                catch (Throwable t)
+                {
+                    LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to invoke change listener on method.",
+                                t);
                 }
-                clazz = clazz.getSuperclass();
-            }
-            catch (Exception e)
-            {
-                throw (e instanceof AppRuntimeException) ? (AppRuntimeException) e : new AppRuntimeException(e);
             }
         }
     }
 
-    private static boolean isAnnotationsProcessed()
+    /**
+     * Partition the given items in to write batches, each of which is written within a single transaction. Root
+     * entities, including new ones that do not have a key yet, are each an entity group of their own, hence they are
+     * packed in to cross-group batches of at most {@link #MAX_XG_GROUPS} items. Child entities are grouped by the root
+     * of their key, and each group is split in to batches of at most {@link #WRITE_BATCH_SIZE} items.
+     *
+     * @param items the items to partition.
+     * @param keys  the keys of the items, in the same order as the items.
+     * @return the write batches.
+     */
+    private static <E> List<List<E>> partitionByEntityGroup(List<E> items, List<Key> keys)
     {
+        List<List<E>> batches = new ArrayList<>();
+        List<E> roots = new ArrayList<>();
+        Map<Key, List<E>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++)
+        {
+            Key root = keys.get(i);
+            if (root == null || root.getParent() == null)
+            {
+                roots.add(items.get(i));
+                continue;
+            }
 
-        StateHolder stateHolder = ScopedStateHolder.getStateHolder(ApplicationScoped.class);
-        Boolean b = stateHolder.get(ANNOTATIONS_PROCESSED);
-        return b != null ? b : false;
+            while (root.getParent() != null)
+            {
+                root = root.getParent();
+            }
+
+            List<E> group = groups.get(root);
+            if (group == null)
+            {
+                group = new ArrayList<>(1);
+                groups.put(root, group);
+            }
+            group.add(items.get(i));
+        }
+
+        for (int i = 0; i < roots.size(); i += MAX_XG_GROUPS)
+        {
+            batches.add(roots.subList(i, Math.min(i + MAX_XG_GROUPS, roots.size())));
+        }
+        for (List<E> group : groups.values())
+        {
+            for (int i = 0; i < group.size(); i += WRITE_BATCH_SIZE)
+            {
+                batches.add(group.subList(i, Math.min(i + WRITE_BATCH_SIZE, group.size())));
+            }
+        }
+        return batches;
     }
 
-    private static void markAnnotationsProcessed()
+    private static void invokeAnnotatedMethods(PersistentEntity entity, Class<? extends Annotation> annotation,
+                                               boolean entityDeleted)
     {
-        StateHolder stateHolder = ScopedStateHolder.getStateHolder(ApplicationScoped.class);
-        stateHolder.put(ANNOTATIONS_PROCESSED, Boolean.TRUE);
+        if (entity == null || annotation == null)
+        {
+            return;
+        }
+
+        EntityLifecycleHooks.forClass(entity.getClass()).invoke(annotation, entity, entityDeleted);
     }
 
     /* ============================================================================================================== *
@@ -946,6 +1403,36 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                 }
             };
 
+    /**
+     * Callback to find a list of entities by their ids, with a get per id. The result is in the order of the ids; ids
+     * that do not match any entity are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    private static final JpaCallback<List<? extends PersistentEntity>> FIND_BY_IDS_CALLBACK =
+            new JpaCallback<List<? extends PersistentEntity>>()
+            {
+                @Override
+                public List<? extends PersistentEntity> execute(EntityManager entityManager, Object... params)
+                        throws AppRuntimeException
+                {
+                    Class<? extends PersistentEntity> clazz = (Class<? extends PersistentEntity>) params[0];
+                    Collection<Key> keys = (Collection<Key>) params[1];
+
+                    // A query on the ids would be eventually consistent, and the datastore runs an IN filter as one
+                    // query per key anyway.
+                    List<PersistentEntity> result = new ArrayList<>(keys.size());
+                    for (Key key : keys)
+                    {
+                        PersistentEntity entity = entityManager.find(clazz, key);
+                        if (entity != null)
+                        {
+                            result.add(entity);
+                        }
+                    }
+                    return result;
+                }
+            };
+
     /**
      * Callback to get list of entities.
      */
@@ -1069,22 +1556,109 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
     };
 
     /**
-     * Callback to delete an entity by its ID.
+     * Callback to persist batches of entities. Each batch is written within its own, possibly cross-group, transaction,
+     * whose puts are sent to the datastore together when it commits.
+     */
+    @SuppressWarnings("unchecked")
+    private static final JpaCallback<Object> PERSIST_ENTITIES_CALLBACK = new JpaCallback<Object>()
+    {
+        @Override
+        public Object execute(EntityManager entityManager, Object... params) throws AppRuntimeException
+        {
+            List<List<PersistentEntity>> batches = (List<List<PersistentEntity>>) params[1];
+            for (List<PersistentEntity> batch : batches)
+            {
+                EntityTransaction trx = entityManager.getTransaction();
+                trx.begin();
+                try
+                {
+                    for (PersistentEntity entity : batch)
+                    {
+                        if (entity.getId() == null)
+                        {
+                            entityManager.persist(entity);
+                        }
+                        else
+                        {
+                            entityManager.merge(entity);
+                        }
+                    }
+                    trx.commit();
+                }
+                finally
+                {
+                    if (trx.isActive())
+                    {
+                        trx.rollback();
+                    }
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Callback to delete batches of entities by their IDs. Each batch is deleted within its own, possibly cross-group,
+     * transaction, whose deletes are sent to the datastore together when it commits.
      */
     @SuppressWarnings("unchecked")
-    private static final JpaCallback DELETE_ENTITY_BY_ID_CALLBACK = new JpaCallback()
+    private static final JpaCallback<Object> DELETE_ENTITIES_BY_ID_CALLBACK = new JpaCallback<Object>()
     {
         @Override
         public Object execute(EntityManager entityManager, Object... params) throws AppRuntimeException
         {
             Class<? extends PersistentEntity> clazz = (Class<? extends PersistentEntity>) params[0];
-            Key key = (Key) params[1];
-            Object entity = entityManager.getReference(clazz, key);
-            entityManager.remove(entity);
+            List<List<Key>> batches = (List<List<Key>>) params[1];
+            for (List<Key> batch : batches)
+            {
+                EntityTransaction trx = entityManager.getTransaction();
+                trx.begin();
+                try
+                {
+                    for (Key key : batch)
+                    {
+                        entityManager.remove(entityManager.getReference(clazz, key));
+                    }
+                    trx.commit();
+                }
+                finally
+                {
+                    if (trx.isActive())
+                    {
+                        trx.rollback();
+                    }
+                }
+            }
             return null;
         }
     };
 
+    /**
+     * Copy the results of a query into a <code>CursorList</code>. The results are iterated over in full, so that the end
+     * cursor is available.
+     *
+     * @param results the results of the query.
+     * @return the copied results, along with the end cursor, if the query supports cursors.
+     */
+    @SuppressWarnings("unchecked")
+    private static CursorList toCursorList(List results)
+    {
+        final String METHOD_NAME = "toCursorList";
+        List copy = new ArrayList(results);
+        String cursor = null;
+        try
+        {
+            Cursor endCursor = JPACursorHelper.getCursor(results);
+            cursor = endCursor != null ? endCursor.toWebSafeString() : null;
+        }
+        catch (RuntimeException e)
+        {
+            // Queries with IN or != filters, for example, do not support cursors.
+            LOGGER.logp(Level.FINEST, CLASS_NAME, METHOD_NAME, "Query does not support cursors.", e);
+        }
+        return new CursorList(copy, cursor);
+    }
+
     /**
      * Generic NamedQuery callback.
      */
@@ -1101,6 +1675,9 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
             Integer maxResults = (Integer) params[3];
 
             Map<String, Object> parameters = (Map<String, Object>) params[4];
+            // The cursor is only passed in by the callers that expect a CursorList
+            boolean cursorRequested = params.length > 5;
+            String cursor = cursorRequested ? (String) params[5] : null;
             Query query = entityManager.createNamedQuery(namedQuery);
 
             if (parameters != null)
@@ -1111,12 +1688,21 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                 }
             }
 
+            if (cursor != null)
+            {
+                query.setHint(JPACursorHelper.CURSOR_HINT, Cursor.fromWebSafeString(cursor));
+            }
+
             if (startResult != null && maxResults != null && maxResults != -1)
             {
                 query.setFirstResult(startResult).setMaxResults(maxResults);
             }
 
             List result = query.getResultList();
+            if (cursorRequested)
+            {
+                return toCursorList(result);
+            }
             if (result.isEmpty())
             {
                 result = Collections.EMPTY_LIST;
@@ -1194,6 +1780,9 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
             Integer maxResults = (Integer) params[3];
 
             Map<String, Object> parameters = (Map<String, Object>) params[4];
+            // The cursor is only passed in by the callers that expect a CursorList
+            boolean cursorRequested = params.length > 5;
+            String cursor = cursorRequested ? (String) params[5] : null;
             Query query = entityManager.createQuery(q);
 
             if (parameters != null)
@@ -1204,12 +1793,21 @@ public class JpaController<T extends PersistentObject<T>> implements AppObjectCo
                 }
             }
 
+            if (cursor != null)
+            {
+                query.setHint(JPACursorHelper.CURSOR_HINT, Cursor.fromWebSafeString(cursor));
+            }
+
             if (startResult != null && maxResults != null && maxResults != -1)
             {
                 query.setFirstResult(startResult).setMaxResults(maxResults);
             }
 
             List result = query.getResultList();
+            if (cursorRequested)
+            {
+                return toCursorList(result);
+            }
             if (result.isEmpty())
             {
                 result = Collections.EMPTY_LIST;
@@ -29,6 +29,7 @@ public class JpaQuery extends AbstractQuery
     private String query;
     private boolean namedQuery;
     private Map<String, Object> queryParams;
+    private String cursor;
 
     public JpaQuery(String query, boolean namedQuery, Map<String, Object> queryParams)
     {
@@ -52,4 +53,26 @@ public class JpaQuery extends AbstractQuery
     {
         return queryParams;
     }
+
+    /**
+     * Get the datastore cursor from which the results should be fetched. When set, the start index is relative to the
+     * position of the cursor.
+     *
+     * @return the web safe representation of the cursor, or null to start from the first result.
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+
+    /**
+     * Set the datastore cursor from which the results should be fetched.
+     *
+     * @param cursor the web safe representation of the cursor, typically obtained from {@link CursorList#getCursor()},
+     *               or null to start from the first result.
+     */
+    public void setCursor(String cursor)
+    {
+        this.cursor = cursor;
+    }
 }
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rogue.app.framework.persistence;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import org.apache.commons.lang.StringUtils;
+import rogue.app.framework.persistence.annotations.ListingField;
+
+import javax.persistence.Column;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Derives listing queries that sort and filter on the datastore, from the base query of a listing and the sort and
+ * filter criteria picked by the user. Only the fields annotated with {@link ListingField} can be sorted and filtered
+ * on; any other criteria are ignored.
+ * <p/>
+ * The derived queries stay within what the datastore can execute:
+ * <ul>
+ * <li>Equality filters are added as is.</li>
+ * <li>At most one property can have a prefix, i.e., an inequality, filter. This includes the <code>LIKE</code>
+ * conditions of the base query. Prefix filters on other properties are ignored.</li>
+ * <li>The property with the inequality filter always comes first in the sort order, the requested sort order is then
+ * applied within it.</li>
+ * </ul>
+ * Prefix filters are executed as a range on the property, which is what the datastore runs for a <code>LIKE</code>
+ * condition anyway, so that the filter values need no escaping. Every combination of properties that is sorted and
+ * filtered on requires a composite index in <code>datastore-indexes.xml</code>. The definition of each such index is
+ * logged, the first time it is used, so that it can be copied into the file. The definitions are also available via
+ * {@link #getIndexDefinitions()}.
+ */
+public final class ListingQueryBuilder
+{
+    private static final String CLASS_NAME = ListingQueryBuilder.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    private static final Pattern FROM = Pattern.compile("\\bFROM\\s+(\\w+)\\s+(?:AS\\s+)?(\\w+)",
+                                                        Pattern.CASE_INSENSITIVE);
+    private static final Pattern WHERE = Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ORDER_BY = Pattern.compile("\\s+ORDER\\s+BY\\s+(.*)$",
+                                                            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final String PARAM_PREFIX = "listingFilter";
+    // Appended to a prefix to get the exclusive upper bound of the values that start with it.
+    private static final String PREFIX_END = "\ufffd";
+    private static final String ASC = "ASC";
+    private static final String DESC = "DESC";
+
+    private static final ConcurrentMap<Class<?>, Map<String, Property>> PROPERTIES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Boolean> INDEX_DEFINITIONS = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor.
+     */
+    private ListingQueryBuilder()
+    {
+    }
+
+    /**
+     * Get the definitions of the composite indexes required by the listing queries derived so far.
+     *
+     * @return the <code>datastore-index</code> definitions.
+     */
+    public static Collection<String> getIndexDefinitions()
+    {
+        return Collections.unmodifiableSet(INDEX_DEFINITIONS.keySet());
+    }
+
+    /**
+     * Derive the query that fetches the rows of a listing, sorted and filtered as requested.
+     *
+     * @param controller the controller of the listed entities.
+     * @param query      the base query of the listing.
+     * @param sortField  the listing property to sort on, may be null.
+     * @param descending true to sort in descending order.
+     * @param filters    the filter values, keyed by listing property, may be null.
+     * @return the derived query, or the base query itself if none of the criteria apply.
+     */
+    public static JpaQuery buildListingQuery(JpaController<?> controller, JpaQuery query, String sortField,
+                                             boolean descending, Map<String, String> filters)
+    {
+        JpaQuery derived = build(controller, query, sortField, descending, filters, false);
+        if (derived != query)
+        {
+            derived.setStartIndex(query.getStartIndex());
+            derived.setMaxResults(query.getMaxResults());
+        }
+        return derived;
+    }
+
+    /**
+     * Derive the query that counts the rows of a listing, filtered as requested.
+     *
+     * @param controller the controller of the listed entities.
+     * @param query      the base count query of the listing.
+     * @param filters    the filter values, keyed by listing property, may be null.
+     * @return the derived query, or the base query itself if none of the filters apply.
+     */
+    public static JpaQuery buildCountQuery(JpaController<?> controller, JpaQuery query, Map<String, String> filters)
+    {
+        return build(controller, query, null, false, filters, true);
+    }
+
+    private static JpaQuery build(JpaController<?> controller, JpaQuery query, String sortField, boolean descending,
+                                  Map<String, String> filters, boolean count)
+    {
+        final String METHOD_NAME = "build";
+        if (query == null)
+        {
+            return null;
+        }
+
+        String jpql = query.isNamedQuery() ? controller.getNamedQueryString(query.getQuery()) : query.getQuery();
+        Matcher from = jpql != null ? FROM.matcher(jpql) : null;
+        if (from == null || !from.find())
+        {
+            return query;
+        }
+
+        String alias = from.group(2);
+        Map<String, Property> properties = getProperties(controller.getEntityClass());
+
+        // 1. Split the base query, and find the properties that it filters on.
+        String base = jpql;
+        String orderClause = null;
+        Matcher orderBy = ORDER_BY.matcher(jpql);
+        if (orderBy.find())
+        {
+            base = jpql.substring(0, orderBy.start());
+            orderClause = orderBy.group(1);
+        }
+
+        Set<String> equalities = new LinkedHashSet<>();
+        String inequality = null;
+        Matcher condition = Pattern.compile("\\b" + alias + "\\.(\\w+)\\s*(LIKE\\b|IN\\b|<>|!=|<=|>=|<|>|=)",
+                                            Pattern.CASE_INSENSITIVE).matcher(base);
+        while (condition.find())
+        {
+            String operator = condition.group(2);
+            if ("=".equals(operator) || "IN".equalsIgnoreCase(operator))
+            {
+                equalities.add(condition.group(1));
+            }
+            else if (inequality == null)
+            {
+                inequality = condition.group(1);
+            }
+        }
+
+        // 2. Apply the filters, in a stable order, so that identical criteria result in identical queries.
+        List<String> conditions = new ArrayList<>();
+        Map<String, Object> params = query.getQueryParams() != null ?
+                                     new HashMap<>(query.getQueryParams()) : new HashMap<String, Object>();
+        if (filters != null)
+        {
+            for (Map.Entry<String, String> entry : new TreeMap<>(filters).entrySet())
+            {
+                Property property = properties.get(entry.getKey());
+                if (property == null || property.filter == ListingField.Filter.NONE ||
+                        StringUtils.isBlank(entry.getValue()))
+                {
+                    continue;
+                }
+
+                Object value = property.convert(entry.getValue());
+                if (value == null)
+                {
+                    LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
+                                "Ignoring invalid filter value for " + entry.getKey() + ": " + entry.getValue());
+                    continue;
+                }
+
+                String paramName = PARAM_PREFIX + conditions.size();
+                if (property.filter == ListingField.Filter.PREFIX)
+                {
+                    if (inequality != null && !inequality.equals(property.field))
+                    {
+                        LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
+                                    "Ignoring prefix filter on " + entry.getKey() + ", the query has an inequality " +
+                                            "filter on " + inequality + " already.");
+                        continue;
+                    }
+                    inequality = property.field;
+                    conditions.add(alias + "." + property.field + " >= :" + paramName + " AND " + alias + "." +
+                                           property.field + " < :" + paramName + "End");
+                    params.put(paramName, value.toString());
+                    params.put(paramName + "End", value + PREFIX_END);
+                }
+                else
+                {
+                    conditions.add(alias + "." + property.field + " = :" + paramName);
+                    params.put(paramName, value);
+                    equalities.add(property.field);
+                }
+            }
+        }
+
+        // 3. Work out the sort order.
+        Property sort = !count && sortField != null ? properties.get(sortField) : null;
+        if (sort != null && !sort.sortable)
+        {
+            sort = null;
+        }
+
+        if (conditions.isEmpty() && sort == null)
+        {
+            return query;
+        }
+
+        List<String[]> orders = new ArrayList<>();
+        if (sort != null)
+        {
+            orders.add(new String[]{sort.field, descending ? DESC : ASC});
+        }
+        else if (!count && orderClause != null)
+        {
+            for (String order : orderClause.split(","))
+            {
+                String[] tokens = StringUtils.split(order.trim());
+                if (tokens.length > 0)
+                {
+                    String field = StringUtils.removeStart(tokens[0], alias + ".");
+                    orders.add(new String[]{field, tokens.length > 1 && DESC.equalsIgnoreCase(tokens[1]) ? DESC : ASC});
+                }
+            }
+        }
+
+        if (inequality != null)
+        {
+            // The datastore requires the property with the inequality filter to be sorted on first.
+            String direction = ASC;
+            Iterator<String[]> iterator = orders.iterator();
+            while (iterator.hasNext())
+            {
+                String[] order = iterator.next();
+                if (order[0].equals(inequality))
+                {
+                    direction = order[1];
+                    iterator.remove();
+                }
+            }
+            orders.add(0, new String[]{inequality, direction});
+        }
+
+        registerIndex(controller.getEntityClass(), properties, equalities, orders);
+
+        // 4. Put the query together.
+        StringBuilder builder = new StringBuilder(base.trim());
+        if (!conditions.isEmpty())
+        {
+            builder.append(WHERE.matcher(base).find() ? " AND " : " WHERE ")
+                   .append(StringUtils.join(conditions, " AND "));
+        }
+        if (!count && !orders.isEmpty())
+        {
+            builder.append(" ORDER BY ");
+            for (int i = 0; i < orders.size(); i++)
+            {
+                builder.append(i > 0 ? ", " : "").append(alias).append('.').append(orders.get(i)[0]).append(' ')
+                       .append(orders.get(i)[1]);
+            }
+        }
+
+        return new JpaQuery(builder.toString(), false, params);
+    }
+
+    /**
+     * Log the definition of the composite index required by the given combination of properties, if any, the first
+     * time it is used.
+     */
+    private static void registerIndex(Class<?> entityClass, Map<String, Property> properties, Set<String> equalities,
+                                      List<String[]> orders)
+    {
+        final String METHOD_NAME = "registerIndex";
+
+        Set<String> ordered = new HashSet<>();
+        for (String[] order : orders)
+        {
+            ordered.add(order[0]);
+        }
+        List<String> filtered = new ArrayList<>(equalities);
+        filtered.removeAll(ordered);
+        Collections.sort(filtered);
+
+        // Queries on a single property, or with equality filters only, are served by the built-in indexes.
+        if (orders.isEmpty() || filtered.size() + orders.size() < 2)
+        {
+            return;
+        }
+
+        String kind = entityClass.getSimpleName();
+        StringBuilder definition = new StringBuilder(200);
+        definition.append("<datastore-index kind=\"").append(kind).append("\" ancestor=\"false\" source=\"manual\">");
+        for (String field : filtered)
+        {
+            definition.append("\n    <property name=\"").append(getColumn(properties, field))
+                      .append("\" direction=\"asc\"/>");
+        }
+        for (String[] order : orders)
+        {
+            definition.append("\n    <property name=\"").append(getColumn(properties, order[0]))
+                      .append("\" direction=\"").append(order[1].toLowerCase(Locale.ROOT)).append("\"/>");
+        }
+        definition.append("\n</datastore-index>");
+
+        if (INDEX_DEFINITIONS.putIfAbsent(definition.toString(), Boolean.TRUE) == null)
+        {
+            LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME,
+                        "Listing query requires the composite index:\n" + definition);
+        }
+    }
+
+    private static String getColumn(Map<String, Property> properties, String field)
+    {
+        for (Property property : properties.values())
+        {
+            if (property.field.equals(field))
+            {
+                return property.column;
+            }
+        }
+        return field;
+    }
+
+    /**
+     * Get the listing properties of the given entity class, keyed by their exposed names.
+     */
+    private static Map<String, Property> getProperties(Class<?> entityClass)
+    {
+        Map<String, Property> properties = PROPERTIES.get(entityClass);
+        if (properties == null)
+        {
+            properties = new HashMap<>();
+            for (Class<?> c = entityClass; c != null && c != Object.class; c = c.getSuperclass())
+            {
+                for (Field field : c.getDeclaredFields())
+                {
+                    ListingField ann = field.getAnnotation(ListingField.class);
+                    if (ann != null)
+                    {
+                        String name = ann.value().isEmpty() ? field.getName() : ann.value();
+                        if (!properties.containsKey(name))
+                        {
+                            properties.put(name, new Property(field, ann));
+                        }
+                    }
+                }
+            }
+            properties = Collections.unmodifiableMap(properties);
+            Map<String, Property> existing = PROPERTIES.putIfAbsent(entityClass, properties);
+            if (existing != null)
+            {
+                properties = existing;
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * A field that can be sorted or filtered on.
+     */
+    private static final class Property
+    {
+        private final String field;
+        private final String column;
+        private final Class<?> type;
+        private final boolean sortable;
+        private final ListingField.Filter filter;
+        private final boolean lowerCase;
+
+        private Property(Field field, ListingField ann)
+        {
+            this.field = field.getName();
+            Column col = field.getAnnotation(Column.class);
+            this.column = col != null && !col.name().isEmpty() ? col.name() : field.getName();
+            this.type = field.getType();
+            this.sortable = ann.sortable();
+            this.filter = ann.filter();
+            this.lowerCase = ann.lowerCase();
+        }
+
+        /**
+         * Convert the filter value to the type of the field.
+         *
+         * @param value the filter value.
+         * @return the converted value, or null if the value cannot be converted.
+         */
+        @SuppressWarnings("unchecked")
+        private Object convert(String value)
+        {
+            String v = value.trim();
+            try
+            {
+                if (type == String.class)
+                {
+                    return lowerCase ? v.toLowerCase(Locale.ROOT) : v;
+                }
+                if (filter == ListingField.Filter.PREFIX)
+                {
+                    // Prefixes only make sense for strings.
+                    return null;
+                }
+                if (type == Boolean.class || type == boolean.class)
+                {
+                    return Boolean.valueOf(v);
+                }
+                if (type == Integer.class || type == int.class)
+                {
+                    return Integer.valueOf(v);
+                }
+                if (type == Long.class || type == long.class)
+                {
+                    return Long.valueOf(v);
+                }
+                if (type == Float.class || type == float.class)
+                {
+                    return Float.valueOf(v);
+                }
+                if (type == Double.class || type == double.class)
+                {
+                    return Double.valueOf(v);
+                }
+                if (type == Key.class)
+                {
+                    return KeyFactory.stringToKey(v);
+                }
+                if (type.isEnum())
+                {
+                    return Enum.valueOf((Class<Enum>) type, v);
+                }
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Fall through
+            }
+            return null;
+        }
+    }
+}
@@ -215,6 +215,11 @@ public abstract class NestedPersistentEntity<T extends PersistentObject<T> & Nes
     @Override
     public T getParent()
     {
+        NestedResourceTree<T> tree = getCurrentTree();
+        if (tree != null && tree.contains(getId()))
+        {
+            return tree.getParent(getId());
+        }
         return getController().findById(getParentKey());
     }
 
@@ -239,6 +244,12 @@ public abstract class NestedPersistentEntity<T extends PersistentObject<T> & Nes
     @Override
     public List<T> getChildren(boolean recursive)
     {
+        NestedResourceTree<T> tree = getCurrentTree();
+        if (tree != null && tree.contains(getId()))
+        {
+            return new ArrayList<>(recursive ? tree.getDescendants(getId()) : tree.getChildren(getId()));
+        }
+
         String query = String.format(recursive ? GET_ALL_CHILDREN_QUERY : GET_IMMEDIATE_CHILDREN_QUERY,
                                      this.getClass().getSimpleName());
         Map<String, Object> params = new HashMap<>(3);
@@ -258,6 +269,12 @@ public abstract class NestedPersistentEntity<T extends PersistentObject<T> & Nes
     @Override
     public int getChildCount(boolean recursive)
     {
+        NestedResourceTree<T> tree = getCurrentTree();
+        if (tree != null && tree.contains(getId()))
+        {
+            return recursive ? tree.getDescendants(getId()).size() : tree.getChildren(getId()).size();
+        }
+
         String query = String.format(recursive ? GET_ALL_CHILDREN_COUNT_QUERY : GET_IMMEDIATE_CHILDREN_COUNT_QUERY,
                                      this.getClass().getSimpleName());
         Map<String, Object> params = new HashMap<>(3);
@@ -293,33 +310,8 @@ public abstract class NestedPersistentEntity<T extends PersistentObject<T> & Nes
 
         if (recomputeChildrenBounds)
         {
-            List<T> childNodesToPersist = new ArrayList<>();
-            // Update the children recursively.
-            List<T> children = getChildren(false);
-            if (children != null && !children.isEmpty())
-            {
-                for (T child : children)
-                {
-                    if (child instanceof NestedPersistentEntity)
-                    {
-                        child = child.getMutableInstance();
-                        NestedPersistentEntity<T> childEntity = (NestedPersistentEntity<T>) child;
-                        childEntity.updateBounds(this);
-                        if (childEntity.isDirty())
-                        {
-                            childNodesToPersist.add(child);
-                        }
-                    }
-                }
-            }
-
-            if (!childNodesToPersist.isEmpty())
-            {
-                for (T child : childNodesToPersist)
-                {
-                    getController().save(child);
-                }
-            }
+            // Update the entire subtree in one go.
+            NestedSetRelocator.relocate(this);
         }
 
         parentChanged = false;
@@ -332,6 +324,20 @@ public abstract class NestedPersistentEntity<T extends PersistentObject<T> & Nes
         return (JpaController<T>) JpaController.getController(this.getClass());
     }
 
+    /**
+     * Get the snapshot of this resource's hierarchy, provided one has already been built and is still current. Mutable
+     * instances may have pending changes to their position in the hierarchy, hence they always query the data store.
+     */
+    @SuppressWarnings("unchecked")
+    private NestedResourceTree<T> getCurrentTree()
+    {
+        if (isMutable() || getId() == null)
+        {
+            return null;
+        }
+        return (NestedResourceTree<T>) NestedResourceTree.getCurrentTree((Class) getController().getAppObjectClass());
+    }
+
     /**
      * Update the bounds for this node. This method should be invoked only during the pre-persist / pre-update phase.
      */
@@ -422,7 +428,13 @@ public abstract class NestedPersistentEntity<T extends PersistentObject<T> & Nes
         recomputeChildrenBounds = computeBounds(pNv, pDv, pSNv, pSDv);
     }
 
-    private boolean computeBounds(long pNv, long pDv, long pSNv, long pSDv)
+    /**
+     * Compute the bounds of this node from the bounds of its parent. This method should be invoked only on a mutable
+     * instance.
+     *
+     * @return true if the bounds have changed, false otherwise.
+     */
+    boolean computeBounds(long pNv, long pDv, long pSNv, long pSDv)
     {
         boolean valueChanged = false;
         if (isMutable())
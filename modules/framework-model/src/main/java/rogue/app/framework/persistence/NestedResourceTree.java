@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.persistence;
+
+import com.google.appengine.api.datastore.Key;
+import rogue.app.framework.model.NestedResource;
+import rogue.app.framework.model.PersistentObject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Immutable, in-memory snapshot of all the nodes of a nested resource hierarchy. Every nested resource class has a
+ * single {@link rogue.app.framework.internal.persistence.nested.NestedResourceRoot NestedResourceRoot}, hence the
+ * snapshots are maintained per class and are shared across requests. A snapshot is tagged with the revision of the
+ * entity class at the time it was built, and is rebuilt on first access after the revision changes. Writes also drop
+ * the snapshot of the current instance right away, so that the hooks that run after a write never see the old tree.
+ * <p/>
+ * The nodes of the tree are laid out in pre-order, which allows the parent, children, ancestor path, descendants and
+ * subtree membership of a node to be looked up in constant time.
+ * <p/>
+ * The objects held by a snapshot are shared across requests, hence callers must never modify them directly. Use
+ * {@link PersistentObject#getMutableInstance()} instead.
+ */
+public final class NestedResourceTree<T extends PersistentObject<T> & NestedResource<T>>
+{
+    private static final String CLASS_NAME = NestedResourceTree.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    private static final ConcurrentMap<Class<?>, NestedResourceTree<?>> TREES = new ConcurrentHashMap<>();
+
+    private final int revision;
+    private final Map<Key, Node<T>> nodes;
+    private final List<T> preOrder;
+    private final List<T> roots;
+
+    private NestedResourceTree(int revision, List<T> objects)
+    {
+        final String METHOD_NAME = "<ctor>";
+
+        this.revision = revision;
+
+        // 1. Index the objects and group them by their parent.
+        Map<Key, T> objectMap = new HashMap<>(objects.size());
+        for (T obj : objects)
+        {
+            if (obj != null && obj.getId() != null)
+            {
+                objectMap.put(obj.getId(), obj);
+            }
+        }
+
+        Map<Key, List<T>> childMap = new HashMap<>(objectMap.size());
+        List<T> topLevel = new ArrayList<>();
+        for (T obj : objectMap.values())
+        {
+            Key parentKey = getParentKey(obj);
+            if (parentKey == null || !objectMap.containsKey(parentKey))
+            {
+                topLevel.add(obj);
+            }
+            else
+            {
+                List<T> children = childMap.get(parentKey);
+                if (children == null)
+                {
+                    children = new ArrayList<>(4);
+                    childMap.put(parentKey, children);
+                }
+                children.add(obj);
+            }
+        }
+
+        // 2. Walk the tree in pre-order, assigning the position of every node.
+        Map<Key, Node<T>> nodeMap = new HashMap<>(objectMap.size());
+        List<T> order = new ArrayList<>(objectMap.size());
+        Deque<Node<T>> stack = new ArrayDeque<>();
+        List<Node<T>> rootNodes = new ArrayList<>(topLevel.size());
+        for (T obj : sortSiblings(topLevel))
+        {
+            rootNodes.add(new Node<>(obj, null));
+        }
+        for (int i = rootNodes.size() - 1; i >= 0; i--)
+        {
+            stack.push(rootNodes.get(i));
+        }
+
+        while (!stack.isEmpty())
+        {
+            Node<T> node = stack.pop();
+            node.position = order.size();
+            order.add(node.object);
+            nodeMap.put(node.object.getId(), node);
+
+            List<T> children = childMap.get(node.object.getId());
+            if (children == null || children.isEmpty())
+            {
+                node.children = Collections.emptyList();
+                continue;
+            }
+
+            node.children = Collections.unmodifiableList(sortSiblings(children));
+            for (int i = node.children.size() - 1; i >= 0; i--)
+            {
+                stack.push(new Node<>(node.children.get(i), node));
+            }
+        }
+
+        // 3. Compute the subtree bounds, bottom up. Children always appear after their parents in pre-order.
+        for (int i = order.size() - 1; i >= 0; i--)
+        {
+            Node<T> node = nodeMap.get(order.get(i).getId());
+            node.end = Math.max(node.end, node.position + 1);
+            if (node.parent != null)
+            {
+                node.parent.end = Math.max(node.parent.end, node.end);
+            }
+        }
+
+        // 4. Compute the ancestor paths, top down.
+        for (T obj : order)
+        {
+            Node<T> node = nodeMap.get(obj.getId());
+            List<T> path = new ArrayList<>(node.parent != null ? node.parent.path.size() + 1 : 1);
+            if (node.parent != null)
+            {
+                path.addAll(node.parent.path);
+            }
+            path.add(obj);
+            node.path = Collections.unmodifiableList(path);
+        }
+
+        if (order.size() != objectMap.size())
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, String.format(
+                    "%d objects are not reachable from the top level nodes and have been left out of the tree.",
+                    objectMap.size() - order.size()));
+        }
+
+        this.nodes = nodeMap;
+        this.preOrder = Collections.unmodifiableList(order);
+        List<T> rootList = new ArrayList<>(rootNodes.size());
+        for (Node<T> node : rootNodes)
+        {
+            rootList.add(node.object);
+        }
+        this.roots = Collections.unmodifiableList(rootList);
+    }
+
+    /**
+     * Get the current snapshot of the hierarchy of the given nested resource class, building it if required.
+     *
+     * @param appObjClass the nested resource class.
+     * @return the current snapshot of the hierarchy.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends PersistentObject<E> & NestedResource<E>> NestedResourceTree<E> getTree(
+            Class<E> appObjClass)
+    {
+        JpaController<E> controller = JpaController.getController(appObjClass);
+        int revision = controller.getRevision();
+
+        NestedResourceTree<E> tree = (NestedResourceTree<E>) TREES.get(controller.getAppObjectClass());
+        if (tree == null || tree.revision != revision)
+        {
+            // Read the revision before the objects, so that a concurrent update can only make the snapshot look stale.
+            tree = new NestedResourceTree<>(revision, controller.findEntities(0, -1));
+            TREES.put(controller.getAppObjectClass(), tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Get the snapshot of the hierarchy of the given nested resource class, only if one has already been built and is
+     * still current.
+     *
+     * @param appObjClass the nested resource class.
+     * @return the current snapshot, or null if none is available.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends PersistentObject<E> & NestedResource<E>> NestedResourceTree<E> getCurrentTree(
+            Class<E> appObjClass)
+    {
+        JpaController<E> controller = JpaController.getController(appObjClass);
+        NestedResourceTree<E> tree = (NestedResourceTree<E>) TREES.get(controller.getAppObjectClass());
+        return tree != null && tree.revision == controller.getRevision() ? tree : null;
+    }
+
+    /**
+     * Discard the snapshot of the hierarchy of the given class, if any. Invoked by {@link JpaController} whenever the
+     * revision of the class is incremented.
+     *
+     * @param appObjClass the application object class.
+     */
+    static void invalidate(Class<?> appObjClass)
+    {
+        TREES.remove(appObjClass);
+    }
+
+    /**
+     * Get the revision of the entity class at which this snapshot was built.
+     *
+     * @return the revision of the entity class at which this snapshot was built.
+     */
+    public int getRevision()
+    {
+        return revision;
+    }
+
+    /**
+     * Get the number of nodes in the tree.
+     *
+     * @return the number of nodes in the tree.
+     */
+    public int size()
+    {
+        return preOrder.size();
+    }
+
+    /**
+     * Check if the tree contains the node identified by the given key.
+     *
+     * @param id the node key.
+     * @return true if the tree contains the node, false otherwise.
+     */
+    public boolean contains(Key id)
+    {
+        return id != null && nodes.containsKey(id);
+    }
+
+    /**
+     * Get the node identified by the given key.
+     *
+     * @param id the node key.
+     * @return the node, or null if the tree does not contain it.
+     */
+    public T get(Key id)
+    {
+        Node<T> node = getNode(id);
+        return node != null ? node.object : null;
+    }
+
+    /**
+     * Get the top level nodes of the tree.
+     *
+     * @return an unmodifiable list of the top level nodes.
+     */
+    public List<T> getRoots()
+    {
+        return roots;
+    }
+
+    /**
+     * Get the parent of the node identified by the given key.
+     *
+     * @param id the node key.
+     * @return the parent, or null if the node is a top level node or is not part of the tree.
+     */
+    public T getParent(Key id)
+    {
+        Node<T> node = getNode(id);
+        return node != null && node.parent != null ? node.parent.object : null;
+    }
+
+    /**
+     * Get the immediate children of the node identified by the given key.
+     *
+     * @param id the node key, or null to get the top level nodes.
+     * @return an unmodifiable list of the immediate children.
+     */
+    public List<T> getChildren(Key id)
+    {
+        if (id == null)
+        {
+            return roots;
+        }
+        Node<T> node = getNode(id);
+        return node != null ? node.children : Collections.<T>emptyList();
+    }
+
+    /**
+     * Get all the descendants of the node identified by the given key, in pre-order.
+     *
+     * @param id the node key.
+     * @return an unmodifiable list of the descendants.
+     */
+    public List<T> getDescendants(Key id)
+    {
+        Node<T> node = getNode(id);
+        return node != null ? preOrder.subList(node.position + 1, node.end) : Collections.<T>emptyList();
+    }
+
+    /**
+     * Get the path from the top level node down to, and including, the node identified by the given key.
+     *
+     * @param id the node key.
+     * @return an unmodifiable list of the nodes on the path, or an empty list if the node is not part of the tree.
+     */
+    public List<T> getPath(Key id)
+    {
+        Node<T> node = getNode(id);
+        return node != null ? node.path : Collections.<T>emptyList();
+    }
+
+    /**
+     * Check if a node is a descendant of another node.
+     *
+     * @param id         the key of the node to check.
+     * @param ancestorId the key of the potential ancestor.
+     * @return true if the node is part of the subtree under the ancestor, false otherwise.
+     */
+    public boolean isDescendant(Key id, Key ancestorId)
+    {
+        Node<T> node = getNode(id);
+        Node<T> ancestor = getNode(ancestorId);
+        return node != null && ancestor != null && node.position > ancestor.position && node.position < ancestor.end;
+    }
+
+    private Node<T> getNode(Key id)
+    {
+        return id != null ? nodes.get(id) : null;
+    }
+
+    private static Key getParentKey(Object obj)
+    {
+        return obj instanceof NestedPersistentEntity ? ((NestedPersistentEntity) obj).getParentKey() : null;
+    }
+
+    /**
+     * Order siblings by their node index, i.e., the order in which they were added to their parent.
+     */
+    private static <E> List<E> sortSiblings(List<E> siblings)
+    {
+        Collections.sort(siblings, SIBLING_COMPARATOR);
+        return siblings;
+    }
+
+    private static final Comparator<Object> SIBLING_COMPARATOR = new Comparator<Object>()
+    {
+        @Override
+        public int compare(Object o1, Object o2)
+        {
+            int idx1 = o1 instanceof NestedSet ? ((NestedSet) o1).getNodeIndex() : 0;
+            int idx2 = o2 instanceof NestedSet ? ((NestedSet) o2).getNodeIndex() : 0;
+            return idx1 < idx2 ? -1 : (idx1 == idx2 ? 0 : 1);
+        }
+    };
+
+    private static final class Node<T>
+    {
+        private final T object;
+        private final Node<T> parent;
+        private List<T> children;
+        private List<T> path;
+        private int position;
+        // Exclusive upper bound of the subtree of this node, in pre-order.
+        private int end;
+
+        private Node(T object, Node<T> parent)
+        {
+            this.object = object;
+            this.parent = parent;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.persistence;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.apphosting.api.ApiProxy;
+import rogue.app.framework.model.NestedResource;
+import rogue.app.framework.model.PersistentObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recomputes the nested set bounds of all the nodes under a relocated node. The new bounds of the entire subtree are
+ * computed in memory, in a single pass, and only the nodes whose bounds have changed are written back, in chunks of
+ * {@link #CHUNK_SIZE}.
+ * <p/>
+ * If the current request is about to run out of time, the remaining work is handed over to the
+ * {@link #RELOCATION_QUEUE_NAME} queue. Since nodes that are already up to date are never written again, the
+ * relocation of a subtree can be resumed any number of times from its root.
+ */
+public final class NestedSetRelocator
+{
+    private static final String CLASS_NAME = NestedSetRelocator.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    public static final String RELOCATION_TASK_URL = "/tasks/nestedSetRelocator";
+    public static final String RELOCATION_QUEUE_NAME = "NestedSetRelocationQueue";
+    public static final String REQ_PARAM_CLASS_NAME = "appObjClass";
+    public static final String REQ_PARAM_KEY = "key";
+
+    /**
+     * Number of nodes written per batch.
+     */
+    private static final int CHUNK_SIZE = 100;
+
+    /**
+     * Time, in milliseconds, that should be left in the request for another chunk to be written.
+     */
+    private static final long MIN_REMAINING_MILLIS = 15000;
+
+    /**
+     * Private constructor.
+     */
+    private NestedSetRelocator()
+    {
+    }
+
+    /**
+     * Recompute the bounds of all the nodes under the given node.
+     *
+     * @param appObjClass the nested resource class.
+     * @param id          the key of the relocated node.
+     * @return true if the relocation was completed, false if the remaining work was queued up.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends PersistentObject<T> & NestedResource<T>> boolean relocate(Class<T> appObjClass, Key id)
+    {
+        T subtreeRoot = JpaController.getController(appObjClass).findById(id);
+        return !(subtreeRoot instanceof NestedPersistentEntity) || relocate((NestedPersistentEntity<T>) subtreeRoot);
+    }
+
+    /**
+     * Recompute the bounds of all the nodes under the given node, whose own bounds are expected to be up to date.
+     *
+     * @param subtreeRoot the relocated node.
+     * @return true if the relocation was completed, false if the remaining work was queued up.
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends PersistentObject<T> & NestedResource<T>> boolean relocate(NestedPersistentEntity<T> subtreeRoot)
+    {
+        final String METHOD_NAME = "relocate";
+
+        JpaController<T> controller = (JpaController<T>) JpaController.getController(subtreeRoot.getClass());
+        NestedResourceTree<T> tree = NestedResourceTree.getTree(controller.getAppObjectClass());
+
+        // 1. Compute the new bounds. The descendants are in pre-order, hence a parent is always computed before its
+        //    children.
+        Map<Key, NestedPersistentEntity<T>> computed = new HashMap<>();
+        computed.put(subtreeRoot.getId(), subtreeRoot);
+        List<T> nodesToPersist = new ArrayList<>();
+        for (T descendant : tree.getDescendants(subtreeRoot.getId()))
+        {
+            NestedPersistentEntity<T> node = (NestedPersistentEntity<T>) descendant.getMutableInstance();
+            NestedPersistentEntity<T> parent = computed.get(node.getParentKey());
+            node.computeBounds(parent.getNodeNumerator(), parent.getNodeDenominator(),
+                               parent.getSiblingNodeNumerator(), parent.getSiblingNodeDenominator());
+            computed.put(node.getId(), node);
+
+            if (node.isDirty())
+            {
+                nodesToPersist.add((T) node);
+            }
+        }
+
+        // 2. Write them back in chunks, until the request runs out of time.
+        for (int i = 0; i < nodesToPersist.size(); i += CHUNK_SIZE)
+        {
+            if (isDeadlineNear())
+            {
+                LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME, String.format(
+                        "Request is about to time out. Queuing up the relocation of %d remaining nodes under %s.",
+                        nodesToPersist.size() - i, subtreeRoot.getId()));
+                queue(controller.getAppObjectClass(), subtreeRoot.getId());
+                return false;
+            }
+
+            controller.saveAll(nodesToPersist.subList(i, Math.min(i + CHUNK_SIZE, nodesToPersist.size())));
+        }
+        return true;
+    }
+
+    private static boolean isDeadlineNear()
+    {
+        ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+        return env != null && env.getRemainingMillis() < MIN_REMAINING_MILLIS;
+    }
+
+    private static void queue(Class<?> appObjClass, Key id)
+    {
+        Queue queue = QueueFactory.getQueue(RELOCATION_QUEUE_NAME);
+        queue.add(TaskOptions.Builder.withUrl(RELOCATION_TASK_URL)
+                             .param(REQ_PARAM_CLASS_NAME, appObjClass.getName())
+                             .param(REQ_PARAM_KEY, Long.toString(id.getId()))
+                             .method(TaskOptions.Method.POST));
+    }
+}
@@ -17,6 +17,7 @@
 package rogue.app.framework.persistence;
 
 import com.google.appengine.api.datastore.Key;
+import org.apache.commons.lang.SerializationUtils;
 import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.model.AppObject;
 import rogue.app.framework.model.PersistentObject;
@@ -25,8 +26,11 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Persistence;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +45,18 @@ public final class PersistenceUtils
     private static final EntityManagerFactory emfInstance =
             Persistence.createEntityManagerFactory("transactions-optional");
 
+    /**
+     * Properties of the <code>EntityManager</code> of a unit of work. Nontransactional writes are queued up, rather
+     * than applied one at a time, and written out when the unit of work ends.
+     */
+    private static final Map<String, Object> UNIT_OF_WORK_PROPERTIES =
+            Collections.<String, Object>singletonMap("datanucleus.nontx.atomic", "false");
+
+    /**
+     * The unit of work bound to the current thread, if any.
+     */
+    private static final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<>();
+
     private PersistenceUtils()
     {
     }
@@ -58,7 +74,115 @@ public final class PersistenceUtils
     }
 
     /**
-     * Execute a <code>JpaCallback</code> implementation.
+     * Begin a unit of work on the current thread. Until {@link #endUnitOfWork(boolean)} is invoked, all the callbacks
+     * executed on this thread share a single <code>EntityManager</code>, and hence its first level cache, instead of
+     * creating one per callback. Units of work can be nested; the <code>EntityManager</code> is flushed and closed when
+     * the outermost one ends.
+     */
+    public static void beginUnitOfWork()
+    {
+        UnitOfWork work = unitOfWork.get();
+        if (work == null)
+        {
+            work = new UnitOfWork(emfInstance.createEntityManager(UNIT_OF_WORK_PROPERTIES));
+            unitOfWork.set(work);
+        }
+        work.depth++;
+    }
+
+    /**
+     * End the unit of work bound to the current thread, if any. Ending the outermost unit of work writes out the
+     * changes that are still pending, within a single transaction, and closes the underlying
+     * <code>EntityManager</code>. Callbacks that were executed with transaction support have committed their changes
+     * already.
+     *
+     * @param commit true to write out the pending changes, false to discard them, e.g., when the request failed.
+     * @throws AppRuntimeException if the pending changes cannot be written out.
+     */
+    public static void endUnitOfWork(boolean commit) throws AppRuntimeException
+    {
+        final String METHOD_NAME = "endUnitOfWork";
+
+        UnitOfWork work = unitOfWork.get();
+        if (work == null || --work.depth > 0)
+        {
+            return;
+        }
+
+        unitOfWork.remove();
+        EntityManager em = work.entityManager;
+        EntityTransaction trx = em.getTransaction();
+        try
+        {
+            if (commit)
+            {
+                if (!trx.isActive())
+                {
+                    trx.begin();
+                }
+                em.flush();
+                trx.commit();
+            }
+            else
+            {
+                if (trx.isActive())
+                {
+                    trx.rollback();
+                }
+                // Drop the queued up changes.
+                em.clear();
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to write out the unit of work.", e);
+            throw new AppRuntimeException(e);
+        }
+        finally
+        {
+            if (trx.isActive())
+            {
+                trx.rollback();
+            }
+            em.close();
+        }
+    }
+
+    /**
+     * Check if a unit of work is bound to the current thread.
+     *
+     * @return true if a unit of work is active, false otherwise.
+     */
+    public static boolean isUnitOfWorkActive()
+    {
+        return unitOfWork.get() != null;
+    }
+
+    /**
+     * Get a copy of the given result that can be handed over to a cache that is shared across threads or outlives the
+     * request. Within a unit of work, the entities returned by the callbacks stay managed by its
+     * <code>EntityManager</code> until the request ends, hence serializable results are copied. Otherwise, the
+     * <code>EntityManager</code> has been closed already, and the result is returned as is.
+     *
+     * @param result the result of a callback.
+     * @param <T>    the type of the result.
+     * @return the result, or a detached copy of it.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T detach(T result)
+    {
+        if (unitOfWork.get() == null || !(result instanceof Serializable))
+        {
+            return result;
+        }
+        return (T) SerializationUtils.clone((Serializable) result);
+    }
+
+    /**
+     * Execute a <code>JpaCallback</code> implementation. If a unit of work is active on the current thread, the
+     * callback is executed using its <code>EntityManager</code>, otherwise a new one is created for the callback. In
+     * the former case, the returned entities remain managed until the unit of work ends, so that the following
+     * callbacks find them in the first level cache; use {@link #detach(Object)} before caching them.
      *
      * @param callback        the callback to execute
      * @param useTransactions should the operation be performed with transaction support?
@@ -87,11 +211,13 @@ public final class PersistenceUtils
             LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME, builder.toString());
         }
 
+        UnitOfWork work = unitOfWork.get();
+        EntityManager sharedEm = work != null ? work.entityManager : null;
         EntityManager em = null;
         EntityTransaction trx = null;
         try
         {
-            em = emfInstance.createEntityManager();
+            em = sharedEm != null ? sharedEm : emfInstance.createEntityManager();
             try
             {
                 if (useTransactions)
@@ -103,6 +229,7 @@ public final class PersistenceUtils
                 T result = callback.execute(em, params);
 
                 // TODO: Remove this hack later on.
+                // Results may be cached beyond the life of the entity manager, even within a unit of work.
                 if (result instanceof List)
                 {
                     List tmpList = new ArrayList(((List) result).size());
@@ -131,7 +258,7 @@ public final class PersistenceUtils
         }
         finally
         {
-            if (em != null)
+            if (em != null && em != sharedEm)
             {
                 em.close();
             }
@@ -205,4 +332,19 @@ public final class PersistenceUtils
         }
         return null;
     }
+
+    /**
+     * State of the unit of work bound to a thread.
+     */
+    private static final class UnitOfWork
+    {
+        private final EntityManager entityManager;
+        // Number of nested units of work.
+        private int depth;
+
+        private UnitOfWork(EntityManager entityManager)
+        {
+            this.entityManager = entityManager;
+        }
+    }
 }
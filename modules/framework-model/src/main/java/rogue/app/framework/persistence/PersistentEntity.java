@@ -30,8 +30,6 @@ import rogue.app.framework.security.UserContext;
 
 import javax.persistence.*;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -62,7 +60,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
     @Transient
     private T baseResource;
     @Transient
-    private AttributesManager attributesManager;
+    private volatile AttributesManager attributesManager;
 
     /**
      * Default constructor.
@@ -80,59 +78,13 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
     @SuppressWarnings("unchecked")
     protected PersistentEntity(PersistentEntity<T> entity)
     {
-        final String METHOD_NAME = "<ctor>(PersistentEntity)";
-
         this.mutable = true;
         this.baseResource = (T) entity;
 
         if (entity != null)
         {
-            Class clazz = entity.getClass();
-            while (clazz != null && PersistentEntity.class.isAssignableFrom(clazz))
-            {
-                // Get the declared fields.
-                Field[] fields = clazz.getDeclaredFields();
-                for (Field f : fields)
-                {
-                    int fieldModifiers = f.getModifiers();
-                    // Ignore fields that are:
-                    // 1. marked as transient - JPA as well as field lifecycle
-                    // 2. Static or final in nature
-                    // 3. field name begins with jdo - those are internal to JDO.
-                    if (Modifier.isTransient(fieldModifiers) || Modifier.isFinal(fieldModifiers)
-                            || Modifier.isStatic(fieldModifiers) || f.getName().startsWith("jdo")
-                            || f.isAnnotationPresent(Transient.class))
-                    {
-                        continue;
-                    }
-
-                    // Get the value for this field from the entity object and copy it over to
-                    // the current object.
-                    if (LOGGER.isLoggable(Level.FINEST))
-                    {
-                        LOGGER.logp(Level.FINEST, CLASS_NAME, METHOD_NAME,
-                                    "Copying over the field value for: " + f.getName());
-                    }
-
-                    try
-                    {
-                        // Suppress accessibility checks
-                        f.setAccessible(true);
-
-                        f.set(this, f.get(entity));
-
-                        // Enforce accessibility checks.
-                        f.setAccessible(false);
-                    }
-                    catch (IllegalAccessException e)
-                    {
-                        LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "This should not occur.", e);
-                    }
-                }
-
-                // Move to the parent clazz
-                clazz = clazz.getSuperclass();
-            }
+            // The fields to copy are computed once per class, see EntityCopyPlan.
+            EntityCopyPlan.forClass(entity.getClass()).copy(entity, this);
         }
     }
 
@@ -259,7 +211,8 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
     @Override
     public boolean isDirty()
     {
-        return dirty || (attributesManager != null && attributesManager.isDirty());
+        AttributesManager manager = attributesManager;
+        return dirty || (manager != null && manager.isDirty());
     }
 
     /**
@@ -293,12 +246,28 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      * ============================================================================================================== *
      */
 
-    private void initLocalAttributeCache()
+    /**
+     * Get the local attribute cache, creating it if need be. Instances held by a shared cache are read by concurrent
+     * requests, hence the cache is created at most once, under the lock of the instance.
+     *
+     * @return the local attribute cache.
+     */
+    private AttributesManager initLocalAttributeCache()
     {
-        if (attributesManager == null)
+        AttributesManager manager = attributesManager;
+        if (manager == null)
         {
-            attributesManager = new AttributesManager(this);
+            synchronized (this)
+            {
+                manager = attributesManager;
+                if (manager == null)
+                {
+                    manager = new AttributesManager(this);
+                    attributesManager = manager;
+                }
+            }
         }
+        return manager;
     }
 
     /**
@@ -311,8 +280,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
     @SuppressWarnings("UnusedDeclaration")
     protected Attributes getAttributesDelegate()
     {
-        initLocalAttributeCache();
-        return attributesManager;
+        return initLocalAttributeCache();
     }
 
     /**
@@ -324,8 +292,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     protected CustomizedAttributes getCustomizedAttributesDelegate()
     {
-        initLocalAttributeCache();
-        return attributesManager;
+        return initLocalAttributeCache();
     }
 
     /**
@@ -336,8 +303,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public List<String> getAttributeNames()
     {
-        initLocalAttributeCache();
-        return attributesManager.getAttributeNames();
+        return initLocalAttributeCache().getAttributeNames();
     }
 
     /**
@@ -349,8 +315,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public boolean isAttributeDefined(String name)
     {
-        initLocalAttributeCache();
-        return attributesManager.isAttributeDefined(name);
+        return initLocalAttributeCache().isAttributeDefined(name);
     }
 
     /**
@@ -362,8 +327,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public String getAttribute(String name)
     {
-        initLocalAttributeCache();
-        return attributesManager.getAttribute(name);
+        return initLocalAttributeCache().getAttribute(name);
     }
 
     /**
@@ -375,8 +339,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public void setAttribute(String name, String value)
     {
-        initLocalAttributeCache();
-        attributesManager.setAttribute(name, value);
+        initLocalAttributeCache().setAttribute(name, value);
     }
 
     /**
@@ -387,8 +350,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public void removeAttribute(String name)
     {
-        initLocalAttributeCache();
-        attributesManager.removeAttribute(name);
+        initLocalAttributeCache().removeAttribute(name);
     }
 
     /**
@@ -402,8 +364,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public boolean isAttributeCustomized(String name, Layer layer)
     {
-        initLocalAttributeCache();
-        return attributesManager.isAttributeCustomized(name, layer);
+        return initLocalAttributeCache().isAttributeCustomized(name, layer);
     }
 
     /**
@@ -417,8 +378,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public String getAttribute(String name, Layer layer)
     {
-        initLocalAttributeCache();
-        return attributesManager.getAttribute(name, layer);
+        return initLocalAttributeCache().getAttribute(name, layer);
     }
 
     /**
@@ -432,8 +392,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public void setAttribute(String name, String value, Layer layer)
     {
-        initLocalAttributeCache();
-        attributesManager.setAttribute(name, value, layer);
+        initLocalAttributeCache().setAttribute(name, value, layer);
     }
 
     /**
@@ -446,8 +405,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
      */
     public void removeAttribute(String name, Layer layer)
     {
-        initLocalAttributeCache();
-        attributesManager.removeAttribute(name, layer);
+        initLocalAttributeCache().removeAttribute(name, layer);
     }
 
 
@@ -484,9 +442,13 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
                 }
                 controller.deleteById(keyList.toArray(new Key[keyList.size()]));
             }
-            else if (attributesManager != null)
+            else
             {
-                attributesManager.persist();
+                AttributesManager manager = attributesManager;
+                if (manager != null)
+                {
+                    manager.persist();
+                }
             }
 
             // Clear out the local attribute cache.
@@ -546,18 +508,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
         // Get hold of the constructor
         try
         {
-            Constructor[] constructors = this.getClass().getDeclaredConstructors();
-            Constructor ctor = null;
-            for (Constructor c : constructors)
-            {
-                Class[] paramTypes = c.getParameterTypes();
-                if (paramTypes.length == 1 && PersistentEntity.class.isAssignableFrom(paramTypes[0]))
-                {
-                    ctor = c;
-                    break;
-                }
-            }
-
+            Constructor ctor = EntityCopyPlan.forClass(this.getClass()).getCopyConstructor();
             if (ctor != null)
             {
                 if (LOGGER.isLoggable(Level.FINE))
@@ -565,10 +516,7 @@ public abstract class PersistentEntity<T extends PersistentObject<T>> implements
                     LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
                                 "Creating mutable instance based on constructor: " + ctor);
                 }
-                ctor.setAccessible(true);
-                T instance = (T) ctor.newInstance(this);
-                ctor.setAccessible(false);
-                return instance;
+                return (T) ctor.newInstance(this);
             }
         }
         catch (Exception e)
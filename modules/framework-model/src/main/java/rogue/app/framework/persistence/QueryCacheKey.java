@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.persistence;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable key that identifies the cached results of a query. The key is made up of the query id (the named query, or
+ * the query string itself), the query parameters sorted by name, the requested range and the revision of the entity
+ * class. Both the hash code and the compact, fixed length string representation used as the cache key are computed
+ * once, at construction time.
+ */
+public final class QueryCacheKey
+{
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final String[] NO_NAMES = new String[0];
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private final String queryId;
+    private final String[] paramNames;
+    private final Object[] paramValues;
+    private final Integer start;
+    private final Integer count;
+    private final int revision;
+
+    private final int hashCode;
+    private final String digest;
+
+    /**
+     * Construct a new key.
+     *
+     * @param prefix   the prefix to apply to the compact string representation, typically identifying the entity class.
+     * @param queryId  the named query, or the query string itself.
+     * @param params   the query parameters, can be null.
+     * @param start    the index of the first result, can be null.
+     * @param count    the maximum number of results, can be null.
+     * @param revision the revision of the entity class.
+     */
+    public QueryCacheKey(String prefix, String queryId, Map<String, Object> params, Integer start, Integer count,
+                         int revision)
+    {
+        this.queryId = queryId;
+        this.start = start;
+        this.count = count;
+        this.revision = revision;
+
+        if (params == null || params.isEmpty())
+        {
+            paramNames = NO_NAMES;
+            paramValues = NO_VALUES;
+        }
+        else
+        {
+            String[] names = params.keySet().toArray(new String[params.size()]);
+            Arrays.sort(names);
+
+            // Discard empty parameter names, as was done by the string based keys.
+            int size = 0;
+            for (String name : names)
+            {
+                if (name != null && !name.isEmpty())
+                {
+                    names[size++] = name;
+                }
+            }
+
+            paramNames = size == names.length ? names : Arrays.copyOf(names, size);
+            paramValues = new Object[size];
+            for (int i = 0; i < size; i++)
+            {
+                paramValues[i] = params.get(paramNames[i]);
+            }
+        }
+
+        int result = queryId != null ? queryId.hashCode() : 0;
+        result = 31 * result + Arrays.hashCode(paramNames);
+        result = 31 * result + Arrays.hashCode(paramValues);
+        result = 31 * result + (start != null ? start.hashCode() : 0);
+        result = 31 * result + (count != null ? count.hashCode() : 0);
+        result = 31 * result + revision;
+        this.hashCode = result;
+
+        this.digest = (prefix != null ? prefix : "") + computeDigest();
+    }
+
+    /**
+     * Get the compact, fixed length string representation of this key, which is suitable for use as a cache key.
+     *
+     * @return the compact string representation of this key.
+     */
+    public String getDigest()
+    {
+        return digest;
+    }
+
+    public String getQueryId()
+    {
+        return queryId;
+    }
+
+    public Integer getStart()
+    {
+        return start;
+    }
+
+    public Integer getCount()
+    {
+        return count;
+    }
+
+    public int getRevision()
+    {
+        return revision;
+    }
+
+    /**
+     * Hash each component along with its length, so that the boundaries between components can never be confused with
+     * each other, irrespective of what the parameter values contain.
+     */
+    private String computeDigest()
+    {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        putString(hasher, queryId);
+        hasher.putInt(paramNames.length);
+        for (int i = 0; i < paramNames.length; i++)
+        {
+            putString(hasher, paramNames[i]);
+            Object value = paramValues[i];
+            if (value == null)
+            {
+                hasher.putInt(-1);
+            }
+            else
+            {
+                putString(hasher, value.getClass().getName());
+                putString(hasher, value.toString());
+            }
+        }
+        hasher.putInt(start != null ? start : Integer.MIN_VALUE);
+        hasher.putInt(count != null ? count : Integer.MIN_VALUE);
+        return hasher.hash().toString() + "_" + revision;
+    }
+
+    private static void putString(Hasher hasher, String value)
+    {
+        if (value == null)
+        {
+            hasher.putInt(-1);
+        }
+        else
+        {
+            hasher.putInt(value.length());
+            hasher.putString(value, Charsets.UTF_8);
+        }
+    }
+
+    @SuppressWarnings("RedundantIfStatement")
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof QueryCacheKey))
+        {
+            return false;
+        }
+
+        QueryCacheKey that = (QueryCacheKey) o;
+
+        if (hashCode != that.hashCode || revision != that.revision)
+        {
+            return false;
+        }
+        if (!Objects.equals(queryId, that.queryId))
+        {
+            return false;
+        }
+        if (!Objects.equals(start, that.start) || !Objects.equals(count, that.count))
+        {
+            return false;
+        }
+        if (!Arrays.equals(paramNames, that.paramNames) || !Arrays.equals(paramValues, that.paramValues))
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hashCode;
+    }
+
+    @Override
+    public String toString()
+    {
+        return digest;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rogue.app.framework.persistence.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Whitelists a persistent field for sorting and filtering in listings. Listings can only sort and filter on the
+ * annotated fields, which should therefore be indexed.
+ *
+ * @see rogue.app.framework.persistence.ListingQueryBuilder
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface ListingField
+{
+    /**
+     * The name of the property as exposed to the listings, e.g., the <code>sortBy</code> and <code>filterBy</code>
+     * expressions of a data table. Defaults to the name of the field.
+     */
+    String value() default "";
+
+    /**
+     * Identifies if the listings can be sorted on the field.
+     */
+    boolean sortable() default true;
+
+    /**
+     * The type of filter that the listings can apply on the field.
+     */
+    Filter filter() default Filter.NONE;
+
+    /**
+     * Identifies if the filter value should be converted to lower case, for fields that hold a lower case copy of
+     * another property.
+     */
+    boolean lowerCase() default false;
+
+    /**
+     * The types of filters supported on a field.
+     */
+    public enum Filter
+    {
+        /**
+         * The field cannot be filtered on.
+         */
+        NONE,
+        /**
+         * The field should be equal to the filter value.
+         */
+        EQUALS,
+        /**
+         * The field should start with the filter value. Only applicable to string fields.
+         */
+        PREFIX
+    }
+}
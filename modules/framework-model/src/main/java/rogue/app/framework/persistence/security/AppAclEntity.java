@@ -27,12 +27,13 @@ import rogue.app.framework.persistence.PersistenceUtils;
 import rogue.app.framework.persistence.PersistentEntity;
 import rogue.app.framework.security.AppAcl;
 import rogue.app.framework.security.AppAclEntry;
+import rogue.app.framework.security.AppPermission;
 import rogue.app.framework.security.AppPrincipal;
-import rogue.app.framework.util.ScopedStateHolder;
 
-import javax.enterprise.context.RequestScoped;
 import javax.enterprise.context.SessionScoped;
 import javax.persistence.Entity;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
 import java.security.Principal;
 import java.security.acl.AclEntry;
 import java.security.acl.LastOwnerException;
@@ -46,6 +47,12 @@ import java.util.logging.Logger;
  * Entity implementation of AppAcl
  */
 @Entity
+@NamedQueries({
+                      @NamedQuery(name = "AppAclEntity.findByAppObject",
+                                  query = "SELECT e FROM AppAclEntity e WHERE e.appObjRefKey = :appObjRefKey"),
+                      @NamedQuery(name = "AppAclEntity.findByAppObjects",
+                                  query = "SELECT e FROM AppAclEntity e WHERE e.appObjRefKey IN (:appObjRefKeys)")
+              })
 @Cacheable(preferredScope = SessionScoped.class)
 public class AppAclEntity extends PersistentEntity<AppAcl> implements AppAcl
 {
@@ -217,7 +224,7 @@ public class AppAclEntity extends PersistentEntity<AppAcl> implements AppAcl
     @Override
     public Enumeration<Permission> getPermissions(Principal principal)
     {
-        return Collections.enumeration(getPermissionsSet(principal));
+        return Collections.enumeration(EffectivePermissions.getPermissions(principal).getPermissionsSet(getId()));
     }
 
     @Override
@@ -231,7 +238,8 @@ public class AppAclEntity extends PersistentEntity<AppAcl> implements AppAcl
     @Override
     public boolean checkPermission(Principal principal, Permission permission)
     {
-        return getPermissionsSet(principal).contains(permission);
+        return permission instanceof AppPermission &&
+                EffectivePermissions.getPermissions(principal).checkPermission(getId(), (AppPermission) permission);
     }
 
     @Override
@@ -376,91 +384,6 @@ public class AppAclEntity extends PersistentEntity<AppAcl> implements AppAcl
         return Collections.emptyList();
     }
 
-    private Set<Permission> getPermissionsSet(Principal principal)
-    {
-        final String CACHE_KEY =
-                new StringBuilder(CLASS_NAME).append("_PermissionsSet_").append(principal).append(appObjRefKey)
-                                             .toString();
-
-        Set<Permission> permissionSet = ScopedStateHolder.getStateHolder(RequestScoped.class).get(CACHE_KEY);
-        if (principal != null && permissionSet == null)
-        {
-            AppPrincipal appPrincipal = (AppPrincipal) principal;
-
-            Set<Permission> groupPositiveSet = new HashSet<Permission>();
-            Set<Permission> groupNegativeSet = new HashSet<Permission>();
-
-            // Get the group permissions if present.
-            Enumeration<? extends AppPrincipal> roles = appPrincipal.getRoles();
-            while (roles.hasMoreElements())
-            {
-                AppPrincipal ap = roles.nextElement();
-                populatePermissionsSet(ap, groupPositiveSet, groupNegativeSet);
-            }
-
-            Set<Permission> principalPositiveSet = new HashSet<Permission>();
-            Set<Permission> principalNegativeSet = new HashSet<Permission>();
-            populatePermissionsSet(appPrincipal, principalPositiveSet, principalNegativeSet);
-
-            for (Permission p : principalPositiveSet)
-            {
-                groupNegativeSet.remove(p);
-            }
-
-            for (Permission p : principalNegativeSet)
-            {
-                groupPositiveSet.remove(p);
-            }
-
-            principalPositiveSet.addAll(groupPositiveSet);
-            principalNegativeSet.addAll(groupNegativeSet);
-
-            for (Permission p : principalNegativeSet)
-            {
-                principalPositiveSet.remove(p);
-            }
-
-            permissionSet = principalPositiveSet;
-            ScopedStateHolder.getStateHolder(RequestScoped.class).put(CACHE_KEY, permissionSet);
-        }
-        return permissionSet;
-    }
-
-    private void populatePermissionsSet(AppPrincipal<?> principal, Set<Permission> positiveSet,
-                                        Set<Permission> negativeSet)
-    {
-        List<AppAclEntry> entries = getEntriesForPrincipal(principal.getId());
-        for (AppAclEntry entry : entries)
-        {
-            if (!entry.isNegative())
-            {
-                positiveSet.addAll(entry.getPermissions());
-            }
-            else
-            {
-                negativeSet.addAll(entry.getPermissions());
-            }
-        }
-
-        //
-        // canonical form
-        //
-        List<Permission> commons = new ArrayList<Permission>();
-        for (Permission p : negativeSet)
-        {
-            if (positiveSet.contains(p))
-            {
-                commons.add(p);
-            }
-        }
-
-        for (Permission p : commons)
-        {
-            positiveSet.remove(p);
-            negativeSet.remove(p);
-        }
-    }
-
     ///
     /// equals & hashCode
     ///
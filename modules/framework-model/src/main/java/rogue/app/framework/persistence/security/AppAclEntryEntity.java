@@ -39,7 +39,9 @@ import java.util.*;
                       @NamedQuery(name = "AppAclEntryEntity.findAllForAcl",
                                   query = "SELECT e FROM AppAclEntryEntity e WHERE e.aclKey = :aclKey"),
                       @NamedQuery(name = "AppAclEntryEntity.findAllForAclPrincipal",
-                                  query = "SELECT e FROM AppAclEntryEntity e WHERE e.aclKey = :aclKey AND e.principalKey = :principalKey")
+                                  query = "SELECT e FROM AppAclEntryEntity e WHERE e.aclKey = :aclKey AND e.principalKey = :principalKey"),
+                      @NamedQuery(name = "AppAclEntryEntity.findAllForPrincipal",
+                                  query = "SELECT e FROM AppAclEntryEntity e WHERE e.principalKey = :principalKey")
               })
 @rogue.app.framework.persistence.Cacheable(preferredScope = SessionScoped.class)
 public class AppAclEntryEntity extends PersistentEntity<AppAclEntry> implements AppAclEntry
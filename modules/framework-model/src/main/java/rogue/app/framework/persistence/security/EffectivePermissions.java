@@ -0,0 +1,444 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.persistence.security;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import rogue.app.framework.AppRuntimeException;
+import rogue.app.framework.model.PersistentObject;
+import rogue.app.framework.persistence.JpaCallback;
+import rogue.app.framework.persistence.JpaController;
+import rogue.app.framework.persistence.PersistenceUtils;
+import rogue.app.framework.security.AppAcl;
+import rogue.app.framework.security.AppAclEntry;
+import rogue.app.framework.security.AppPermission;
+import rogue.app.framework.security.AppPrincipal;
+import rogue.app.framework.util.ScopedStateHolder;
+import rogue.app.framework.util.StateHolder;
+
+import javax.enterprise.context.RequestScoped;
+import javax.persistence.EntityManager;
+import java.security.Principal;
+import java.security.acl.Permission;
+import java.util.*;
+
+/**
+ * The effective permissions of a principal, across all the access control lists, as a bitmask of
+ * {@link AppPermission#getCode() permission codes} per ACL.
+ * <p/>
+ * The permissions are computed from the ACL entries of the principal and of each of its roles, i.e., one query per
+ * principal, irrespective of the number of ACLs. The principal's own entries take precedence over those of its roles,
+ * among the roles a denial takes precedence over a grant, and within the same principal, a permission that is both
+ * granted and denied is neither. The result is shared across the application and is tagged with the revision of the
+ * ACL entries, so that any change to an ACL entry discards it. Checking a permission is then a lookup and a bitwise
+ * AND.
+ * <p/>
+ * The ACL entries of a principal are read by a non-ancestor query, which is only eventually consistent and may not
+ * reflect a change for a short while. Permissions computed within that window after a revision change are therefore
+ * held in the request scope only, and are shared across the application once the window has elapsed.
+ */
+public final class EffectivePermissions
+{
+    /**
+     * Maximum number of principals whose permissions are held in memory.
+     */
+    private static final int MAX_CACHED_PRINCIPALS = 1000;
+
+    /**
+     * Maximum number of application objects whose ACL keys are held in memory.
+     */
+    private static final int MAX_CACHED_ACL_KEYS = 10000;
+
+    /**
+     * Marks application objects that do not have an ACL.
+     */
+    private static final Key NO_ACL = KeyFactory.createKey("_NoAcl", 1);
+
+    /**
+     * Maximum number of application objects whose ACLs are looked up by a single query.
+     */
+    private static final int ACL_BATCH_SIZE = 30;
+
+    /**
+     * Period, in milliseconds, after a change to the ACL entries during which the computed permissions are not shared.
+     */
+    private static final long CONSISTENCY_WINDOW = 10000;
+
+    private static final String REQUEST_KEY_PREFIX = "EffectivePermissions_";
+
+    private static final EffectivePermissions NONE = new EffectivePermissions(-1, Collections.<Key, Long>emptyMap());
+
+    private static final Cache<String, EffectivePermissions> PERMISSIONS =
+            CacheBuilder.newBuilder().maximumSize(MAX_CACHED_PRINCIPALS).build();
+
+    private static volatile AclKeys aclKeys = new AclKeys(-1);
+    private static volatile RevisionTimestamp lastRevision = new RevisionTimestamp(-1);
+
+    private final int revision;
+    private final Map<Key, Long> masks;
+
+    private EffectivePermissions(int revision, Map<Key, Long> masks)
+    {
+        this.revision = revision;
+        this.masks = masks;
+    }
+
+    /**
+     * Get the effective permissions of the given principal.
+     *
+     * @param principal the principal.
+     * @return the effective permissions of the principal.
+     */
+    public static EffectivePermissions getPermissions(Principal principal)
+    {
+        if (!(principal instanceof AppPrincipal) || ((AppPrincipal) principal).getId() == null)
+        {
+            return NONE;
+        }
+
+        AppPrincipal<?> appPrincipal = (AppPrincipal<?>) principal;
+        List<Key> roleKeys = new ArrayList<>();
+        Enumeration<? extends AppPrincipal> roles = appPrincipal.getRoles();
+        while (roles != null && roles.hasMoreElements())
+        {
+            AppPrincipal role = roles.nextElement();
+            if (role != null && role.getId() != null)
+            {
+                roleKeys.add(role.getId());
+            }
+        }
+
+        // The roles are part of the cache key, so that changes to the membership of the principal take effect.
+        Collections.sort(roleKeys);
+        String cacheKey = appPrincipal.getId() + " " + roleKeys;
+        int revision = JpaController.getController(AppAclEntry.class).getRevision();
+
+        EffectivePermissions permissions = PERMISSIONS.getIfPresent(cacheKey);
+        if (permissions == null || permissions.revision != revision)
+        {
+            StateHolder stateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
+            String requestKey = REQUEST_KEY_PREFIX + cacheKey;
+            permissions = stateHolder.get(requestKey);
+            if (permissions == null || permissions.revision != revision)
+            {
+                permissions = compute(revision, appPrincipal.getId(), roleKeys);
+                if (isSettled(revision))
+                {
+                    PERMISSIONS.put(cacheKey, permissions);
+                }
+                else
+                {
+                    stateHolder.put(requestKey, permissions);
+                }
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Check if the consistency window of the given revision of the ACL entries, as first observed by this instance,
+     * has elapsed.
+     */
+    private static boolean isSettled(int revision)
+    {
+        RevisionTimestamp last = lastRevision;
+        if (last.revision != revision)
+        {
+            last = new RevisionTimestamp(revision);
+            lastRevision = last;
+        }
+        return System.currentTimeMillis() - last.timestamp >= CONSISTENCY_WINDOW;
+    }
+
+    /**
+     * Get the permissions granted by the given ACL.
+     *
+     * @param aclKey the key of the ACL.
+     * @return the bitmask of permission codes.
+     */
+    public long getMask(Key aclKey)
+    {
+        Long mask = aclKey != null ? masks.get(aclKey) : null;
+        return mask != null ? mask : 0;
+    }
+
+    /**
+     * Check if the given ACL grants the specified permission.
+     *
+     * @param aclKey     the key of the ACL.
+     * @param permission the permission to check.
+     * @return true if the permission is granted, false otherwise.
+     */
+    public boolean checkPermission(Key aclKey, AppPermission permission)
+    {
+        return (getMask(aclKey) & permission.getCode()) == permission.getCode();
+    }
+
+    /**
+     * Get the permissions granted by the given ACL.
+     *
+     * @param aclKey the key of the ACL.
+     * @return the set of permissions.
+     */
+    public Set<Permission> getPermissionsSet(Key aclKey)
+    {
+        long mask = getMask(aclKey);
+        Set<Permission> permissions = new HashSet<>();
+        for (AppPermission p : AppPermission.PERMISSIONS)
+        {
+            if ((mask & p.getCode()) == p.getCode())
+            {
+                permissions.add(p);
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Retain the objects on which the principal has been granted the specified permission. Objects that are not
+     * secured by an ACL are retained as well. The ACLs of the objects are looked up in batches, rather than one object
+     * at a time.
+     *
+     * @param objects    the objects to filter.
+     * @param principal  the principal.
+     * @param permission the required permission.
+     * @param <E>        type of the objects.
+     * @return a new list of the retained objects, in their original order.
+     */
+    public static <E extends PersistentObject<?>> List<E> filter(Collection<E> objects, Principal principal,
+                                                                 AppPermission permission)
+    {
+        EffectivePermissions permissions = getPermissions(principal);
+        AclKeys keys = getAclKeys();
+        List<Key> appObjKeys = new ArrayList<>(objects.size());
+        for (E object : objects)
+        {
+            if (object != null && object.getId() != null)
+            {
+                appObjKeys.add(object.getId());
+            }
+        }
+        keys.load(appObjKeys);
+
+        List<E> retained = new ArrayList<>(objects.size());
+        for (E object : objects)
+        {
+            Key aclKey = object != null ? keys.get(object.getId()) : null;
+            if (aclKey == null || permissions.checkPermission(aclKey, permission))
+            {
+                retained.add(object);
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Compute the effective permissions of a principal, across all ACLs.
+     */
+    private static EffectivePermissions compute(int revision, Key principalKey, List<Key> roleKeys)
+    {
+        // ACL key -> {positive, negative}
+        Map<Key, long[]> roleMasks = new HashMap<>();
+        for (Key roleKey : roleKeys)
+        {
+            for (Map.Entry<Key, long[]> entry : getMasks(roleKey).entrySet())
+            {
+                long[] masks = roleMasks.get(entry.getKey());
+                if (masks == null)
+                {
+                    roleMasks.put(entry.getKey(), entry.getValue());
+                }
+                else
+                {
+                    masks[0] |= entry.getValue()[0];
+                    masks[1] |= entry.getValue()[1];
+                }
+            }
+        }
+
+        Map<Key, long[]> principalMasks = getMasks(principalKey);
+        Set<Key> aclKeySet = new HashSet<>(roleMasks.keySet());
+        aclKeySet.addAll(principalMasks.keySet());
+
+        Map<Key, Long> effective = new HashMap<>(aclKeySet.size());
+        for (Key aclKey : aclKeySet)
+        {
+            long[] role = roleMasks.containsKey(aclKey) ? roleMasks.get(aclKey) : new long[2];
+            long[] own = principalMasks.containsKey(aclKey) ? principalMasks.get(aclKey) : new long[2];
+
+            // The principal's own entries override those of its roles.
+            long positive = own[0] | (role[0] & ~own[1]);
+            long negative = own[1] | (role[1] & ~own[0]);
+            long mask = positive & ~negative;
+            if (mask != 0)
+            {
+                effective.put(aclKey, mask);
+            }
+        }
+        return new EffectivePermissions(revision, effective);
+    }
+
+    /**
+     * Get the canonical positive and negative permission codes of a single principal, per ACL.
+     */
+    private static Map<Key, long[]> getMasks(Key principalKey)
+    {
+        // Bypass the query cache, whose results may have been populated within the consistency window.
+        List<?> entries = PersistenceUtils.executeJpaCallback(FIND_ENTRIES_FOR_PRINCIPAL, false, principalKey);
+
+        Map<Key, long[]> masks = new HashMap<>();
+        for (Object o : entries)
+        {
+            AppAclEntry entry = (AppAclEntry) o;
+            Key aclKey = entry instanceof AppAclEntryEntity ? ((AppAclEntryEntity) entry).getAclKey() : null;
+            if (aclKey == null)
+            {
+                continue;
+            }
+
+            long[] m = masks.get(aclKey);
+            if (m == null)
+            {
+                m = new long[2];
+                masks.put(aclKey, m);
+            }
+            m[entry.isNegative() ? 1 : 0] |= entry.getPermissionsCode();
+        }
+
+        // A permission that is both granted and denied to the same principal is neither.
+        for (long[] m : masks.values())
+        {
+            long common = m[0] & m[1];
+            m[0] &= ~common;
+            m[1] &= ~common;
+        }
+        return masks;
+    }
+
+    private static final JpaCallback<List<?>> FIND_ENTRIES_FOR_PRINCIPAL = new JpaCallback<List<?>>()
+    {
+        @Override
+        public List<?> execute(EntityManager entityManager, Object... params) throws AppRuntimeException
+        {
+            return entityManager.createNamedQuery("AppAclEntryEntity.findAllForPrincipal")
+                                .setParameter("principalKey", params[0])
+                                .getResultList();
+        }
+    };
+
+    private static AclKeys getAclKeys()
+    {
+        int revision = JpaController.getController(AppAcl.class).getRevision();
+        AclKeys keys = aclKeys;
+        if (keys.revision != revision)
+        {
+            keys = new AclKeys(revision);
+            aclKeys = keys;
+        }
+        return keys;
+    }
+
+    /**
+     * A revision of the ACL entries and the time at which it was first observed.
+     */
+    private static final class RevisionTimestamp
+    {
+        private final int revision;
+        private final long timestamp = System.currentTimeMillis();
+
+        private RevisionTimestamp(int revision)
+        {
+            this.revision = revision;
+        }
+    }
+
+    /**
+     * Maps application objects to the keys of their ACLs.
+     */
+    private static final class AclKeys
+    {
+        private final int revision;
+        private final Cache<Key, Key> keys = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_ACL_KEYS).build();
+
+        private AclKeys(int revision)
+        {
+            this.revision = revision;
+        }
+
+        /**
+         * Look up the ACLs of the given application objects, that are not cached yet, in batches.
+         */
+        private void load(Collection<Key> appObjKeys)
+        {
+            List<Key> missing = new ArrayList<>();
+            for (Key appObjKey : appObjKeys)
+            {
+                if (keys.getIfPresent(appObjKey) == null)
+                {
+                    missing.add(appObjKey);
+                }
+            }
+
+            JpaController<AppAcl> controller = JpaController.getController(AppAcl.class);
+            for (int i = 0; i < missing.size(); i += ACL_BATCH_SIZE)
+            {
+                List<Key> batch = missing.subList(i, Math.min(i + ACL_BATCH_SIZE, missing.size()));
+                Map<String, Object> queryParams = new HashMap<>(1);
+                queryParams.put("appObjRefKeys", new ArrayList<>(batch));
+                List<AppAcl> acls = controller.executeNamedQueryListResult("AppAclEntity.findByAppObjects", 0, -1,
+                                                                           queryParams);
+
+                Map<Key, Key> found = new HashMap<>(acls.size());
+                for (AppAcl acl : acls)
+                {
+                    if (acl instanceof AppAclEntity && ((AppAclEntity) acl).getAppObjRefKey() != null)
+                    {
+                        found.put(((AppAclEntity) acl).getAppObjRefKey(), acl.getId());
+                    }
+                }
+                for (Key appObjKey : batch)
+                {
+                    Key aclKey = found.get(appObjKey);
+                    keys.put(appObjKey, aclKey != null ? aclKey : NO_ACL);
+                }
+            }
+        }
+
+        private Key get(Key appObjKey)
+        {
+            if (appObjKey == null)
+            {
+                return null;
+            }
+
+            Key aclKey = keys.getIfPresent(appObjKey);
+            if (aclKey == null)
+            {
+                Map<String, Object> queryParams = new HashMap<>(1);
+                queryParams.put("appObjRefKey", appObjKey);
+                AppAcl acl = JpaController.getController(AppAcl.class)
+                                          .executeNamedQuerySingleResult("AppAclEntity.findByAppObject",
+                                                                         queryParams);
+                aclKey = acl != null ? acl.getId() : NO_ACL;
+                keys.put(appObjKey, aclKey);
+            }
+            return aclKey != NO_ACL ? aclKey : null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.search;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Service provider interface for the engine that stores and queries the search indexes used by the
+ * {@link SearchController}. The backend is selected via the <code>rogue.app.framework.search.BACKEND</code> system
+ * property, which can be set to one of the following values:
+ * <pre>
+ *     gae      - the App Engine Search API (default).
+ *     embedded - an in-process inverted index, for development and benchmarking on a plain JVM.
+ *     &lt;class&gt;  - the fully qualified name of a SearchBackend implementation with a public no-arg constructor.
+ * </pre>
+ * Implementations must be thread safe.
+ */
+public interface SearchBackend
+{
+    /**
+     * Add the given documents to the named index. Existing documents with the same ids are replaced.
+     *
+     * @param indexName the name of the index.
+     * @param documents the documents to add.
+     */
+    void put(String indexName, Collection<SearchDocument> documents);
+
+    /**
+     * Remove the documents, identified by the given ids, from the named index. Unknown ids are ignored.
+     *
+     * @param indexName the name of the index.
+     * @param docIds    the ids of the documents to remove.
+     */
+    void delete(String indexName, Collection<String> docIds);
+
+    /**
+     * Get the ids of the documents of the named index, in ascending order, starting after the given id.
+     *
+     * @param indexName the name of the index.
+     * @param afterId   the id after which to start, or null to start from the first document.
+     * @param limit     the maximum number of ids to return.
+     * @return the ids of the documents.
+     */
+    List<String> listIds(String indexName, String afterId, int limit);
+
+    /**
+     * Query the named index and return the ids of the matching documents, best match first.
+     *
+     * @param indexName   the name of the index.
+     * @param queryString the query string.
+     * @param offset      the number of matches to skip.
+     * @param limit       the maximum number of ids to return.
+     * @return the ids of the matching documents.
+     */
+    List<String> search(String indexName, String queryString, int offset, int limit);
+}
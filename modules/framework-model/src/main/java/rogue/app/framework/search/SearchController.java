@@ -18,22 +18,34 @@ package rogue.app.framework.search;
 
 import com.google.appengine.api.datastore.GeoPt;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.search.*;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.GeoPoint;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
 import org.apache.commons.lang.StringUtils;
 import rogue.app.framework.AppRuntimeException;
+import rogue.app.framework.internal.search.EmbeddedSearchBackend;
+import rogue.app.framework.internal.search.GaeSearchBackend;
 import rogue.app.framework.internal.util.ClassUtils;
 import rogue.app.framework.model.AppObject;
 import rogue.app.framework.model.PersistentObject;
 import rogue.app.framework.persistence.JpaController;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Search and index <code>AppObject</code> instances.
+ * Search and index <code>AppObject</code> instances. The documents are stored in, and queried from, the configured
+ * {@link SearchBackend}.
  */
 public class SearchController<T extends PersistentObject<T>>
 {
@@ -45,9 +57,13 @@ public class SearchController<T extends PersistentObject<T>>
     private static final String CLASS_NAME = SearchController.class.getName();
     private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
 
-    private static final Map<Class<? extends AppObject>, SearchController> searchControllerMap = new HashMap<>();
+    private static final ConcurrentMap<Class<? extends AppObject>, SearchController> searchControllerMap =
+            new ConcurrentHashMap<>();
 
-    private Index searchIndex;
+    private static final SearchBackend BACKEND =
+            createBackend(System.getProperty("rogue.app.framework.search.BACKEND", "gae"));
+
+    private final String indexName;
     private List<MethodMetadata> methodMetadataList;
     private final Class<T> appObjClass;
 
@@ -68,7 +84,7 @@ public class SearchController<T extends PersistentObject<T>>
         }
 
         this.appObjClass = appObjClass;
-        String indexName = StringUtils.trimToEmpty(searchIndexAnn.name());
+        this.indexName = StringUtils.trimToEmpty(searchIndexAnn.name());
 
         if (StringUtils.isEmpty(indexName))
         {
@@ -76,11 +92,8 @@ public class SearchController<T extends PersistentObject<T>>
         }
 
         LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME,
-                    String.format("Constructing Index for class %s with index name %s",
-                                  appObjClass.getName(), indexName));
-
-        IndexSpec indexSpec = IndexSpec.newBuilder().setName(indexName).build();
-        searchIndex = SearchServiceFactory.getSearchService().getIndex(indexSpec);
+                    String.format("Constructing Index for class %s with index name %s using %s",
+                                  appObjClass.getName(), indexName, BACKEND.getClass().getName()));
 
         // Identify all the fields that should be indexed.
         methodMetadataList = getSearchMethods(appObjClass);
@@ -109,19 +122,44 @@ public class SearchController<T extends PersistentObject<T>>
         if (controller == null)
         {
             controller = new SearchController<E>(appObjClass);
-            searchControllerMap.put(appObjClass, controller);
+            SearchController<E> existing = searchControllerMap.putIfAbsent(appObjClass, controller);
+            if (existing != null)
+            {
+                controller = existing;
+            }
         }
         return controller;
     }
 
     /**
-     * Get the search index associated with the current instance.
+     * Get the search backend used by the application.
+     *
+     * @return the search backend used by the application.
+     */
+    public static SearchBackend getSearchBackend()
+    {
+        return BACKEND;
+    }
+
+    /**
+     * Get the name of the search index associated with the current instance.
+     *
+     * @return the name of the search index.
+     */
+    public String getIndexName()
+    {
+        return indexName;
+    }
+
+    /**
+     * Get the App Engine search index associated with the current instance.
      *
-     * @return the search index associated with the current instance.
+     * @return the search index associated with the current instance, or null if the application is not using the
+     *         App Engine search backend.
      */
     protected Index getSearchIndex()
     {
-        return searchIndex;
+        return BACKEND instanceof GaeSearchBackend ? ((GaeSearchBackend) BACKEND).getIndex(indexName) : null;
     }
 
     /**
@@ -133,25 +171,33 @@ public class SearchController<T extends PersistentObject<T>>
     {
         if (keys != null)
         {
-            List<Document> docList = new ArrayList<Document>();
-            for (Key k : keys)
-            {
-                JpaController<T> controller = JpaController.getController(appObjClass);
-                T object = controller.findById(k);
-                Document document = buildDocument(object);
-                if (document != null)
-                {
-                    // First try and remove it, then add it.
-                    remove(k);
-                    docList.add(document);
-                }
-            }
+            index(JpaController.getController(appObjClass).findByIds(Arrays.asList(keys)));
+        }
+    }
 
-            if (!docList.isEmpty())
+    /**
+     * Add the given objects to the index, in a single batch. Documents that already exist are replaced.
+     *
+     * @param objects the objects to add.
+     * @return the number of documents that were added.
+     */
+    public int index(Collection<T> objects)
+    {
+        List<SearchDocument> docList = new ArrayList<>(objects.size());
+        for (T object : objects)
+        {
+            SearchDocument document = buildDocument(object);
+            if (document != null)
             {
-                getSearchIndex().put(docList.toArray(new Document[docList.size()]));
+                docList.add(document);
             }
         }
+
+        if (!docList.isEmpty())
+        {
+            BACKEND.put(indexName, docList);
+        }
+        return docList.size();
     }
 
     /**
@@ -161,7 +207,6 @@ public class SearchController<T extends PersistentObject<T>>
      */
     public void remove(Key... keys)
     {
-        final String METHOD_NAME = "remove";
         if (keys != null)
         {
             List<String> docIds = new ArrayList<String>();
@@ -175,26 +220,7 @@ public class SearchController<T extends PersistentObject<T>>
 
             if (!docIds.isEmpty())
             {
-                try
-                {
-                    getSearchIndex().delete(docIds.toArray(new String[docIds.size()]));
-                }
-                catch (DeleteException e)
-                {
-                    List<String> failedIds = new ArrayList<String>();
-                    Iterator<OperationResult> resultIterator = e.getResults().iterator();
-                    Iterator<String> docIdIterator = docIds.iterator();
-                    while (resultIterator.hasNext() && docIdIterator.hasNext())
-                    {
-                        OperationResult result = resultIterator.next();
-                        String docId = docIdIterator.next();
-                        if (!StatusCode.OK.equals(result.getCode()))
-                        {
-                            failedIds.add(docId);
-                        }
-                    }
-                    LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to remove documents " + failedIds, e);
-                }
+                BACKEND.delete(indexName, docIds);
             }
         }
     }
@@ -208,6 +234,20 @@ public class SearchController<T extends PersistentObject<T>>
      * @return a list of results matching the given search criteria.
      */
     public List<T> search(String queryString, int limit)
+    {
+        return search(queryString, 0, limit);
+    }
+
+    /**
+     * Search and return a page of <code>AppObject</code>s that match the given query criteria, best match first.
+     *
+     * @param queryString the string to query.
+     * @param offset      the number of matches to skip.
+     * @param limit       the number of results to fetch. If set to a non-positive number, then
+     *                    {@link SearchController#DEFAULT_RESULT_SIZE default values} will take effect.
+     * @return a list of results matching the given search criteria.
+     */
+    public List<T> search(String queryString, int offset, int limit)
     {
         if (StringUtils.isEmpty(queryString))
         {
@@ -219,34 +259,44 @@ public class SearchController<T extends PersistentObject<T>>
             limit = DEFAULT_RESULT_SIZE;
         }
 
-        Query.Builder builder = Query.newBuilder();
-        builder.setOptions(QueryOptions.newBuilder().setLimit(limit).build());
-        Query query = builder.build(queryString);
-        return search(query);
+        return toResults(BACKEND.search(indexName, queryString, Math.max(0, offset), limit));
     }
 
     /**
-     * Search and return a list of <code>AppObject</code>s that match the given query criteria.
+     * Search and return a list of <code>AppObject</code>s that match the given query criteria. Backends other than the
+     * App Engine search backend only honor the query string, the offset and the limit of the query.
      *
      * @param query the query to execute.
      * @return a list of results matching the given search criteria.
      */
     public List<T> search(Query query)
     {
-        final String METHOD_NAME = "search(query)";
-        Results<ScoredDocument> scoredResults = getSearchIndex().search(query);
-        List<T> results = new ArrayList<T>();
+        if (BACKEND instanceof GaeSearchBackend)
+        {
+            return toResults(((GaeSearchBackend) BACKEND).search(indexName, query));
+        }
+
+        QueryOptions options = query.getOptions();
+        return search(query.getQueryString(), options != null ? options.getOffset() : 0,
+                      options != null ? options.getLimit() : DEFAULT_RESULT_SIZE);
+    }
+
+    /**
+     * Load the objects identified by the given document ids, preserving their order.
+     *
+     * @param docIds the document ids.
+     * @return the list of objects.
+     */
+    private List<T> toResults(List<String> docIds)
+    {
+        final String METHOD_NAME = "toResults";
+        List<Key> keys = new ArrayList<Key>(docIds.size());
         JpaController<T> controller = JpaController.getController(appObjClass);
-        for (ScoredDocument doc : scoredResults)
+        for (String docId : docIds)
         {
             try
             {
-                Key key = controller.constructKey(Long.parseLong(doc.getId()));
-                T appObj = controller.findById(key);
-                if (appObj != null)
-                {
-                    results.add(appObj);
-                }
+                keys.add(controller.constructKey(Long.parseLong(docId)));
             }
             catch (NumberFormatException e)
             {
@@ -254,11 +304,10 @@ public class SearchController<T extends PersistentObject<T>>
                             "Caught a number format exception while parsing the key.", e);
             }
         }
-        return results;
+        return controller.findByIds(keys);
     }
 
-
-    protected Document buildDocument(T appObject) throws AppRuntimeException
+    protected SearchDocument buildDocument(T appObject) throws AppRuntimeException
     {
         final String METHOD_NAME = "buildDocument";
         if (appObject == null)
@@ -270,6 +319,7 @@ public class SearchController<T extends PersistentObject<T>>
         {
             LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
                         "Cannot build documents whose ID is null - " + appObject.toString());
+            return null;
         }
 
         if (methodMetadataList.isEmpty())
@@ -280,18 +330,20 @@ public class SearchController<T extends PersistentObject<T>>
             return null;
         }
 
-        Document.Builder docBuilder = Document.newBuilder();
-
         // Set the ID
-        docBuilder.setId(Long.toString(appObject.getId().getId()));
+        SearchDocument document = new SearchDocument(Long.toString(appObject.getId().getId()));
 
         // Iterate over the methods.
         for (MethodMetadata metadata : methodMetadataList)
         {
             try
             {
-                Field.Builder fieldBuilder = resolveField(metadata, appObject);
-                docBuilder.addField(fieldBuilder);
+                Object value = resolveField(metadata, appObject);
+                if (value != null)
+                {
+                    document.addField(metadata.getFieldName(), metadata.getFieldType(), value,
+                                      metadata.getWeight());
+                }
             }
             catch (Exception e)
             {
@@ -303,70 +355,71 @@ public class SearchController<T extends PersistentObject<T>>
             }
         }
 
-        return docBuilder.build();
+        return document;
     }
 
-    protected Field.Builder resolveField(MethodMetadata metadata, T appObject)
-            throws InvocationTargetException, IllegalAccessException
+    /**
+     * Resolve the value of a field, normalized as described by {@link SearchDocument}.
+     *
+     * @return the normalized value, or null if the field should be left out of the document.
+     */
+    private Object resolveField(MethodMetadata metadata, T appObject) throws InvocationTargetException
     {
         final String METHOD_NAME = "resolveField";
-        Method m = metadata.getMethod();
-        Object value = m.invoke(appObject, (Object[]) null);
+        Object value;
+        try
+        {
+            value = (Object) metadata.getGetter().invokeExact((Object) appObject);
+        }
+        catch (RuntimeException | Error e)
+        {
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            throw new InvocationTargetException(t);
+        }
 
         if (value == null)
         {
             return null;
         }
 
-        Field.Builder builder = Field.newBuilder();
-        builder.setName(metadata.getFieldName());
         switch (metadata.getFieldType())
         {
             case TEXT:
-                builder.setText(String.valueOf(value));
-                break;
             case HTML:
-                builder.setHTML(String.valueOf(value));
-                break;
-            case NUMBER:
-                builder.setNumber(Double.parseDouble(String.valueOf(value)));
-                break;
             case ATOM:
-                builder.setAtom(String.valueOf(value));
-                break;
+                return String.valueOf(value);
+            case NUMBER:
+                return value instanceof Number ? ((Number) value).doubleValue() :
+                       Double.parseDouble(String.valueOf(value));
             case DATE:
                 if (value instanceof Date)
                 {
-                    builder.setDate((Date) value);
+                    return value;
                 }
-                else
-                {
-                    LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
-                                "Resolved value is not an instance of Date - " + value);
-                }
-                break;
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                            "Resolved value is not an instance of Date - " + value);
+                return null;
             case GEO_POINT:
                 if (value instanceof GeoPt)
                 {
-                    builder.setGeoPoint(toGeoPoint((GeoPt) value));
+                    return toGeoPoint((GeoPt) value);
                 }
                 else if (value instanceof GeoPoint)
                 {
-                    builder.setGeoPoint((GeoPoint) value);
-                }
-                else
-                {
-                    LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
-                                "Resolved value is neither an instance of GeoPt nor GeoPoint - " + value);
+                    return value;
                 }
-                break;
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                            "Resolved value is neither an instance of GeoPt nor GeoPoint - " + value);
+                return null;
             default:
                 LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
                             String.format("No code available to handle fieldType: %s. Treating it as string.",
                                           metadata.getFieldType()));
-                builder.setText(String.valueOf(value));
+                return String.valueOf(value);
         }
-        return builder;
     }
 
     /**
@@ -380,6 +433,39 @@ public class SearchController<T extends PersistentObject<T>>
         return pt != null ? new GeoPoint(pt.getLatitude(), pt.getLongitude()) : null;
     }
 
+    /**
+     * Create the search backend identified by the given name.
+     *
+     * @param name <code>gae</code>, <code>embedded</code> or the fully qualified name of a {@link SearchBackend}
+     *             implementation.
+     * @return the search backend.
+     */
+    private static SearchBackend createBackend(String name)
+    {
+        final String METHOD_NAME = "createBackend";
+        name = StringUtils.trimToEmpty(name);
+        if (name.isEmpty() || "gae".equalsIgnoreCase(name))
+        {
+            return new GaeSearchBackend();
+        }
+        if ("embedded".equalsIgnoreCase(name))
+        {
+            return new EmbeddedSearchBackend();
+        }
+
+        try
+        {
+            Class<?> c = Thread.currentThread().getContextClassLoader().loadClass(name);
+            return (SearchBackend) c.newInstance();
+        }
+        catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e)
+        {
+            LOGGER.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME,
+                        "Unable to create search backend " + name + ". Falling back to the App Engine backend.", e);
+            return new GaeSearchBackend();
+        }
+    }
+
     /**
      * Get a list of methods annotated with {@link rogue.app.framework.search.SearchField} within the given class's hierarchy.
      *
@@ -398,13 +484,18 @@ public class SearchController<T extends PersistentObject<T>>
     }
 
     /**
-     * Utility class leveraged by the Search implementation.
+     * Utility class leveraged by the Search implementation. The metadata of a class's fields is computed once, when
+     * its controller is created, and the getters are invoked through method handles, rather than by reflection.
      */
     private static class MethodMetadata
     {
+        private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
         private Method method;
+        private MethodHandle getter;
         private String fieldName;
         private Field.FieldType fieldType;
+        private double weight;
 
         protected MethodMetadata(Method method)
         {
@@ -420,6 +511,17 @@ public class SearchController<T extends PersistentObject<T>>
                 throw new AppRuntimeException("Search field name cannot be empty.");
             }
             this.fieldType = fieldAnn.type();
+            this.weight = fieldAnn.weight();
+
+            try
+            {
+                method.setAccessible(true);
+                this.getter = MethodHandles.lookup().unreflect(method).asType(GETTER_TYPE);
+            }
+            catch (IllegalAccessException | SecurityException e)
+            {
+                throw new AppRuntimeException("Unable to access search field method: " + method, e);
+            }
         }
 
         public Method getMethod()
@@ -427,6 +529,11 @@ public class SearchController<T extends PersistentObject<T>>
             return method;
         }
 
+        public MethodHandle getGetter()
+        {
+            return getter;
+        }
+
         public String getFieldName()
         {
             return fieldName;
@@ -436,5 +543,10 @@ public class SearchController<T extends PersistentObject<T>>
         {
             return fieldType;
         }
+
+        public double getWeight()
+        {
+            return weight;
+        }
     }
 }
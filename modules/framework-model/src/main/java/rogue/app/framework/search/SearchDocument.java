@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.search;
+
+import com.google.appengine.api.search.Field;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backend neutral representation of an indexed <code>AppObject</code>, built from the methods annotated with
+ * {@link SearchField}. The values of the fields are normalized as follows:
+ * <pre>
+ *     TEXT, HTML, ATOM - java.lang.String
+ *     NUMBER           - java.lang.Double
+ *     DATE             - java.util.Date
+ *     GEO_POINT        - com.google.appengine.api.search.GeoPoint
+ * </pre>
+ */
+public final class SearchDocument
+{
+    private final String id;
+    private final List<FieldValue> fields = new ArrayList<>();
+
+    /**
+     * Construct a new document.
+     *
+     * @param id the document id.
+     */
+    public SearchDocument(String id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * Get the document id.
+     *
+     * @return the document id.
+     */
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * Add a field to the document.
+     *
+     * @param name   the field name.
+     * @param type   the field type.
+     * @param value  the normalized value of the field.
+     * @param weight the relative weight of matches in this field.
+     * @return the current document.
+     */
+    public SearchDocument addField(String name, Field.FieldType type, Object value, double weight)
+    {
+        fields.add(new FieldValue(name, type, value, weight));
+        return this;
+    }
+
+    /**
+     * Get the fields of the document, in the order in which they were added.
+     *
+     * @return an unmodifiable list of the fields.
+     */
+    public List<FieldValue> getFields()
+    {
+        return Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * A single field of a {@link SearchDocument}.
+     */
+    public static final class FieldValue
+    {
+        private final String name;
+        private final Field.FieldType type;
+        private final Object value;
+        private final double weight;
+
+        private FieldValue(String name, Field.FieldType type, Object value, double weight)
+        {
+            this.name = name;
+            this.type = type;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public Field.FieldType getType()
+        {
+            return type;
+        }
+
+        public Object getValue()
+        {
+            return value;
+        }
+
+        public double getWeight()
+        {
+            return weight;
+        }
+    }
+}
@@ -42,4 +42,12 @@ public @interface SearchField
      * @return type of data represented by this field.
      */
     Field.FieldType type();
+
+    /**
+     * The relative weight of matches in this field, when scoring results. Only honored by search backends that support
+     * field weighted scoring.
+     *
+     * @return relative weight of matches in this field.
+     */
+    double weight() default 1.0;
 }
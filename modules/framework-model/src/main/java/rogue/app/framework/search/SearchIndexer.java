@@ -17,6 +17,9 @@
 package rogue.app.framework.search;
 
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
@@ -26,20 +29,56 @@ import rogue.app.framework.util.ScopedStateHolder;
 import rogue.app.framework.util.StateHolder;
 
 import javax.enterprise.context.RequestScoped;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Convenience class for updating search indices.
+ * <p/>
+ * Keys are deduplicated within a request, and then coalesced across requests: a key that is already waiting to be
+ * indexed is not queued up again, since the pending task reads the latest state of the object when it runs. Tasks are
+ * therefore delayed by a short coalescing window, during which further updates to the same objects are absorbed.
+ * <p/>
+ * The following system properties can be used to tune the indexer:
+ * <pre>
+ *     rogue.app.framework.search.BATCH_SIZE        - maximum number of keys per task, 100 by default.
+ *     rogue.app.framework.search.COALESCING_WINDOW - coalescing window in seconds, 10 by default.
+ * </pre>
+ * The rate at which the tasks are processed is controlled by the <code>SearchIndexerQueue</code> entry in
+ * <code>queue.xml</code>.
  */
 public final class SearchIndexer
 {
+    private static final String CLASS_NAME = SearchIndexer.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
     private static final String SEARCH_TASK_URL = "/tasks/searchIndexer";
     private static final String SEARCH_QUEUE_NAME = "SearchIndexerQueue";
     private static final String QUEUE_INDEX_ADD_KEY = "_search_add_to_index";
     private static final String QUEUE_INDEX_REMOVE_KEY = "_search_remove_from_index";
+    private static final String PENDING_KEY_PREFIX = "_search_pending_";
+    private static final String BACKLOG_KEY = "_search_backlog";
+
+    /**
+     * Maximum number of keys per task. The search service does not accept more than 200 documents per request.
+     */
+    private static final int BATCH_SIZE =
+            Math.max(1, Math.min(200, Integer.getInteger("rogue.app.framework.search.BATCH_SIZE", 100)));
+
+    /**
+     * Coalescing window, in seconds.
+     */
+    private static final int COALESCING_WINDOW =
+            Math.max(0, Integer.getInteger("rogue.app.framework.search.COALESCING_WINDOW", 10));
+
+    /**
+     * Pending markers outlive the coalescing window, to cover delays in the processing of the queue. A marker that
+     * expires before its task runs merely results in a duplicate task.
+     */
+    private static final Expiration PENDING_EXPIRATION = Expiration.byDeltaSeconds(COALESCING_WINDOW * 2 + 60);
+
+    private static final MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
 
     /**
      * Private constructor.
@@ -50,7 +89,8 @@ public final class SearchIndexer
 
 
     /**
-     * Enqueue keys for indexing.
+     * Enqueue keys for indexing. If a key has already been queued up in the current request for the opposite operation,
+     * then it is discarded from there, i.e., the last operation wins.
      *
      * @param clazz the application object class.
      * @param add   true if the keys should be added to the index, false otherwise
@@ -59,27 +99,20 @@ public final class SearchIndexer
     public static void queue(Class<? extends PersistentObject> clazz, boolean add, Key... keys)
     {
         StateHolder stateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
-        String scopeKey = add ? QUEUE_INDEX_ADD_KEY : QUEUE_INDEX_REMOVE_KEY;
 
-        Map<Class<? extends AppObject>, List<Key>> queueMap = stateHolder.get(scopeKey);
-        if (queueMap == null)
-        {
-            queueMap = new HashMap<>();
-            stateHolder.put(scopeKey, queueMap);
-        }
-
-        List<Key> keyList = queueMap.get(clazz);
-        if (keyList == null)
-        {
-            keyList = new ArrayList<Key>();
-            queueMap.put(clazz, keyList);
-        }
+        Set<Key> keySet = getQueuedKeys(stateHolder, add ? QUEUE_INDEX_ADD_KEY : QUEUE_INDEX_REMOVE_KEY, clazz, true);
+        Set<Key> oppositeKeySet =
+                getQueuedKeys(stateHolder, add ? QUEUE_INDEX_REMOVE_KEY : QUEUE_INDEX_ADD_KEY, clazz, false);
 
         for (Key k : keys)
         {
-            if (k != null && !keyList.contains(k))
+            if (k != null)
             {
-                keyList.add(k);
+                keySet.add(k);
+                if (oppositeKeySet != null)
+                {
+                    oppositeKeySet.remove(k);
+                }
             }
         }
     }
@@ -91,49 +124,190 @@ public final class SearchIndexer
     public static void processQueue()
     {
         StateHolder stateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
-        processQueueMap((Map<Class<? extends AppObject>, List<Key>>) stateHolder.get(QUEUE_INDEX_REMOVE_KEY), true);
-        processQueueMap((Map<Class<? extends AppObject>, List<Key>>) stateHolder.get(QUEUE_INDEX_ADD_KEY), false);
+        processQueueMap((Map<Class<? extends AppObject>, Set<Key>>) stateHolder.get(QUEUE_INDEX_REMOVE_KEY), true);
+        processQueueMap((Map<Class<? extends AppObject>, Set<Key>>) stateHolder.get(QUEUE_INDEX_ADD_KEY), false);
+    }
+
+    /**
+     * Mark the given keys as no longer pending, so that subsequent updates to them are queued up again. This method
+     * should be invoked by the queue processor before it reads the objects.
+     *
+     * @param clazz  the application object class.
+     * @param remove true if the keys are being removed from the index, false otherwise.
+     * @param keys   the ids of the application objects.
+     */
+    public static void release(Class<?> clazz, boolean remove, Collection<Key> keys)
+    {
+        final String METHOD_NAME = "release";
+
+        List<String> pendingKeys = new ArrayList<>(keys.size());
+        for (Key k : keys)
+        {
+            pendingKeys.add(getPendingKey(clazz, remove, k));
+        }
+
+        try
+        {
+            memCache.deleteAll(pendingKeys);
+        }
+        catch (Exception e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to release pending keys.", e);
+        }
+    }
+
+    /**
+     * Record that the given number of keys have been processed.
+     *
+     * @param count the number of keys processed.
+     */
+    public static void processed(int count)
+    {
+        updateBacklog(-count);
+    }
+
+    /**
+     * Get the approximate number of keys waiting to be processed. The counter is held in memcache, and is reset if it
+     * gets evicted. Memcache does not decrement below zero, hence a reset counter never goes negative either.
+     *
+     * @return the approximate number of keys waiting to be processed.
+     */
+    public static long getBacklog()
+    {
+        final String METHOD_NAME = "getBacklog";
+        try
+        {
+            Object value = memCache.get(BACKLOG_KEY);
+            return value instanceof Number ? Math.max(((Number) value).longValue(), 0) : 0;
+        }
+        catch (Exception e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to read the backlog counter.", e);
+            return 0;
+        }
     }
 
-    private static void processQueueMap(Map<Class<? extends AppObject>, List<Key>> queueMap, boolean remove)
+    @SuppressWarnings("unchecked")
+    private static Set<Key> getQueuedKeys(StateHolder stateHolder, String scopeKey,
+                                          Class<? extends PersistentObject> clazz, boolean create)
+    {
+        Map<Class<? extends AppObject>, Set<Key>> queueMap = stateHolder.get(scopeKey);
+        if (queueMap == null)
+        {
+            if (!create)
+            {
+                return null;
+            }
+            queueMap = new HashMap<>();
+            stateHolder.put(scopeKey, queueMap);
+        }
+
+        Set<Key> keySet = queueMap.get(clazz);
+        if (keySet == null && create)
+        {
+            keySet = new LinkedHashSet<>();
+            queueMap.put(clazz, keySet);
+        }
+        return keySet;
+    }
+
+    private static void processQueueMap(Map<Class<? extends AppObject>, Set<Key>> queueMap, boolean remove)
     {
         if (queueMap == null || queueMap.isEmpty())
         {
             return;
         }
 
-        for (Map.Entry<Class<? extends AppObject>, List<Key>> entry : queueMap.entrySet())
+        for (Map.Entry<Class<? extends AppObject>, Set<Key>> entry : queueMap.entrySet())
         {
-            List<Key> keyList = entry.getValue();
-            if (keyList == null || keyList.isEmpty())
+            if (entry.getValue() == null || entry.getValue().isEmpty())
+            {
+                continue;
+            }
+
+            List<Key> keyList = claim(entry.getKey(), remove, entry.getValue());
+            if (keyList.isEmpty())
             {
-                return;
+                continue;
             }
 
             Queue queue = QueueFactory.getQueue(SEARCH_QUEUE_NAME);
             if (queue != null)
             {
-                final int THRESHOLD = 20; // not more than 20 keys per queue request.
-                int start = 0;
-                while (start < keyList.size())
+                for (int start = 0; start < keyList.size(); start += BATCH_SIZE)
                 {
                     StringBuilder bldr = new StringBuilder(100);
-                    int counter = 0;
-                    for (int i = start; i < keyList.size() && counter < THRESHOLD; start++, i++, counter++)
+                    for (Key k : keyList.subList(start, Math.min(start + BATCH_SIZE, keyList.size())))
                     {
-                        Key k = keyList.get(i);
-                        if (k != null)
-                        {
-                            bldr.append(k.getId()).append(",");
-                        }
+                        bldr.append(k.getId()).append(",");
                     }
                     queue.add(TaskOptions.Builder.withUrl(SEARCH_TASK_URL)
                                          .param("appObjClass", entry.getKey().getName())
                                          .param("keys", bldr.toString())
                                          .param("remove", Boolean.toString(remove))
+                                         .countdownMillis(COALESCING_WINDOW * 1000L)
                                          .method(TaskOptions.Method.POST));
                 }
+                updateBacklog(keyList.size());
             }
         }
     }
+
+    /**
+     * Mark the given keys as pending, filtering out the ones that are already waiting to be processed.
+     *
+     * @return the keys that need to be queued up.
+     */
+    private static List<Key> claim(Class<?> clazz, boolean remove, Set<Key> keys)
+    {
+        final String METHOD_NAME = "claim";
+
+        Map<String, Key> pendingKeys = new LinkedHashMap<>(keys.size());
+        Map<String, Boolean> markers = new HashMap<>(keys.size());
+        for (Key k : keys)
+        {
+            String pendingKey = getPendingKey(clazz, remove, k);
+            pendingKeys.put(pendingKey, k);
+            markers.put(pendingKey, Boolean.TRUE);
+        }
+
+        try
+        {
+            Set<String> claimed = memCache.putAll(markers, PENDING_EXPIRATION,
+                                                  MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            List<Key> keyList = new ArrayList<>(claimed.size());
+            for (Map.Entry<String, Key> e : pendingKeys.entrySet())
+            {
+                if (claimed.contains(e.getKey()))
+                {
+                    keyList.add(e.getValue());
+                }
+            }
+            return keyList;
+        }
+        catch (Exception e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                        "Unable to coalesce keys, queuing up all of them.", e);
+            return new ArrayList<>(keys);
+        }
+    }
+
+    private static String getPendingKey(Class<?> clazz, boolean remove, Key key)
+    {
+        return PENDING_KEY_PREFIX + (remove ? "remove_" : "add_") + clazz.getName() + "_" + key.getId();
+    }
+
+    private static void updateBacklog(long delta)
+    {
+        final String METHOD_NAME = "updateBacklog";
+        try
+        {
+            memCache.increment(BACKLOG_KEY, delta, 0L);
+        }
+        catch (Exception e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to update the backlog counter.", e);
+        }
+    }
 }
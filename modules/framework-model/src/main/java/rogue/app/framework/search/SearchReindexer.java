@@ -0,0 +1,628 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.search;
+
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.apphosting.api.ApiProxy;
+import rogue.app.framework.AppRuntimeException;
+import rogue.app.framework.internal.util.ClassUtils;
+import rogue.app.framework.model.PersistentObject;
+import rogue.app.framework.persistence.JpaController;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds the search index of a {@link SearchIndex searchable} class. A reindex job pages through the entities with a
+ * datastore cursor, and indexes every page in a single batch. The job can either be
+ * <pre>
+ *     full        - all the entities are indexed.
+ *     incremental - only the entities modified since the start of the last completed job are indexed.
+ * </pre>
+ * After every page, the cursor and the progress of the job are stored in a checkpoint entity of kind
+ * {@link #CHECKPOINT_KIND}. When the request is about to run out of time, the job hands over to a task on the
+ * {@link #REINDEX_QUEUE_NAME} queue, which resumes from the last checkpoint. A page may hence be indexed more than
+ * once, which is harmless as documents are replaced.
+ * <p/>
+ * Once all the entities have been indexed, a full job sweeps the index, a page of document ids at a time, and removes
+ * the documents whose entities no longer exist, e.g., because their removal from the index failed. The existence of
+ * the entities of a page is checked by a single batch get.
+ * <p/>
+ * There is at most one job per class. Starting a new job supersedes the one in progress, whose tasks stop as soon as
+ * they notice.
+ */
+public final class SearchReindexer
+{
+    private static final String CLASS_NAME = SearchReindexer.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    public static final String REINDEX_TASK_URL = "/tasks/searchReindexer";
+    public static final String REINDEX_QUEUE_NAME = "SearchReindexQueue";
+    public static final String REQ_PARAM_CLASS_NAME = "appObjClass";
+    public static final String REQ_PARAM_JOB_ID = "jobId";
+    public static final String CHECKPOINT_KIND = "_SearchReindexCheckpoint";
+
+    /**
+     * Number of entities indexed per batch. This matches the maximum number of documents per call to the Search API.
+     */
+    private static final int PAGE_SIZE = 200;
+
+    /**
+     * Time, in milliseconds, that should be left in the request for another page to be indexed.
+     */
+    private static final long MIN_REMAINING_MILLIS = 15000;
+
+    /**
+     * Number of times a checkpoint is written before giving up on contention.
+     */
+    private static final int MAX_CHECKPOINT_ATTEMPTS = 3;
+
+    private static final String PROP_JOB_ID = "jobId";
+    private static final String PROP_INCREMENTAL = "incremental";
+    private static final String PROP_SINCE = "since";
+    private static final String PROP_STATE = "state";
+    private static final String PROP_CURSOR = "cursor";
+    private static final String PROP_SEGMENT = "segment";
+    private static final String PROP_PROCESSED = "processed";
+    private static final String PROP_INDEXED = "indexed";
+    private static final String PROP_SWEEPING = "sweeping";
+    private static final String PROP_SWEPT_UNTIL = "sweptUntil";
+    private static final String PROP_REMOVED = "removed";
+    private static final String PROP_ELAPSED = "elapsedMillis";
+    private static final String PROP_STARTED = "startedAt";
+    private static final String PROP_UPDATED = "updatedAt";
+    private static final String PROP_COMPLETED = "completedAt";
+
+    /**
+     * The states of a reindex job.
+     */
+    public enum State
+    {
+        RUNNING, COMPLETED, FAILED
+    }
+
+    /**
+     * Private constructor.
+     */
+    private SearchReindexer()
+    {
+    }
+
+    /**
+     * Start a reindex job for the given class, superseding the one in progress, if any. The job is executed on the
+     * {@link #REINDEX_QUEUE_NAME} queue.
+     *
+     * @param appObjClass the searchable class.
+     * @param incremental true to only index the entities modified since the start of the last completed job.
+     * @return the progress of the new job.
+     * @throws AppRuntimeException if the class is not searchable.
+     */
+    public static Progress start(Class<?> appObjClass, boolean incremental) throws AppRuntimeException
+    {
+        final String METHOD_NAME = "start";
+
+        if (ClassUtils.getAnnotation(appObjClass, SearchIndex.class) == null)
+        {
+            throw new AppRuntimeException(appObjClass.getName() + " : is not annotated with SearchIndex annotation.");
+        }
+
+        Date since = null;
+        Progress last = incremental ? getProgress(appObjClass) : null;
+        if (last != null)
+        {
+            // If the last job did not complete, then whatever it was trying to catch up on is still pending.
+            since = last.getState() == State.COMPLETED ? last.getStartedAt() : last.getSince();
+        }
+
+        Date now = new Date();
+        Entity checkpoint = new Entity(getCheckpointKey(appObjClass));
+        checkpoint.setUnindexedProperty(PROP_JOB_ID, UUID.randomUUID().toString());
+        checkpoint.setUnindexedProperty(PROP_INCREMENTAL, incremental);
+        checkpoint.setUnindexedProperty(PROP_SINCE, since);
+        checkpoint.setUnindexedProperty(PROP_STATE, State.RUNNING.name());
+        checkpoint.setUnindexedProperty(PROP_SEGMENT, 0L);
+        checkpoint.setUnindexedProperty(PROP_PROCESSED, 0L);
+        checkpoint.setUnindexedProperty(PROP_INDEXED, 0L);
+        checkpoint.setUnindexedProperty(PROP_SWEEPING, false);
+        checkpoint.setUnindexedProperty(PROP_REMOVED, 0L);
+        checkpoint.setUnindexedProperty(PROP_ELAPSED, 0L);
+        checkpoint.setUnindexedProperty(PROP_STARTED, now);
+        checkpoint.setUnindexedProperty(PROP_UPDATED, now);
+        getDatastore().put(checkpoint);
+
+        LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME,
+                    String.format("Starting %s reindex of %s%s", incremental ? "an incremental" : "a full",
+                                  appObjClass.getName(), since != null ? " since " + since : ""));
+        queue(appObjClass, checkpoint);
+        return new Progress(checkpoint);
+    }
+
+    /**
+     * Get the progress of the current, or last, reindex job of the given class.
+     *
+     * @param appObjClass the searchable class.
+     * @return the progress of the job, or null if the class has never been reindexed.
+     */
+    public static Progress getProgress(Class<?> appObjClass)
+    {
+        Entity checkpoint = getCheckpoint(appObjClass);
+        return checkpoint != null ? new Progress(checkpoint) : null;
+    }
+
+    /**
+     * Resume the given reindex job from its last checkpoint, until it completes or the request runs out of time.
+     *
+     * @param appObjClass the searchable class.
+     * @param jobId       the id of the job.
+     * @return true if the job is no longer running, false if the remaining work was queued up.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends PersistentObject<T>> boolean resume(Class<T> appObjClass, String jobId)
+    {
+        final String METHOD_NAME = "resume";
+
+        Entity checkpoint = getCheckpoint(appObjClass);
+        if (checkpoint == null || !jobId.equals(checkpoint.getProperty(PROP_JOB_ID)) ||
+                !State.RUNNING.name().equals(checkpoint.getProperty(PROP_STATE)))
+        {
+            LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME,
+                        String.format("Reindex job %s of %s is no longer running.", jobId, appObjClass.getName()));
+            return true;
+        }
+
+        JpaController<T> controller;
+        SearchController<T> searchController;
+        Query query;
+        try
+        {
+            controller = JpaController.getController(appObjClass);
+            searchController = SearchController.getSearchController(appObjClass);
+            query = new Query(controller.constructKey(1).getKind()).setKeysOnly();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // The class is not a registered entity.
+            fail(appObjClass, checkpoint, e);
+            return true;
+        }
+
+        Date since = (Date) checkpoint.getProperty(PROP_SINCE);
+        if (since != null)
+        {
+            query.setFilter(new Query.FilterPredicate("lastModificationDate",
+                                                      Query.FilterOperator.GREATER_THAN_OR_EQUAL, since));
+        }
+        PreparedQuery preparedQuery = getDatastore().prepare(query);
+
+        while (true)
+        {
+            if (isDeadlineNear())
+            {
+                LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME, String.format(
+                        "Request is about to time out. Queuing up the reindex of %s after %d entities.",
+                        appObjClass.getName(), (Long) checkpoint.getProperty(PROP_PROCESSED)));
+                checkpoint.setUnindexedProperty(PROP_SEGMENT, (Long) checkpoint.getProperty(PROP_SEGMENT) + 1);
+                if (saveCheckpoint(appObjClass, checkpoint))
+                {
+                    queue(appObjClass, checkpoint);
+                }
+                return false;
+            }
+
+            long pageStart = System.currentTimeMillis();
+            if (Boolean.TRUE.equals(checkpoint.getProperty(PROP_SWEEPING)))
+            {
+                int listed = sweep(controller, searchController, checkpoint);
+                if (endPage(appObjClass, checkpoint, pageStart, listed < PAGE_SIZE))
+                {
+                    return true;
+                }
+                continue;
+            }
+
+            QueryResultList<Entity> page;
+            try
+            {
+                FetchOptions fetchOptions = FetchOptions.Builder.withLimit(PAGE_SIZE);
+                Text cursor = (Text) checkpoint.getProperty(PROP_CURSOR);
+                if (cursor != null)
+                {
+                    fetchOptions.startCursor(Cursor.fromWebSafeString(cursor.getValue()));
+                }
+                page = preparedQuery.asQueryResultList(fetchOptions);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // The cursor is no longer valid, e.g., the indexes have changed. Restarting is the only way out.
+                fail(appObjClass, checkpoint, e);
+                return true;
+            }
+
+            List<Key> keys = new ArrayList<>(page.size());
+            for (Entity e : page)
+            {
+                keys.add(e.getKey());
+            }
+
+            // The entities are looked up by key, after a single round trip to the cache, rather than queried, hence
+            // the page reflects the latest writes and the entities deleted since the key query are skipped.
+            int indexed = keys.isEmpty() ? 0 : searchController.index(controller.findByIds(keys));
+
+            checkpoint.setUnindexedProperty(PROP_CURSOR, new Text(page.getCursor().toWebSafeString()));
+            checkpoint.setUnindexedProperty(PROP_PROCESSED,
+                                            (Long) checkpoint.getProperty(PROP_PROCESSED) + keys.size());
+            checkpoint.setUnindexedProperty(PROP_INDEXED, (Long) checkpoint.getProperty(PROP_INDEXED) + indexed);
+
+            boolean last = keys.size() < PAGE_SIZE;
+            if (last && since == null)
+            {
+                // All the entities are in the index, move on to the documents that should no longer be.
+                checkpoint.setUnindexedProperty(PROP_SWEEPING, true);
+                last = false;
+            }
+            if (endPage(appObjClass, checkpoint, pageStart, last))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove the documents of the next page of the index whose entities no longer exist.
+     *
+     * @return the number of documents in the page.
+     */
+    private static int sweep(JpaController<?> controller, SearchController<?> searchController, Entity checkpoint)
+    {
+        SearchBackend backend = SearchController.getSearchBackend();
+        String indexName = searchController.getIndexName();
+        List<String> docIds = backend.listIds(indexName, (String) checkpoint.getProperty(PROP_SWEPT_UNTIL),
+                                              PAGE_SIZE);
+
+        Map<Key, String> docKeys = new HashMap<>(docIds.size());
+        List<String> orphans = new ArrayList<>();
+        for (String docId : docIds)
+        {
+            try
+            {
+                docKeys.put(controller.constructKey(Long.parseLong(docId)), docId);
+            }
+            catch (NumberFormatException e)
+            {
+                // Not a document of an entity.
+                orphans.add(docId);
+            }
+        }
+
+        // Unlike a query, a batch get is strongly consistent, hence entities that have just been written are found.
+        Set<Key> existing = getDatastore().get(docKeys.keySet()).keySet();
+        for (Map.Entry<Key, String> entry : docKeys.entrySet())
+        {
+            if (!existing.contains(entry.getKey()))
+            {
+                orphans.add(entry.getValue());
+            }
+        }
+        if (!orphans.isEmpty())
+        {
+            backend.delete(indexName, orphans);
+        }
+
+        if (!docIds.isEmpty())
+        {
+            checkpoint.setUnindexedProperty(PROP_SWEPT_UNTIL, docIds.get(docIds.size() - 1));
+        }
+        checkpoint.setUnindexedProperty(PROP_REMOVED, getLong(checkpoint, PROP_REMOVED) + orphans.size());
+        return docIds.size();
+    }
+
+    /**
+     * Record the time spent on a page and store the checkpoint.
+     *
+     * @return true if the job is no longer running, either because it has completed, or because it has been
+     *         superseded, or stopped, while the page was being processed.
+     */
+    private static boolean endPage(Class<?> appObjClass, Entity checkpoint, long pageStart, boolean last)
+    {
+        Date now = new Date();
+        checkpoint.setUnindexedProperty(PROP_ELAPSED, (Long) checkpoint.getProperty(PROP_ELAPSED) +
+                (System.currentTimeMillis() - pageStart));
+        checkpoint.setUnindexedProperty(PROP_UPDATED, now);
+        if (last)
+        {
+            checkpoint.setUnindexedProperty(PROP_STATE, State.COMPLETED.name());
+            checkpoint.setUnindexedProperty(PROP_COMPLETED, now);
+        }
+
+        if (!saveCheckpoint(appObjClass, checkpoint))
+        {
+            return true;
+        }
+
+        if (last)
+        {
+            LOGGER.logp(Level.INFO, CLASS_NAME, "endPage", "Completed: " + new Progress(checkpoint));
+        }
+        return last;
+    }
+
+    /**
+     * Get a numeric property of the checkpoint, which may be missing from the checkpoints of earlier versions.
+     */
+    private static long getLong(Entity checkpoint, String property)
+    {
+        Long value = (Long) checkpoint.getProperty(property);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * Mark the job as failed, unless it has been superseded in the meantime.
+     */
+    private static void fail(Class<?> appObjClass, Entity checkpoint, Exception e)
+    {
+        LOGGER.logp(Level.SEVERE, CLASS_NAME, "fail",
+                    "Unable to resume the reindex of " + appObjClass.getName() + ". Please start a new job.", e);
+        checkpoint.setUnindexedProperty(PROP_STATE, State.FAILED.name());
+        checkpoint.setUnindexedProperty(PROP_UPDATED, new Date());
+        saveCheckpoint(appObjClass, checkpoint);
+    }
+
+    /**
+     * Store the given checkpoint, provided that the stored one still belongs to the same running job. The stored
+     * checkpoint is read and written in a transaction, so that a task of a superseded job cannot overwrite the
+     * checkpoint of the job that replaced it.
+     *
+     * @return true if the checkpoint was stored, false if the job is no longer running.
+     */
+    private static boolean saveCheckpoint(Class<?> appObjClass, Entity checkpoint)
+    {
+        final String METHOD_NAME = "saveCheckpoint";
+
+        Object jobId = checkpoint.getProperty(PROP_JOB_ID);
+        DatastoreService ds = getDatastore();
+        for (int attempt = 1; ; attempt++)
+        {
+            Transaction txn = ds.beginTransaction();
+            try
+            {
+                Entity stored;
+                try
+                {
+                    stored = ds.get(txn, checkpoint.getKey());
+                }
+                catch (EntityNotFoundException e)
+                {
+                    stored = null;
+                }
+
+                if (stored == null || !jobId.equals(stored.getProperty(PROP_JOB_ID)) ||
+                        !State.RUNNING.name().equals(stored.getProperty(PROP_STATE)))
+                {
+                    LOGGER.logp(Level.INFO, CLASS_NAME, METHOD_NAME, String.format(
+                            "Reindex job %s of %s is no longer running. Stopping.", jobId, appObjClass.getName()));
+                    return false;
+                }
+
+                ds.put(txn, checkpoint);
+                txn.commit();
+                return true;
+            }
+            catch (ConcurrentModificationException e)
+            {
+                // Most likely a new job has been started; the next attempt finds out.
+                if (attempt >= MAX_CHECKPOINT_ATTEMPTS)
+                {
+                    throw e;
+                }
+            }
+            finally
+            {
+                if (txn.isActive())
+                {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    private static DatastoreService getDatastore()
+    {
+        return DatastoreServiceFactory.getDatastoreService();
+    }
+
+    private static Key getCheckpointKey(Class<?> appObjClass)
+    {
+        return KeyFactory.createKey(CHECKPOINT_KIND, appObjClass.getName());
+    }
+
+    private static Entity getCheckpoint(Class<?> appObjClass)
+    {
+        try
+        {
+            return getDatastore().get(getCheckpointKey(appObjClass));
+        }
+        catch (EntityNotFoundException e)
+        {
+            return null;
+        }
+    }
+
+    private static boolean isDeadlineNear()
+    {
+        ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+        return env != null && env.getRemainingMillis() < MIN_REMAINING_MILLIS;
+    }
+
+    /**
+     * Queue up the next segment of the job. Tasks are named after the job and the segment, so that a retried request
+     * cannot fork the job.
+     */
+    private static void queue(Class<?> appObjClass, Entity checkpoint)
+    {
+        String jobId = (String) checkpoint.getProperty(PROP_JOB_ID);
+        Queue queue = QueueFactory.getQueue(REINDEX_QUEUE_NAME);
+        try
+        {
+            queue.add(TaskOptions.Builder.withUrl(REINDEX_TASK_URL)
+                                 .taskName("reindex-" + jobId + "-" + checkpoint.getProperty(PROP_SEGMENT))
+                                 .param(REQ_PARAM_CLASS_NAME, appObjClass.getName())
+                                 .param(REQ_PARAM_JOB_ID, jobId)
+                                 .method(TaskOptions.Method.POST));
+        }
+        catch (TaskAlreadyExistsException e)
+        {
+            // The segment has already been queued up.
+        }
+    }
+
+    /**
+     * Read only view of the checkpoint of a reindex job.
+     */
+    public static final class Progress
+    {
+        private final String jobId;
+        private final boolean incremental;
+        private final Date since;
+        private final State state;
+        private final long processed;
+        private final long indexed;
+        private final long removed;
+        private final long elapsedMillis;
+        private final Date startedAt;
+        private final Date updatedAt;
+        private final Date completedAt;
+
+        private Progress(Entity checkpoint)
+        {
+            this.jobId = (String) checkpoint.getProperty(PROP_JOB_ID);
+            this.incremental = Boolean.TRUE.equals(checkpoint.getProperty(PROP_INCREMENTAL));
+            this.since = (Date) checkpoint.getProperty(PROP_SINCE);
+            this.state = State.valueOf((String) checkpoint.getProperty(PROP_STATE));
+            this.processed = (Long) checkpoint.getProperty(PROP_PROCESSED);
+            this.indexed = (Long) checkpoint.getProperty(PROP_INDEXED);
+            this.removed = getLong(checkpoint, PROP_REMOVED);
+            this.elapsedMillis = (Long) checkpoint.getProperty(PROP_ELAPSED);
+            this.startedAt = (Date) checkpoint.getProperty(PROP_STARTED);
+            this.updatedAt = (Date) checkpoint.getProperty(PROP_UPDATED);
+            this.completedAt = (Date) checkpoint.getProperty(PROP_COMPLETED);
+        }
+
+        public String getJobId()
+        {
+            return jobId;
+        }
+
+        public boolean isIncremental()
+        {
+            return incremental;
+        }
+
+        /**
+         * Get the modification date from which the entities are indexed.
+         *
+         * @return the modification date, or null if all the entities are indexed.
+         */
+        public Date getSince()
+        {
+            return since;
+        }
+
+        public State getState()
+        {
+            return state;
+        }
+
+        /**
+         * Get the number of entities processed so far.
+         *
+         * @return the number of entities processed so far.
+         */
+        public long getProcessed()
+        {
+            return processed;
+        }
+
+        /**
+         * Get the number of documents written so far. Entities that have no searchable fields are not indexed.
+         *
+         * @return the number of documents written so far.
+         */
+        public long getIndexed()
+        {
+            return indexed;
+        }
+
+        /**
+         * Get the number of documents removed so far, because their entities no longer exist.
+         *
+         * @return the number of documents removed so far.
+         */
+        public long getRemoved()
+        {
+            return removed;
+        }
+
+        /**
+         * Get the time spent indexing, excluding the time spent waiting in the queue.
+         *
+         * @return the time spent indexing, in milliseconds.
+         */
+        public long getElapsedMillis()
+        {
+            return elapsedMillis;
+        }
+
+        public Date getStartedAt()
+        {
+            return startedAt;
+        }
+
+        public Date getUpdatedAt()
+        {
+            return updatedAt;
+        }
+
+        public Date getCompletedAt()
+        {
+            return completedAt;
+        }
+
+        /**
+         * Get the number of entities processed per second of indexing.
+         *
+         * @return the throughput of the job.
+         */
+        public double getThroughput()
+        {
+            return elapsedMillis > 0 ? processed * 1000.0 / elapsedMillis : 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("[%s] %s %s reindex: %d entities processed, %d documents indexed, %d removed in " +
+                                         "%d ms (%.1f entities/s), started at %s, last updated at %s",
+                                 jobId, state, incremental ? "incremental" : "full", processed, indexed, removed,
+                                 elapsedMillis, getThroughput(), startedAt, updatedAt);
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package rogue.app.framework.util;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * A state holder works like a cache map that can store and fetch data.
  */
@@ -52,4 +55,31 @@ public interface StateHolder
      */
     public boolean containsKey(String key);
 
+    /**
+     * Get all the objects stored in this state holder, identified by the given keys. Keys that do not exist in this
+     * state holder are not present in the returned map, whereas keys that were stored with a null value are.
+     *
+     * @param keys the keys used to store the objects in this map.
+     * @return a map of the stored objects, keyed by the keys used to store them.
+     */
+    public <T> Map<String, T> getAll(Collection<String> keys);
+
+    /**
+     * Store all the given objects in this map.
+     *
+     * @param values the objects to store, keyed by the keys that should be used to store them.
+     */
+    public void putAll(Map<String, ?> values);
+
+    /**
+     * Atomically increment the numeric value stored against the given key. If no value exists, the value is
+     * initialized to zero before being incremented.
+     *
+     * @param key   the key used to store the value in this map.
+     * @param delta the amount by which the value should be incremented.
+     * @return the incremented value, or null if the value could not be incremented, e.g., the backing cache is not
+     *         available.
+     */
+    public Long increment(String key, long delta);
+
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.internal.view.servlet;
+
+import org.apache.commons.lang.StringUtils;
+import rogue.app.framework.AppRuntimeException;
+import rogue.app.framework.model.NestedResource;
+import rogue.app.framework.persistence.JpaController;
+import rogue.app.framework.persistence.NestedSetRelocator;
+import rogue.app.framework.view.servlet.AppQueueServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The <code>NestedSetRelocationQueue</code> servlet resumes the relocation of nested resource subtrees, that could not
+ * be completed within the request in which they were started.
+ * <p></p>
+ * The servlet looks for two parameters in the request URL.
+ * <pre>
+ *     appObjClass - the name of the nested resource class.
+ *     key         - the id of the node whose subtree is being relocated.
+ * </pre>
+ */
+public class NestedSetRelocationQueue extends AppQueueServlet
+{
+    private static final String CLASS_NAME = NestedSetRelocationQueue.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        final String METHOD_NAME = "processRequest";
+
+        String appObjClassName = StringUtils.trim(request.getParameter(NestedSetRelocator.REQ_PARAM_CLASS_NAME));
+        String key = StringUtils.trim(request.getParameter(NestedSetRelocator.REQ_PARAM_KEY));
+        if (StringUtils.isEmpty(appObjClassName) || StringUtils.isEmpty(key))
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                        "Class name or key was null or empty. Aborting operation.");
+            return;
+        }
+
+        try
+        {
+            Class c = Thread.currentThread().getContextClassLoader().loadClass(appObjClassName);
+            if (!NestedResource.class.isAssignableFrom(c))
+            {
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                            "Loaded class cannot be assigned from NestedResource: " + appObjClassName);
+                return;
+            }
+
+            NestedSetRelocator.relocate(c, JpaController.getController(c).constructKey(Long.parseLong(key)));
+        }
+        catch (ClassNotFoundException e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to load class: " + appObjClassName, e);
+        }
+        catch (NumberFormatException e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Invalid key: " + key, e);
+        }
+        catch (AppRuntimeException e)
+        {
+            // Let the task be retried.
+            throw new ServletException("Failed to relocate the subtree under " + key, e);
+        }
+    }
+}
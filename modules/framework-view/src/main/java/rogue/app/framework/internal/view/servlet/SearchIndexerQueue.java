@@ -22,6 +22,7 @@ import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.model.AppObject;
 import rogue.app.framework.persistence.JpaController;
 import rogue.app.framework.search.SearchController;
+import rogue.app.framework.search.SearchIndexer;
 import rogue.app.framework.view.servlet.AppQueueServlet;
 
 import javax.servlet.ServletException;
@@ -119,6 +120,8 @@ public class SearchIndexerQueue extends AppQueueServlet
                     }
                 }
 
+                // Release the keys before reading the objects, so that any further updates get queued up again.
+                SearchIndexer.release(c, remove, keyList);
                 if (remove)
                 {
                     searchController.remove(keyList.toArray(new Key[keyList.size()]));
@@ -127,6 +130,8 @@ public class SearchIndexerQueue extends AppQueueServlet
                 {
                     searchController.index(keyList.toArray(new Key[keyList.size()]));
                 }
+                // A failure is rethrown below, so that the task is retried; its keys stay in the backlog until then.
+                SearchIndexer.processed(keyList.size());
             }
             else
             {
@@ -140,7 +145,8 @@ public class SearchIndexerQueue extends AppQueueServlet
         }
         catch (AppRuntimeException e)
         {
-            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Failed to complete operation.", e);
+            // Let the task be retried.
+            throw new ServletException("Failed to update the search index of " + appObjClassName, e);
         }
     }
 }
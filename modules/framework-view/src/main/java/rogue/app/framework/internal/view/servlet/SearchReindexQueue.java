@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.internal.view.servlet;
+
+import org.apache.commons.lang.StringUtils;
+import rogue.app.framework.AppRuntimeException;
+import rogue.app.framework.model.PersistentObject;
+import rogue.app.framework.search.SearchReindexer;
+import rogue.app.framework.view.servlet.AppQueueServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The <code>SearchReindexQueue</code> servlet starts, resumes and reports on the reindex jobs of searchable classes.
+ * Like all the other tasks, it is only accessible to administrators.
+ * <p></p>
+ * The servlet looks for the following parameters in the request URL.
+ * <pre>
+ *     appObjClass - the name of the searchable class.
+ *     jobId       - the id of the job to resume. Only set by the tasks that the job queues up.
+ *     action      - when there is no jobId: <i>full</i> or <i>incremental</i> to start a new job, or <i>status</i>
+ *                   (default) to report on the current one.
+ * </pre>
+ * The progress of the job is written to the response as plain text.
+ */
+public class SearchReindexQueue extends AppQueueServlet
+{
+    private static final String CLASS_NAME = SearchReindexQueue.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+    private static final String REQ_PARAM_ACTION = "action";
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        final String METHOD_NAME = "processRequest";
+
+        String appObjClassName = StringUtils.trim(request.getParameter(SearchReindexer.REQ_PARAM_CLASS_NAME));
+        String jobId = StringUtils.trim(request.getParameter(SearchReindexer.REQ_PARAM_JOB_ID));
+        String action = StringUtils.defaultIfEmpty(StringUtils.trim(request.getParameter(REQ_PARAM_ACTION)), "status");
+        if (StringUtils.isEmpty(appObjClassName))
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Class name was null or empty. Aborting operation.");
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing parameter: " +
+                    SearchReindexer.REQ_PARAM_CLASS_NAME);
+            return;
+        }
+
+        try
+        {
+            Class c = Thread.currentThread().getContextClassLoader().loadClass(appObjClassName);
+            if (!PersistentObject.class.isAssignableFrom(c))
+            {
+                LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME,
+                            "Loaded class cannot be assigned from PersistentObject: " + appObjClassName);
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not a persistent class: " + appObjClassName);
+                return;
+            }
+
+            SearchReindexer.Progress progress;
+            if (!StringUtils.isEmpty(jobId))
+            {
+                SearchReindexer.resume(c, jobId);
+                progress = SearchReindexer.getProgress(c);
+            }
+            else if ("full".equalsIgnoreCase(action) || "incremental".equalsIgnoreCase(action))
+            {
+                progress = SearchReindexer.start(c, "incremental".equalsIgnoreCase(action));
+            }
+            else
+            {
+                progress = SearchReindexer.getProgress(c);
+            }
+
+            response.setContentType("text/plain");
+            response.setCharacterEncoding("UTF-8");
+            response.getWriter().println(progress != null ? progress : "No reindex job found for " + appObjClassName);
+        }
+        catch (ClassNotFoundException e)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to load class: " + appObjClassName, e);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unable to load class: " + appObjClassName);
+        }
+        catch (AppRuntimeException e)
+        {
+            // Let the task be retried.
+            throw new ServletException("Failed to reindex " + appObjClassName, e);
+        }
+    }
+}
@@ -17,11 +17,9 @@
 package rogue.app.framework.view.faces.application;
 
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.sun.faces.util.Util;
 import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.model.BinaryResource;
-import rogue.app.framework.persistence.JpaController;
 import rogue.app.framework.view.faces.controller.BinaryResourcesController;
 
 import javax.faces.application.ProjectStage;
@@ -30,7 +28,6 @@ import javax.faces.application.ResourceHandler;
 import javax.faces.context.ExternalContext;
 import javax.faces.context.FacesContext;
 import javax.servlet.http.HttpServletRequest;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -61,7 +58,22 @@ public class AppImageResource extends Resource
     /* HTTP Date format required by the HTTP/1.1 RFC */
     private static final String RFC1123_DATE_PATTERN = "EEE, dd MMM yyyy HH:mm:ss zzz";
     private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String IF_NONE_MATCH = "If-None-Match";
     private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+    /**
+     * <code>SimpleDateFormat</code> is not thread safe, hence every thread gets its own, reusable, instance.
+     */
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>()
+    {
+        @Override
+        protected SimpleDateFormat initialValue()
+        {
+            SimpleDateFormat format = new SimpleDateFormat(RFC1123_DATE_PATTERN, Locale.US);
+            format.setTimeZone(GMT);
+            return format;
+        }
+    };
     /**
      * Lifespan of this resource for caching purposes.
      */
@@ -92,12 +104,10 @@ public class AppImageResource extends Resource
     public InputStream getInputStream() throws IOException
     {
         initImageResource();
-        if (imageResource != null)
+        InputStream content = imageResource != null ? imageResource.getContentStream() : null;
+        if (content != null)
         {
-            if (imageResource.getBlob() != null)
-            {
-                return new ByteArrayInputStream(imageResource.getBlob().getBytes());
-            }
+            return content;
         }
         throw new IOException("Unable to fetch image content.");
     }
@@ -137,17 +147,15 @@ public class AppImageResource extends Resource
             {
                 expiresTime = new Date().getTime() + MAX_AGE;
             }
-            SimpleDateFormat format =
-                    new SimpleDateFormat(RFC1123_DATE_PATTERN, Locale.US);
-            format.setTimeZone(GMT);
+            SimpleDateFormat format = HTTP_DATE_FORMAT.get();
             responseHeaders.put("Expires", format.format(new Date(expiresTime)));
+            responseHeaders.put("Last-Modified", format.format(getLastModified()));
 
-
-            Date lastModified = getLastModified();
-            responseHeaders.put("Last-Modified", format.format(lastModified));
-            long contentLength = imageResource.getBlob().getBytes().length;
-
-            responseHeaders.put("ETag", "W/\"" + contentLength + '-' + lastModified + '"');
+            String eTag = getETag();
+            if (eTag != null)
+            {
+                responseHeaders.put("ETag", eTag);
+            }
             return responseHeaders;
         }
         else
@@ -220,17 +228,44 @@ public class AppImageResource extends Resource
         // A date which is later than the server's current time is
         // invalid.
 
-        Map<String, String> requestHeaders =
-                context.getExternalContext().getRequestHeaderMap();
+        // 14.26 If-None-Match takes precedence over If-Modified-Since, and
+        // is evaluated against the digest of the content, hence neither
+        // check requires the content to be loaded.
 
-        if (requestHeaders.containsKey(IF_MODIFIED_SINCE))
+        initImageResource();
+        if (imageResource == null || imageResource.isMutable())
         {
-            long lastModifiedOfResource = getLastModified().getTime();
-            long lastModifiedHeader = getIfModifiedHeader(context.getExternalContext());
-            return lastModifiedOfResource > lastModifiedHeader;
+            // Uploads that have not been saved yet are never cached.
+            return true;
         }
-        return true;
 
+        ExternalContext externalContext = context.getExternalContext();
+        Map<String, String> requestHeaders = externalContext.getRequestHeaderMap();
+
+        boolean needsUpdate = true;
+        if (requestHeaders.containsKey(IF_NONE_MATCH))
+        {
+            needsUpdate = !matchesETag(requestHeaders.get(IF_NONE_MATCH));
+        }
+        else if (requestHeaders.containsKey(IF_MODIFIED_SINCE))
+        {
+            // HTTP dates do not carry milliseconds.
+            long lastModifiedOfResource = getLastModified().getTime() / 1000;
+            long lastModifiedHeader = getIfModifiedHeader(externalContext) / 1000;
+            needsUpdate = lastModifiedHeader < 0 || lastModifiedOfResource > lastModifiedHeader;
+        }
+
+        if (!needsUpdate)
+        {
+            // The resource handler responds with a 304, which should still carry the validators.
+            String eTag = getETag();
+            if (eTag != null)
+            {
+                externalContext.setResponseHeader("ETag", eTag);
+            }
+            externalContext.setResponseHeader("Last-Modified", HTTP_DATE_FORMAT.get().format(getLastModified()));
+        }
+        return needsUpdate;
     }
 
 
@@ -255,11 +290,9 @@ public class AppImageResource extends Resource
         }
         else
         {
-            SimpleDateFormat format =
-                    new SimpleDateFormat(RFC1123_DATE_PATTERN, Locale.US);
             try
             {
-                Date ifModifiedSinceDate = format.parse(externalContext.getRequestHeaderMap().get(IF_MODIFIED_SINCE));
+                Date ifModifiedSinceDate = HTTP_DATE_FORMAT.get().parse(externalContext.getRequestHeaderMap().get(IF_MODIFIED_SINCE));
                 return ifModifiedSinceDate.getTime();
             }
             catch (ParseException ex)
@@ -282,6 +315,47 @@ public class AppImageResource extends Resource
 
     }
 
+    /**
+     * Get the strong entity tag of the resource, derived from the digest of its content.
+     *
+     * @return the entity tag, or null if the digest of the content is not known.
+     */
+    private String getETag()
+    {
+        String digest = imageResource != null ? imageResource.getContentDigest() : null;
+        return digest != null ? '"' + digest + '"' : null;
+    }
+
+    /**
+     * Check if the value of an <code>If-None-Match</code> header matches the entity tag of the resource. As per the
+     * RFC, the weak comparison function is used.
+     *
+     * @param header the value of the header.
+     * @return true if the header matches the entity tag.
+     */
+    private boolean matchesETag(String header)
+    {
+        String eTag = getETag();
+        if (eTag == null || header == null)
+        {
+            return false;
+        }
+
+        for (String candidate : header.split(","))
+        {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/"))
+            {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || eTag.equals(candidate))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean isResourceRequest()
     {
 
@@ -294,7 +368,7 @@ public class AppImageResource extends Resource
     {
         final String METHOD_NAME = "initImageResource";
         // Check if we have a valid key or not
-        if (imageKey != null)
+        if (imageResource == null && imageKey != null)
         {
             try
             {
@@ -318,30 +392,16 @@ public class AppImageResource extends Resource
 
     private Date getLastModified()
     {
-        final String METHOD_NAME = "getLastModified";
+        // The metadata has already been loaded along with the resource.
         Date date = null;
-
-        try
+        if (imageResource != null)
         {
-            Key key = KeyFactory.stringToKey(getResourceName());
-            if (key != null)
+            date = imageResource.getLastModificationDate();
+            if (date == null)
             {
-                JpaController controller = JpaController.getController(BinaryResource.class);
-                BinaryResource resource = (BinaryResource) controller.findById(key);
-                if (resource != null)
-                {
-                    date = resource.getLastModificationDate();
-                    if (date == null)
-                    {
-                        date = resource.getCreationDate();
-                    }
-                }
+                date = imageResource.getCreationDate();
             }
         }
-        catch (Exception e)
-        {
-            LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Failed to fetch modification date for resource.", e);
-        }
 
         if (date == null)
         {
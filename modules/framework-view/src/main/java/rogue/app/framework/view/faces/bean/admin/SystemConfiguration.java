@@ -16,10 +16,10 @@
 
 package rogue.app.framework.view.faces.bean.admin;
 
-import com.google.appengine.api.datastore.Blob;
 import org.apache.commons.lang.StringUtils;
 import org.primefaces.event.FileUploadEvent;
 import org.primefaces.model.UploadedFile;
+import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.model.BinaryResource;
 import rogue.app.framework.model.attr.Attribute;
 import rogue.app.framework.model.attr.Attributes;
@@ -31,6 +31,8 @@ import javax.faces.application.FacesMessage;
 import javax.faces.component.UIInput;
 import javax.faces.event.AjaxBehaviorEvent;
 import javax.faces.validator.ValidatorException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
@@ -118,7 +120,14 @@ public class SystemConfiguration implements Serializable
         resource.setDescription(file.getFileName());
 
         // set the content.
-        resource.setBlob(new Blob(file.getContents()));
+        try (InputStream in = file.getInputstream())
+        {
+            resource.setContent(in);
+        }
+        catch (IOException e)
+        {
+            throw new AppRuntimeException("Unable to store the uploaded file: " + file.getFileName(), e);
+        }
     }
 
     public void invokeSaveCommand(AjaxBehaviorEvent event)
@@ -16,7 +16,6 @@
 
 package rogue.app.framework.view.faces.controller;
 
-import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import org.primefaces.event.FileUploadEvent;
@@ -35,6 +34,8 @@ import rogue.app.framework.view.faces.model.QueryDataModel;
 
 import javax.enterprise.context.SessionScoped;
 import javax.faces.model.DataModel;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -162,7 +163,14 @@ public class BinaryResourcesController extends EntityFacesController<BinaryResou
         {
             UploadedFile file = event.getFile();
 
-            resource.setBlob(new Blob(file.getContents()));
+            try (InputStream in = file.getInputstream())
+            {
+                resource.setContent(in);
+            }
+            catch (IOException e)
+            {
+                throw new AppRuntimeException("Unable to store the uploaded file: " + file.getFileName(), e);
+            }
             resource.setName(file.getFileName());
             LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Updated binary resource instance with uploaded data.");
 
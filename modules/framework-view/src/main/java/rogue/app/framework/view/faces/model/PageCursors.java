@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rogue.app.framework.view.faces.model;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the datastore cursors at the page boundaries of a listing, keyed by the index of the row that each cursor
+ * points to. A page that starts at a known boundary, typically the next or the previous one, is fetched from its cursor
+ * at a constant cost. Any other page, e.g., when jumping straight to page N, is fetched from the closest preceding
+ * cursor, so that only the rows in between are skipped, rather than every row from the start of the listing.
+ */
+class PageCursors implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final TreeMap<Integer, String> cursors = new TreeMap<>();
+
+    /**
+     * Get the closest known cursor at or before the given row.
+     *
+     * @param start the index of the first row to fetch.
+     * @return the cursor entry, keyed by the index of the row it points to, or null if the rows should be fetched from
+     *         the start of the listing.
+     */
+    Map.Entry<Integer, String> floor(int start)
+    {
+        return cursors.floorEntry(start);
+    }
+
+    /**
+     * Remember the cursor that follows the given range of rows.
+     *
+     * @param start     the index of the first row that was fetched.
+     * @param rowsCount the number of rows that were fetched.
+     * @param cursor    the cursor pointing after the last row, may be null.
+     */
+    void record(int start, int rowsCount, String cursor)
+    {
+        if (cursor != null && rowsCount > 0)
+        {
+            cursors.put(start + rowsCount, cursor);
+        }
+    }
+
+    /**
+     * Forget all the cursors, e.g., when the query changes.
+     */
+    void clear()
+    {
+        cursors.clear();
+    }
+}
@@ -53,6 +53,17 @@ public abstract class PaginatedDataModel<E> extends DataModel<E> implements Pagi
         return paginationEnabled;
     }
 
+    /**
+     * Identifies if the item count is a lower bound, i.e., there are more items than the count, in which case the
+     * listing should display "more than N" items.
+     *
+     * @return true if the item count is a lower bound, false if it is exact.
+     */
+    public boolean isItemCountLowerBound()
+    {
+        return false;
+    }
+
     protected Pagination getPagination()
     {
         return paginationHelper;
@@ -18,11 +18,16 @@ package rogue.app.framework.view.faces.model;
 
 import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.model.PersistentObject;
+import rogue.app.framework.persistence.CountService;
+import rogue.app.framework.persistence.CursorList;
 import rogue.app.framework.persistence.JpaController;
+import rogue.app.framework.persistence.security.EffectivePermissions;
+import rogue.app.framework.security.AppPermission;
 import rogue.app.framework.util.ScopedStateHolder;
 import rogue.app.framework.view.PaginationHelper;
 
 import javax.enterprise.context.RequestScoped;
+import java.security.Principal;
 import java.util.List;
 import java.util.Map;
 
@@ -36,6 +41,13 @@ public class PaginatedQueryDataModel<T extends PersistentObject<T>> extends Pagi
     private final String resultQuery;
     private final String countQuery;
     private final boolean isNamedQuery;
+    private final PageCursors pageCursors = new PageCursors();
+    private boolean itemCountLowerBound;
+    // Item count that makes the pages past a lower bound count reachable, as they are found to exist.
+    private int extendedItemCount;
+    // The principal and permission that the items are restricted to, if any.
+    private Principal principal;
+    private AppPermission permission;
 
     public PaginatedQueryDataModel(JpaController<T> controller, String resultQuery, String countQuery,
                                    Map<String, Object> queryParams, boolean paginated, boolean isNamedQuery)
@@ -51,28 +63,19 @@ public class PaginatedQueryDataModel<T extends PersistentObject<T>> extends Pagi
         {
             public int getItemCount()
             {
-                Long count = ScopedStateHolder.getStateHolder(RequestScoped.class).get(getCountQuery());
+                CountService.Count count = ScopedStateHolder.getStateHolder(RequestScoped.class).get(getCountQuery());
 
                 if (count == null)
                 {
-                    if (isNamedQuery())
-                    {
-                        count = getController().executeNamedQuerySingleResult(getCountQuery(), getQueryParams());
-                    }
-                    else
-                    {
-                        count = getController().executeQuerySingleResult(getCountQuery(), getQueryParams());
-                    }
-
-                    if (count == null)
-                    {
-                        count = 0L;
-                    }
+                    // Approximate, so that the listing never requires a full scan.
+                    count = CountService.count(getController(), getCountQuery(), isNamedQuery(), getQueryParams());
 
                     ScopedStateHolder.getStateHolder(RequestScoped.class).put(getCountQuery(), count);
-                    super.setItemCount(count.intValue());
+                    super.setItemCount((int) count.getValue());
                 }
-                return count.intValue();
+                itemCountLowerBound = count.isLowerBound();
+                return itemCountLowerBound ? Math.max((int) count.getValue(), extendedItemCount) :
+                       (int) count.getValue();
             }
 
             @Override
@@ -95,12 +98,61 @@ public class PaginatedQueryDataModel<T extends PersistentObject<T>> extends Pagi
 
     }
 
+    @Override
+    public boolean isItemCountLowerBound()
+    {
+        getItemCount();
+        return itemCountLowerBound;
+    }
+
     @Override
     protected List<T> loadData(int start, int pageSize) throws AppRuntimeException
     {
-        return isNamedQuery ?
-               getController().<T>executeNamedQueryListResult(resultQuery, start, pageSize, queryParams) :
-               getController().<T>executeQueryListResult(resultQuery, start, pageSize, queryParams);
+        if (pageSize == -1)
+        {
+            return restrict(isNamedQuery ?
+                            getController().<T>executeNamedQueryListResult(resultQuery, start, pageSize, queryParams) :
+                            getController().<T>executeQueryListResult(resultQuery, start, pageSize, queryParams));
+        }
+
+        // Start from the closest page boundary whose cursor is known, rather than skipping every preceding row.
+        Map.Entry<Integer, String> boundary = pageCursors.floor(start);
+        String cursor = boundary != null ? boundary.getValue() : null;
+        int offset = boundary != null ? start - boundary.getKey() : start;
+
+        CursorList<T> data = isNamedQuery ?
+                             getController().<T>executeNamedQueryListResult(resultQuery, cursor, offset, pageSize,
+                                                                            queryParams) :
+                             getController().<T>executeQueryListResult(resultQuery, cursor, offset, pageSize,
+                                                                       queryParams);
+        pageCursors.record(start, data.size(), data.getCursor());
+
+        if (data.size() == pageSize && start + pageSize >= getItemCount() && itemCountLowerBound)
+        {
+            // The count is a lower bound and the last known page is full, make the following page reachable.
+            extendedItemCount = start + 2 * pageSize;
+        }
+        return restrict(data);
+    }
+
+    /**
+     * Restrict the items to the objects on which the given principal has been granted the specified permission, see
+     * {@link EffectivePermissions#filter}. The items are filtered a page at a time, once fetched, hence a page may hold
+     * fewer items than the page size, and the count is not adjusted.
+     *
+     * @param principal  the principal, or null to not restrict the rows.
+     * @param permission the required permission.
+     */
+    public void setAccessFilter(Principal principal, AppPermission permission)
+    {
+        this.principal = principal;
+        this.permission = permission;
+    }
+
+    private List<T> restrict(List<T> data)
+    {
+        return principal != null && permission != null ? EffectivePermissions.filter(data, principal, permission) :
+               data;
     }
 
     private boolean isNamedQuery()
@@ -22,10 +22,20 @@ import org.primefaces.model.SortOrder;
 import rogue.app.framework.model.AppObjectCollection;
 import rogue.app.framework.model.PersistentObject;
 import rogue.app.framework.model.Query;
+import rogue.app.framework.persistence.CountService;
+import rogue.app.framework.persistence.CursorList;
+import rogue.app.framework.persistence.JpaController;
+import rogue.app.framework.persistence.JpaQuery;
+import rogue.app.framework.persistence.ListingQueryBuilder;
+import rogue.app.framework.persistence.security.EffectivePermissions;
+import rogue.app.framework.security.AppPermission;
 import rogue.app.framework.view.faces.EntityConverter;
 
+import java.security.Principal;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
 /**
  * Implementation of PrimeFace's <code>LazyDataModel</code> that leverages queries to fetch the underlying data.
@@ -34,7 +44,19 @@ public class QueryDataModel<T extends PersistentObject<T>> extends LazyDataModel
 {
     private final EntityConverter<T> converter;
     private Query listingQuery;
+    private Query countQuery;
     private AppObjectCollection<T, Key> controller;
+    private final PageCursors pageCursors = new PageCursors();
+
+    // The query derived from the current sort and filter criteria.
+    private Query currentQuery;
+    private String currentSortCriteria;
+    private String currentFilterCriteria;
+    private boolean rowCountLowerBound;
+
+    // The principal and permission that the rows are restricted to, if any.
+    private Principal principal;
+    private AppPermission permission;
 
     public QueryDataModel(AppObjectCollection<T, Key> controller, EntityConverter<T> converter, Query listingQuery,
                           Query countQuery)
@@ -42,16 +64,128 @@ public class QueryDataModel<T extends PersistentObject<T>> extends LazyDataModel
         this.controller = controller;
         this.converter = converter;
         this.listingQuery = listingQuery;
+        this.countQuery = countQuery;
+        this.currentQuery = listingQuery;
 
-        this.setRowCount((int) controller.count(countQuery));
+        this.setRowCount(count(countQuery));
     }
 
     @Override
     public List<T> load(int first, int pageSize, String sortField, SortOrder sortOrder, Map<String, String> filters)
     {
-        listingQuery.setStartIndex(first);
-        listingQuery.setMaxResults(pageSize);
-        return controller.find(listingQuery);
+        Query query = getQuery(sortField, sortOrder, filters);
+        if (!(query instanceof JpaQuery))
+        {
+            query.setStartIndex(first);
+            query.setMaxResults(pageSize);
+            return restrict(controller.find(query));
+        }
+
+        // Start from the closest page boundary whose cursor is known, rather than skipping every preceding row.
+        JpaQuery jpaQuery = (JpaQuery) query;
+        Map.Entry<Integer, String> boundary = pageCursors.floor(first);
+        jpaQuery.setCursor(boundary != null ? boundary.getValue() : null);
+        jpaQuery.setStartIndex(boundary != null ? first - boundary.getKey() : first);
+        jpaQuery.setMaxResults(pageSize);
+
+        List<T> data = controller.find(jpaQuery);
+        if (data instanceof CursorList)
+        {
+            pageCursors.record(first, data.size(), ((CursorList<T>) data).getCursor());
+        }
+
+        if (rowCountLowerBound && data.size() == pageSize && first + pageSize >= getRowCount())
+        {
+            // The count is a lower bound and the last known page is full, make the following page reachable.
+            setRowCount(first + 2 * pageSize);
+        }
+        return restrict(data);
+    }
+
+    /**
+     * Restrict the rows to the objects on which the given principal has been granted the specified permission, see
+     * {@link EffectivePermissions#filter}. The rows are filtered a page at a time, once fetched, hence a page may hold
+     * fewer rows than the page size, and the count is not adjusted.
+     *
+     * @param principal  the principal, or null to not restrict the rows.
+     * @param permission the required permission.
+     */
+    public void setAccessFilter(Principal principal, AppPermission permission)
+    {
+        this.principal = principal;
+        this.permission = permission;
+    }
+
+    private List<T> restrict(List<T> data)
+    {
+        return principal != null && permission != null ? EffectivePermissions.filter(data, principal, permission) :
+               data;
+    }
+
+    /**
+     * Identifies if the row count is a lower bound, i.e., there are more rows than the count, in which case the
+     * listing should display "more than N" rows.
+     *
+     * @return true if the row count is a lower bound, false if it is exact.
+     */
+    public boolean isRowCountLowerBound()
+    {
+        return rowCountLowerBound;
+    }
+
+    /**
+     * Count the rows matching the given query. JPA count queries are answered by the {@link CountService}, so that the
+     * listing never requires a full scan.
+     */
+    private int count(Query query)
+    {
+        if (query instanceof JpaQuery && controller instanceof JpaController)
+        {
+            JpaQuery jpaQuery = (JpaQuery) query;
+            CountService.Count count = CountService.count((JpaController<?>) controller, jpaQuery.getQuery(),
+                                                          jpaQuery.isNamedQuery(), jpaQuery.getQueryParams());
+            rowCountLowerBound = count.isLowerBound();
+            return (int) count.getValue();
+        }
+
+        rowCountLowerBound = false;
+        return (int) controller.count(query);
+    }
+
+    /**
+     * Get the listing query for the given sort and filter criteria. The sorting and filtering is done by the datastore,
+     * for the properties that the entity whitelists, see {@link ListingQueryBuilder}.
+     */
+    @SuppressWarnings("unchecked")
+    private Query getQuery(String sortField, SortOrder sortOrder, Map<String, String> filters)
+    {
+        if (!(listingQuery instanceof JpaQuery) || !(controller instanceof JpaController))
+        {
+            return listingQuery;
+        }
+
+        boolean sorted = sortField != null && sortOrder != null && sortOrder != SortOrder.UNSORTED;
+        String sortCriteria = sorted ? sortField + " " + sortOrder : null;
+        String filterCriteria = filters != null && !filters.isEmpty() ? new TreeMap<>(filters).toString() : null;
+        if (Objects.equals(sortCriteria, currentSortCriteria) && Objects.equals(filterCriteria, currentFilterCriteria))
+        {
+            return currentQuery;
+        }
+
+        JpaController<T> jpaController = (JpaController<T>) controller;
+        currentQuery = ListingQueryBuilder.buildListingQuery(jpaController, (JpaQuery) listingQuery,
+                                                             sorted ? sortField : null,
+                                                             sortOrder == SortOrder.DESCENDING, filters);
+        if (!Objects.equals(filterCriteria, currentFilterCriteria) && countQuery instanceof JpaQuery)
+        {
+            setRowCount(count(ListingQueryBuilder.buildCountQuery(jpaController, (JpaQuery) countQuery, filters)));
+        }
+
+        // The cursors of the previous criteria point into a different result set.
+        pageCursors.clear();
+        currentSortCriteria = sortCriteria;
+        currentFilterCriteria = filterCriteria;
+        return currentQuery;
     }
 
     @Override
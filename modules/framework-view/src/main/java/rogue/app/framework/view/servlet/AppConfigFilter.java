@@ -19,6 +19,7 @@ package rogue.app.framework.view.servlet;
 import org.jboss.weld.literal.DefaultLiteral;
 import rogue.app.framework.internal.util.CDIUtils;
 import rogue.app.framework.internal.view.servlet.WebContext;
+import rogue.app.framework.persistence.PersistenceUtils;
 import rogue.app.framework.search.SearchIndexer;
 import rogue.app.framework.security.UserContext;
 import rogue.app.framework.view.faces.bean.AuthenticationManager;
@@ -34,14 +35,29 @@ import java.io.IOException;
 /**
  * Servlet filter that takes care of setting up basic features like security, processing search queues, etc. Make sure
  * that this filter is run after the Weld listener.
+ * <p/>
+ * Setting the {@link #UNIT_OF_WORK} context (or filter) parameter to <code>true</code> makes all the persistence
+ * operations of a request share a single <code>EntityManager</code>, see
+ * {@link PersistenceUtils#beginUnitOfWork()}.
  */
 public class AppConfigFilter implements Filter
 {
+    /**
+     * Name of the parameter that enables the request scoped unit of work.
+     */
+    public static final String UNIT_OF_WORK = "rogue.app.framework.UNIT_OF_WORK";
+
+    private boolean unitOfWork;
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException
     {
-        // Do nothing
+        String value = filterConfig.getInitParameter(UNIT_OF_WORK);
+        if (value == null)
+        {
+            value = filterConfig.getServletContext().getInitParameter(UNIT_OF_WORK);
+        }
+        unitOfWork = Boolean.parseBoolean(value);
     }
 
     @Override
@@ -50,14 +66,32 @@ public class AppConfigFilter implements Filter
     {
         WebContext.init((HttpServletRequest) request, (HttpServletResponse) response);
 
-        // Setup the user context
-        setupUserContext((HttpServletRequest) request, (HttpServletResponse) response);
+        if (unitOfWork)
+        {
+            PersistenceUtils.beginUnitOfWork();
+        }
+
+        boolean completed = false;
+        try
+        {
+            // Setup the user context
+            setupUserContext((HttpServletRequest) request, (HttpServletResponse) response);
 
-        // process the chain
-        filterChain.doFilter(request, response);
+            // process the chain
+            filterChain.doFilter(request, response);
 
-        // Clear out pending requests in the SearchIndexer queue.
-        SearchIndexer.processQueue();
+            // Clear out pending requests in the SearchIndexer queue.
+            SearchIndexer.processQueue();
+            completed = true;
+        }
+        finally
+        {
+            if (unitOfWork)
+            {
+                // Only write out the changes of the requests that completed.
+                PersistenceUtils.endUnitOfWork(completed);
+            }
+        }
 
         // clear out the UserContext
         UserContext.clearContext();
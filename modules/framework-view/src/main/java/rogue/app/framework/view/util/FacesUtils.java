@@ -55,6 +55,28 @@ public class FacesUtils
         return (T) valueExp.getValue(elContext);
     }
 
+    /**
+     * Resolve the object with the given name, e.g., a named bean, straight from the EL resolver of the application.
+     * Equivalent to <code>resolveObject("#{" + name + "}")</code>, without building and parsing an expression.
+     *
+     * @param name the name of the object.
+     * @return the resolved object, or null if it cannot be resolved.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T resolveNamedObject(String name)
+    {
+        final String METHOD_NAME = "resolveNamedObject";
+        FacesContext ctx = FacesContext.getCurrentInstance();
+        if (ctx == null)
+        {
+            LOGGER.logp(Level.WARNING, CLASS_NAME, METHOD_NAME, "Unable to acquire faces context. Returning null");
+            return null;
+        }
+
+        ELContext elContext = ctx.getELContext();
+        return (T) ctx.getApplication().getELResolver().getValue(elContext, null, name);
+    }
+
     /**
      * Get the validator message set on the component. If the validator message is empty, then this method will set
      * the given message as the component's validator message and also return the same.
@@ -16,21 +16,20 @@
 
 package rogue.app.framework.i18n;
 
-import rogue.app.framework.i18n.model.AppLocale;
-import rogue.app.framework.i18n.model.TranslationBundle;
-import rogue.app.framework.persistence.JpaController;
-
 import java.util.*;
 
 /**
  * A {@link java.util.ResourceBundle} implementation that is backed by a
  * {@link rogue.app.framework.i18n.model.TranslationBundle} entity. Additionally, the <code>AppResourceBundle</code>
  * implements the {@link java.util.Map} interface (read-only) which makes it easy to use on the UI.
+ * <p/>
+ * The translations are served from an application wide, compiled snapshot of the bundle for the requested locale,
+ * which falls back to the less specific locales, and finally to the base definition, for keys that have not been
+ * translated.
  */
 public class AppResourceBundle extends ResourceBundle implements Map<String, Object>
 {
-    private TranslationBundle translationBundle;
-    private AppLocale appLocale;
+    private final CompiledTranslationBundle translationBundle;
 
     public AppResourceBundle(String bundleName)
     {
@@ -44,30 +43,18 @@ public class AppResourceBundle extends ResourceBundle implements Map<String, Obj
             throw new NullPointerException("Bundle name cannot be null");
         }
 
-        Map<String, Object> params = new HashMap<>(1);
-        params.put("queryString", bundleName.toLowerCase());
-        translationBundle = JpaController.getController(TranslationBundle.class)
-                                         .executeNamedQuerySingleResult("TranslationBundleEntity.findByName", params);
-        if (translationBundle == null)
+        translationBundle = CompiledTranslationBundle.getBundle(bundleName, locale);
+        if (!translationBundle.isAvailable())
         {
             throw new MissingResourceException("Unable to find translation bundle with name: " + bundleName, bundleName,
                                                null);
         }
-
-        if (locale != null)
-        {
-            // Check if we support the locale or not.
-            params.clear();
-            params.put("queryString", locale.toString());
-            appLocale = JpaController.getController(AppLocale.class)
-                                     .executeNamedQuerySingleResult("AppLocaleEntity.findByName", params);
-        }
     }
 
     @Override
     public Locale getLocale()
     {
-        return appLocale != null ? appLocale.getLocale() : null;
+        return translationBundle.getAppLocale() != null ? translationBundle.getAppLocale().getLocale() : null;
     }
 
     @Override
@@ -81,11 +68,12 @@ public class AppResourceBundle extends ResourceBundle implements Map<String, Obj
         if (!translationBundle.containsKey(key))
         {
             throw new MissingResourceException(
-                    String.format("Translation bundle: %s does not contain key %s", translationBundle.getName(), key),
-                    translationBundle.getName(), key);
+                    String.format("Translation bundle: %s does not contain key %s", translationBundle.getBundleName(),
+                                  key),
+                    translationBundle.getBundleName(), key);
         }
 
-        return translationBundle.getValue(key, appLocale);
+        return translationBundle.get(key);
     }
 
     @Override
@@ -109,7 +97,7 @@ public class AppResourceBundle extends ResourceBundle implements Map<String, Obj
     @Override
     public boolean containsKey(Object key)
     {
-        return translationBundle.getKeys().contains(key);
+        return translationBundle.containsKey(key);
     }
 
     @Override
@@ -121,7 +109,7 @@ public class AppResourceBundle extends ResourceBundle implements Map<String, Obj
     @Override
     public String get(Object key)
     {
-        return translationBundle.getValue(key == null ? null : key.toString(), appLocale);
+        return translationBundle.get(key == null ? null : key.toString());
     }
 
     @Override
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.i18n;
+
+import com.google.appengine.api.datastore.Key;
+import rogue.app.framework.i18n.model.AppLocale;
+import rogue.app.framework.i18n.model.TranslationBundle;
+import rogue.app.framework.internal.persistence.attr.AttributesManager;
+import rogue.app.framework.model.attr.CustomizedAttributes;
+import rogue.app.framework.model.attr.Layer;
+import rogue.app.framework.model.attr.LayerUtils;
+import rogue.app.framework.persistence.JpaController;
+import rogue.app.framework.persistence.PersistenceUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable, fully resolved snapshot of the translations of a {@link TranslationBundle} for a given locale. The values
+ * are resolved along the locale's fallback chain, e.g., <code>fr_CA</code> &rarr; <code>fr</code> &rarr; the base
+ * definition, when the snapshot is built, hence looking up a key (present or not) never touches the data store.
+ * <p/>
+ * Snapshots are shared across the application and are tagged with the revisions of the entities they were compiled
+ * from, i.e., the bundle, locale and layer entity classes, and the attributes of the bundle itself, so that writing
+ * the translations of one bundle leaves the other bundles alone. A stale snapshot is recompiled on first access, and
+ * swapped in atomically.
+ */
+final class CompiledTranslationBundle
+{
+    private static final ConcurrentMap<String, CompiledTranslationBundle> BUNDLES = new ConcurrentHashMap<>();
+
+    /**
+     * The entity classes whose changes affect the compiled translations, besides the attributes of the bundle.
+     */
+    private static final Class[] SOURCE_CLASSES = {TranslationBundle.class, AppLocale.class, Layer.class};
+
+    private final String bundleName;
+    private final Key bundleKey;
+    private final int[] revisions;
+    private final boolean available;
+    private final AppLocale appLocale;
+    private final Map<String, String> translations;
+    private final List<String> keys;
+
+    private CompiledTranslationBundle(String bundleName, Locale locale)
+    {
+        this.bundleName = bundleName;
+        // Read the revisions before the entities, so that a concurrent write leaves the snapshot stale, not wrong.
+        this.revisions = getRevisions(null);
+
+        Map<String, Object> params = new HashMap<>(1);
+        params.put("queryString", bundleName.toLowerCase());
+        TranslationBundle bundle = JpaController.getController(TranslationBundle.class)
+                                                .executeNamedQuerySingleResult("TranslationBundleEntity.findByName",
+                                                                               params);
+        this.available = bundle != null;
+        this.bundleKey = PersistenceUtils.getEntityKey(bundle);
+        if (bundle == null)
+        {
+            this.appLocale = null;
+            this.translations = Collections.emptyMap();
+            this.keys = Collections.emptyList();
+            return;
+        }
+        revisions[SOURCE_CLASSES.length] = AttributesManager.getRevision(bundleKey);
+
+        // 1. Resolve the layers of the fallback chain, most specific first.
+        List<Layer> layers = new ArrayList<>(3);
+        AppLocale matchedLocale = null;
+        for (Locale l : getFallbackChain(locale))
+        {
+            params.clear();
+            params.put("queryString", l.toString());
+            AppLocale al = JpaController.getController(AppLocale.class)
+                                        .executeNamedQuerySingleResult("AppLocaleEntity.findByName", params);
+            if (al != null)
+            {
+                if (matchedLocale == null)
+                {
+                    matchedLocale = al;
+                }
+
+                Layer layer = LayerUtils.findLayerForObject(al);
+                if (layer != null)
+                {
+                    layers.add(layer);
+                }
+            }
+        }
+        this.appLocale = matchedLocale;
+
+        // 2. Resolve every key against the chain, falling back to the base definition.
+        List<String> keyList = new ArrayList<>(bundle.getKeys());
+        Map<String, String> values = new HashMap<>(keyList.size());
+        CustomizedAttributes customizations = bundle instanceof CustomizedAttributes ?
+                                              (CustomizedAttributes) bundle : null;
+        for (String key : keyList)
+        {
+            String value = null;
+            boolean resolved = false;
+            if (customizations != null)
+            {
+                for (Layer layer : layers)
+                {
+                    if (customizations.isAttributeCustomized(key, layer))
+                    {
+                        value = customizations.getAttribute(key, layer);
+                        resolved = true;
+                        break;
+                    }
+                }
+            }
+            values.put(key, resolved ? value : bundle.getValue(key));
+        }
+
+        this.translations = Collections.unmodifiableMap(values);
+        this.keys = Collections.unmodifiableList(keyList);
+    }
+
+    /**
+     * Get the compiled translations of the named bundle, for the given locale.
+     *
+     * @param bundleName the name of the translation bundle.
+     * @param locale     the locale, can be null.
+     * @return the compiled translations.
+     */
+    static CompiledTranslationBundle getBundle(String bundleName, Locale locale)
+    {
+        String cacheKey = bundleName.toLowerCase() + "_" + (locale != null ? locale.toString() : "");
+        CompiledTranslationBundle bundle = BUNDLES.get(cacheKey);
+        if (bundle == null || !Arrays.equals(bundle.revisions, getRevisions(bundle.bundleKey)))
+        {
+            bundle = new CompiledTranslationBundle(bundleName, locale);
+            BUNDLES.put(cacheKey, bundle);
+        }
+        return bundle;
+    }
+
+    /**
+     * Get the chain of locales to look up translations from, most specific first. The base definition, which is the
+     * last resort, is not part of the chain.
+     *
+     * @param locale the locale.
+     * @return the fallback chain.
+     */
+    static List<Locale> getFallbackChain(Locale locale)
+    {
+        List<Locale> chain = new ArrayList<>(3);
+        if (locale != null && !locale.getLanguage().isEmpty())
+        {
+            if (!locale.getVariant().isEmpty())
+            {
+                chain.add(new Locale(locale.getLanguage(), locale.getCountry(), locale.getVariant()));
+            }
+            if (!locale.getCountry().isEmpty())
+            {
+                chain.add(new Locale(locale.getLanguage(), locale.getCountry()));
+            }
+            chain.add(new Locale(locale.getLanguage()));
+        }
+        return chain;
+    }
+
+    /**
+     * Get the revisions of the source entity classes, followed by the revision of the attributes of the bundle.
+     *
+     * @param bundleKey the key of the translation bundle, null if it does not exist.
+     * @return the revisions.
+     */
+    @SuppressWarnings("unchecked")
+    private static int[] getRevisions(Key bundleKey)
+    {
+        int[] revisions = new int[SOURCE_CLASSES.length + 1];
+        for (int i = 0; i < SOURCE_CLASSES.length; i++)
+        {
+            revisions[i] = JpaController.getController(SOURCE_CLASSES[i]).getRevision();
+        }
+        revisions[SOURCE_CLASSES.length] = bundleKey != null ? AttributesManager.getRevision(bundleKey) : -1;
+        return revisions;
+    }
+
+    String getBundleName()
+    {
+        return bundleName;
+    }
+
+    /**
+     * Check if the translation bundle exists.
+     *
+     * @return true if the translation bundle exists, false otherwise.
+     */
+    boolean isAvailable()
+    {
+        return available;
+    }
+
+    /**
+     * Get the most specific supported locale of the fallback chain.
+     *
+     * @return the most specific supported locale, or null if none of the locales are supported.
+     */
+    AppLocale getAppLocale()
+    {
+        return appLocale;
+    }
+
+    boolean containsKey(Object key)
+    {
+        return translations.containsKey(key);
+    }
+
+    String get(Object key)
+    {
+        return translations.get(key);
+    }
+
+    List<String> getKeys()
+    {
+        return keys;
+    }
+}
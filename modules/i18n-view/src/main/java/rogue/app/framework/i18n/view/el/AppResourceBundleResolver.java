@@ -64,7 +64,20 @@ public class AppResourceBundleResolver extends ELResolver
             // Look for a resource bundle by the given name.
 
             final String METHOD_NAME = "getAppBundle";
-            String KEY = METHOD_NAME + "_" + bundleName;
+
+            Locale locale = Locale.ENGLISH;
+            FacesContext facesContext = FacesContext.getCurrentInstance();
+            if (facesContext != null)
+            {
+                UIViewRoot viewRoot = facesContext.getViewRoot();
+                if (viewRoot != null)
+                {
+                    locale = viewRoot.getLocale();
+                }
+            }
+
+            // The bundles themselves are shared across the application, this merely saves the lookup.
+            String KEY = METHOD_NAME + "_" + bundleName + "_" + locale;
 
             StateHolder stateHolder = ScopedStateHolder.getStateHolder(RequestScoped.class);
             Map<String, Object> bundleMap;
@@ -72,17 +85,6 @@ public class AppResourceBundleResolver extends ELResolver
 
             if (bundleMap == null && !StringUtils.isEmpty(bundleName))
             {
-                Locale locale = Locale.ENGLISH;
-                FacesContext facesContext = FacesContext.getCurrentInstance();
-                if (facesContext != null)
-                {
-                    UIViewRoot viewRoot = facesContext.getViewRoot();
-                    if (viewRoot != null)
-                    {
-                        locale = viewRoot.getLocale();
-                    }
-                }
-
                 try
                 {
                     bundleMap = new AppResourceBundle(bundleName, locale);
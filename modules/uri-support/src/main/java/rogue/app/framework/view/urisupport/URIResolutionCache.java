@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package rogue.app.framework.view.urisupport;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe, bounded cache of URI resolutions, keyed by the request URI. Entries are evicted on a least recently used
+ * basis once the cache is full, and expire after a time to live. URIs that do not resolve to any action are held in a
+ * separate cache, with a shorter time to live, so that unique URIs, e.g., from crawlers, cannot push out the
+ * resolutions that matter.
+ * <p/>
+ * The limits are configured through the following system properties.
+ * <pre>
+ *     rogue.app.framework.uri.CACHE_SIZE          - maximum number of resolved URIs (default 1000).
+ *     rogue.app.framework.uri.CACHE_TTL           - time to live of a resolved URI, in seconds (default 3600).
+ *     rogue.app.framework.uri.NEGATIVE_CACHE_SIZE - maximum number of unresolved URIs (default 1000).
+ *     rogue.app.framework.uri.NEGATIVE_CACHE_TTL  - time to live of an unresolved URI, in seconds (default 60).
+ * </pre>
+ */
+public class URIResolutionCache
+{
+    private static final int CACHE_SIZE = Math.max(1, Integer.getInteger("rogue.app.framework.uri.CACHE_SIZE", 1000));
+    private static final int CACHE_TTL = Math.max(1, Integer.getInteger("rogue.app.framework.uri.CACHE_TTL", 3600));
+    private static final int NEGATIVE_CACHE_SIZE =
+            Math.max(1, Integer.getInteger("rogue.app.framework.uri.NEGATIVE_CACHE_SIZE", 1000));
+    private static final int NEGATIVE_CACHE_TTL =
+            Math.max(1, Integer.getInteger("rogue.app.framework.uri.NEGATIVE_CACHE_TTL", 60));
+
+    private final Cache<String, URIAction> resolved;
+    private final Cache<String, Boolean> unresolved;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a cache with the configured limits.
+     */
+    public URIResolutionCache()
+    {
+        this(CACHE_SIZE, CACHE_TTL, NEGATIVE_CACHE_SIZE, NEGATIVE_CACHE_TTL);
+    }
+
+    /**
+     * Create a cache with the given limits.
+     *
+     * @param size               the maximum number of resolved URIs.
+     * @param timeToLive         the time to live of a resolved URI, in seconds.
+     * @param negativeSize       the maximum number of unresolved URIs.
+     * @param negativeTimeToLive the time to live of an unresolved URI, in seconds.
+     */
+    public URIResolutionCache(int size, int timeToLive, int negativeSize, int negativeTimeToLive)
+    {
+        resolved = CacheBuilder.newBuilder()
+                               .maximumSize(size)
+                               .expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                               .recordStats()
+                               .build();
+        unresolved = CacheBuilder.newBuilder()
+                                 .maximumSize(negativeSize)
+                                 .expireAfterWrite(negativeTimeToLive, TimeUnit.SECONDS)
+                                 .recordStats()
+                                 .build();
+    }
+
+    /**
+     * Identifies if the resolution of the given URI is cached.
+     *
+     * @param uri the request URI.
+     * @return true if the URI has been resolved, or found to be unresolvable, recently.
+     */
+    public boolean contains(String uri)
+    {
+        return resolved.getIfPresent(uri) != null || unresolved.getIfPresent(uri) != null;
+    }
+
+    /**
+     * Get the cached resolution of the given URI, and record the outcome.
+     *
+     * @param uri the request URI.
+     * @return the cached action, or null if the URI is not cached or is known to be unresolvable. Use
+     *         {@link #contains(String)} to tell the two apart.
+     */
+    public URIAction get(String uri)
+    {
+        URIAction action = resolved.getIfPresent(uri);
+        if (action != null)
+        {
+            hits.incrementAndGet();
+        }
+        else if (unresolved.getIfPresent(uri) != null)
+        {
+            negativeHits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+        }
+        return action;
+    }
+
+    /**
+     * Cache the resolution of the given URI.
+     *
+     * @param uri    the request URI.
+     * @param action the resolved action, or null if the URI could not be resolved.
+     */
+    public void put(String uri, URIAction action)
+    {
+        if (action != null)
+        {
+            resolved.put(uri, action);
+        }
+        else
+        {
+            unresolved.put(uri, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Discard all the cached resolutions.
+     */
+    public void clear()
+    {
+        resolved.invalidateAll();
+        unresolved.invalidateAll();
+    }
+
+    /**
+     * Get the number of lookups that found a resolved URI.
+     *
+     * @return the number of hits.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups that found a URI known to be unresolvable.
+     *
+     * @return the number of negative hits.
+     */
+    public long getNegativeHitCount()
+    {
+        return negativeHits.get();
+    }
+
+    /**
+     * Get the number of lookups that found nothing.
+     *
+     * @return the number of misses.
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of entries evicted, either because the cache was full or because they expired.
+     *
+     * @return the number of evictions.
+     */
+    public long getEvictionCount()
+    {
+        return resolved.stats().evictionCount() + unresolved.stats().evictionCount();
+    }
+
+    /**
+     * Get the number of cached entries.
+     *
+     * @return the number of resolved and unresolved URIs in the cache.
+     */
+    public long size()
+    {
+        return resolved.size() + unresolved.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "URIResolutionCache[size=" + size() + ", hits=" + getHitCount() + ", negativeHits=" +
+                getNegativeHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+}
@@ -21,6 +21,7 @@ import rogue.app.framework.internal.util.CDIUtils;
 import rogue.app.framework.model.AppObjectController;
 import rogue.app.framework.util.ScopedStateHolder;
 import rogue.app.framework.util.StateHolder;
+import rogue.app.framework.view.ActionType;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Any;
@@ -41,8 +42,8 @@ public class URIResolver
     private static final String CLASS_NAME = URIResolver.class.getName();
     private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
 
-    // Reconsider if you really want static cache or not.
-    private Map<String, URIAction> cacheMap = new HashMap<>(20);
+    private final URIResolutionCache resolutionCache = new URIResolutionCache();
+    private volatile URIRouteTrie routes;
 
     private static Set<String> controllerNames = new HashSet<>();
     private static Set<String> prefixes = new HashSet<>();
@@ -89,6 +90,7 @@ public class URIResolver
     public void addPrefix(String prefixName)
     {
         prefixes.add(prefixName);
+        resolutionCache.clear();
     }
 
     /**
@@ -99,6 +101,7 @@ public class URIResolver
     public void removePrefix(String prefixName)
     {
         prefixes.remove(prefixName);
+        resolutionCache.clear();
     }
 
     /**
@@ -119,6 +122,8 @@ public class URIResolver
     public void addControllerName(String name)
     {
         controllerNames.add(name);
+        routes = null;
+        resolutionCache.clear();
     }
 
     /**
@@ -129,6 +134,8 @@ public class URIResolver
     public void removeControllerName(String name)
     {
         controllerNames.remove(name);
+        routes = null;
+        resolutionCache.clear();
     }
 
     /**
@@ -141,6 +148,23 @@ public class URIResolver
         return controllerNames;
     }
 
+    /**
+     * Get the routes of the registered controllers, compiled into a trie. The trie is compiled on first use, and again
+     * whenever the set of controller names changes.
+     *
+     * @return the compiled routes of the registered controllers.
+     */
+    public URIRouteTrie getRoutes()
+    {
+        URIRouteTrie trie = routes;
+        if (trie == null)
+        {
+            trie = URIRouteTrie.compile(controllerNames, ActionType.ACTIONS);
+            routes = trie;
+        }
+        return trie;
+    }
+
     /**
      * Resolve the given URI to a possible URIAction.
      *
@@ -154,36 +178,44 @@ public class URIResolver
             return null;
         }
 
-        URIAction uriAction = cacheMap.get(uri);
+        URIAction uriAction = resolutionCache.get(uri);
 
-        if (uriAction == null && !cacheMap.containsKey(uri))
+        if (uriAction == null && !resolutionCache.contains(uri))
         {
-            if (uri.startsWith("/"))
-            {
-                uri = uri.substring(1);
-            }
+            String path = uri.startsWith("/") ? uri.substring(1) : uri;
 
-            int idx = uri.indexOf("/");
+            int idx = path.indexOf("/");
             String rootContext;
             if (idx != -1)
             {
-                rootContext = uri.substring(0, idx);
-                uri = uri.substring(idx);
+                rootContext = path.substring(0, idx);
+                path = path.substring(idx);
             }
             else
             {
-                rootContext = uri;
-                uri = "";
+                rootContext = path;
+                path = "";
             }
             URIResolutionContext uriContext = new URIResolutionContext(rootContext);
-            uriAction = internalResolveURI(uriContext, uri);
+            uriAction = internalResolveURI(uriContext, path);
 
-            cacheMap.put(uri, uriAction);
+            // Cached against the request URI, which is what the lookup uses.
+            resolutionCache.put(uri, uriAction);
         }
 
         return uriAction;
     }
 
+    /**
+     * Get the cache of URI resolutions, e.g., to monitor its hit, miss and eviction counts.
+     *
+     * @return the cache of URI resolutions.
+     */
+    public URIResolutionCache getResolutionCache()
+    {
+        return resolutionCache;
+    }
+
     /**
      * Resolve the given action to a potential controller.
      *
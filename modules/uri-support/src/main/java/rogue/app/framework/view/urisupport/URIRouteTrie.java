@@ -0,0 +1,326 @@
+/*
+ * Copyright 2013, Rogue.IO
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package rogue.app.framework.view.urisupport;
+
+import java.util.*;
+
+/**
+ * Immutable prefix trie of the URI patterns handled by the registered controllers, compiled once from the controller
+ * names and the action names. Every node holds its literal segments in a sorted array, along with an optional typed
+ * parameter, so that matching a path costs one binary search per segment, without splitting the path, running
+ * regular expressions or allocating anything but the parameter values.
+ * <p/>
+ * The compiled patterns are the following, where an id matches <code>\w+</code>.
+ * <pre>
+ *     path = /{controller}
+ *          = /{controller}/{action}
+ *          = /{controller}/{action}/{action}
+ *          = /{controller}/{action}/path
+ *          = /{controller}/{id}
+ *          = /{controller}/{id}/{action}
+ *          = /{controller}/{id}/path
+ * </pre>
+ * After a controller, the action names take precedence over ids; after an id or an action, the controller names take
+ * precedence over the action names. An action that follows an id or another action ends the path.
+ */
+public final class URIRouteTrie
+{
+    /**
+     * Types of the segments of a path.
+     */
+    public enum SegmentType
+    {
+        CONTROLLER, ACTION, ID
+    }
+
+    private final Node root;
+
+    private URIRouteTrie(Node root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * Compile the trie for the given controller and action names.
+     *
+     * @param controllerNames the names of the registered controllers.
+     * @param actionNames     the names of the actions.
+     * @return the compiled trie.
+     */
+    public static URIRouteTrie compile(Collection<String> controllerNames, Collection<String> actionNames)
+    {
+        Node root = new Node(null);
+        Node end = new Node(null);
+        Node action = new Node(null);
+        Node id = new Node(null);
+        Node controller = new Node(id);
+
+        root.addEdges(controllerNames, SegmentType.CONTROLLER, controller);
+        controller.addEdges(actionNames, SegmentType.ACTION, action);
+        action.addEdges(actionNames, SegmentType.ACTION, end);
+        action.addEdges(controllerNames, SegmentType.CONTROLLER, controller);
+        id.addEdges(actionNames, SegmentType.ACTION, end);
+        id.addEdges(controllerNames, SegmentType.CONTROLLER, controller);
+
+        root.freeze();
+        end.freeze();
+        action.freeze();
+        id.freeze();
+        controller.freeze();
+        return new URIRouteTrie(root);
+    }
+
+    /**
+     * Match the given path, e.g., <code>/users/rogue/update</code>, against the trie. Matching stops at the first
+     * segment that does not match, in which case the returned route is not {@link Route#isComplete() complete}.
+     *
+     * @param path the path to match.
+     * @return the matched route.
+     */
+    public Route match(String path)
+    {
+        int start = !path.isEmpty() && path.charAt(0) == '/' ? 1 : 0;
+        int end = path.length();
+        if (end > start && path.charAt(end - 1) == '/')
+        {
+            end--;
+        }
+
+        Route route = new Route(countSegments(path, start, end));
+        Node node = root;
+        int pos = start;
+        while (pos < end)
+        {
+            int next = path.indexOf('/', pos);
+            if (next == -1 || next > end)
+            {
+                next = end;
+            }
+
+            int idx = node.find(path, pos, next);
+            if (idx >= 0)
+            {
+                route.add(node.types[idx], node.names[idx]);
+                node = node.targets[idx];
+            }
+            else if (node.param != null && isId(path, pos, next))
+            {
+                route.add(SegmentType.ID, path.substring(pos, next));
+                node = node.param;
+            }
+            else
+            {
+                break;
+            }
+            pos = next + 1;
+        }
+        route.complete = pos >= end;
+        return route;
+    }
+
+    private static int countSegments(String path, int start, int end)
+    {
+        if (start >= end)
+        {
+            return 0;
+        }
+
+        int count = 1;
+        for (int i = start; i < end; i++)
+        {
+            if (path.charAt(i) == '/')
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Equivalent of matching the given region against <code>\w+</code>.
+     */
+    private static boolean isId(String path, int from, int to)
+    {
+        if (from >= to)
+        {
+            return false;
+        }
+
+        for (int i = from; i < to; i++)
+        {
+            char c = path.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_'))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The segments of a path that have been matched against the trie.
+     */
+    public static final class Route
+    {
+        private final SegmentType[] types;
+        private final String[] values;
+        private int size;
+        private boolean complete;
+
+        private Route(int capacity)
+        {
+            types = new SegmentType[capacity];
+            values = new String[capacity];
+        }
+
+        private void add(SegmentType type, String value)
+        {
+            types[size] = type;
+            values[size] = value;
+            size++;
+        }
+
+        /**
+         * Get the number of matched segments.
+         *
+         * @return the number of matched segments.
+         */
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Get the type of the specified segment.
+         *
+         * @param index the index of the segment.
+         * @return the type of the segment.
+         */
+        public SegmentType getType(int index)
+        {
+            return types[index];
+        }
+
+        /**
+         * Get the value of the specified segment, i.e., the controller name, the action name or the id.
+         *
+         * @param index the index of the segment.
+         * @return the value of the segment.
+         */
+        public String getValue(int index)
+        {
+            return values[index];
+        }
+
+        /**
+         * Check if every segment of the path has been matched.
+         *
+         * @return true if every segment of the path has been matched, false otherwise.
+         */
+        public boolean isComplete()
+        {
+            return complete;
+        }
+    }
+
+    /**
+     * A node of the trie. The nodes are only modified while the trie is being compiled.
+     */
+    private static final class Node
+    {
+        private final Node param;
+        private Map<String, Object[]> edges = new TreeMap<>();
+        private String[] names;
+        private SegmentType[] types;
+        private Node[] targets;
+
+        private Node(Node param)
+        {
+            this.param = param;
+        }
+
+        private void addEdges(Collection<String> segments, SegmentType type, Node target)
+        {
+            for (String segment : segments)
+            {
+                edges.put(segment, new Object[]{type, target});
+            }
+        }
+
+        private void freeze()
+        {
+            names = new String[edges.size()];
+            types = new SegmentType[edges.size()];
+            targets = new Node[edges.size()];
+            int i = 0;
+            for (Map.Entry<String, Object[]> entry : edges.entrySet())
+            {
+                names[i] = entry.getKey();
+                types[i] = (SegmentType) entry.getValue()[0];
+                targets[i] = (Node) entry.getValue()[1];
+                i++;
+            }
+            edges = null;
+        }
+
+        /**
+         * Binary search the literal segments for the given region of the path.
+         */
+        private int find(String path, int from, int to)
+        {
+            int low = 0;
+            int high = names.length - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(names[mid], path, from, to);
+                if (cmp < 0)
+                {
+                    low = mid + 1;
+                }
+                else if (cmp > 0)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Compare the given name with a region of the path, in the same order as {@link String#compareTo(String)}.
+         */
+        private static int compare(String name, String path, int from, int to)
+        {
+            int length = to - from;
+            int n = Math.min(name.length(), length);
+            for (int i = 0; i < n; i++)
+            {
+                char c1 = name.charAt(i);
+                char c2 = path.charAt(from + i);
+                if (c1 != c2)
+                {
+                    return c1 - c2;
+                }
+            }
+            return name.length() - length;
+        }
+    }
+}
@@ -33,6 +33,7 @@ import javax.faces.context.FacesContext;
 import javax.faces.view.ViewDeclarationLanguage;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -51,6 +52,11 @@ public class URIViewHandler extends ViewHandlerWrapper
     // TODO: Figure out how this should be refactored elegantly.
     public static final String ADMIN_PAGE_TEMPLATE = "/framework/templates/admin/page-template.xhtml";
 
+    /**
+     * Request attribute under which the URI resolutions of the current request are held.
+     */
+    private static final String RESOLVED_ACTIONS = CLASS_NAME + ".RESOLVED_ACTIONS";
+
     private ViewHandler wrapped;
 
     public URIViewHandler(ViewHandler wrapped)
@@ -67,7 +73,7 @@ public class URIViewHandler extends ViewHandlerWrapper
     @Override
     public UIViewRoot createView(FacesContext context, String viewId)
     {
-        URIAction action = URIResolver.getInstance().resolveURI(viewId);
+        URIAction action = resolveURI(context, viewId);
         if (action != null)
         {
             if (setupControllerContext(context, action))
@@ -95,7 +101,7 @@ public class URIViewHandler extends ViewHandlerWrapper
     @Override
     public UIViewRoot restoreView(FacesContext context, String viewId)
     {
-        URIAction action = URIResolver.getInstance().resolveURI(viewId);
+        URIAction action = resolveURI(context, viewId);
         if (action != null)
         {
             if (setupControllerContext(context, action))
@@ -125,7 +131,7 @@ public class URIViewHandler extends ViewHandlerWrapper
     {
         // The default implementation tries to verify if a physical file exists or not.
         // For the case of URI actions, we need to override this method.
-        return URIResolver.getInstance().resolveURI(input) != null ? input : super.deriveViewId(context, input);
+        return resolveURI(context, input) != null ? input : super.deriveViewId(context, input);
     }
 
     @Override
@@ -133,7 +139,7 @@ public class URIViewHandler extends ViewHandlerWrapper
     {
         // The default implementation tries to verify if a physical file exists or not.
         // For the case of URI actions, we need to override this method.
-        return URIResolver.getInstance().resolveURI(input) != null ? input : super.deriveLogicalViewId(context, input);
+        return resolveURI(context, input) != null ? input : super.deriveLogicalViewId(context, input);
     }
 
     @Override
@@ -215,6 +221,34 @@ public class URIViewHandler extends ViewHandlerWrapper
         return targetURL;
     }
 
+    /**
+     * Resolve the given view id to a possible URIAction. The resolution is held in the request scope, so that deriving,
+     * restoring and creating the view within the same request resolve the view id only once.
+     *
+     * @param context the FacesContext instance
+     * @param viewId  the view id to resolve.
+     * @return a possible URIAction or null if the view id cannot be resolved.
+     */
+    @SuppressWarnings("unchecked")
+    private URIAction resolveURI(FacesContext context, String viewId)
+    {
+        Map<String, Object> requestMap = context.getExternalContext().getRequestMap();
+        Map<String, URIAction> resolved = (Map<String, URIAction>) requestMap.get(RESOLVED_ACTIONS);
+        if (resolved == null)
+        {
+            resolved = new HashMap<>(4);
+            requestMap.put(RESOLVED_ACTIONS, resolved);
+        }
+        else if (resolved.containsKey(viewId))
+        {
+            return resolved.get(viewId);
+        }
+
+        URIAction action = URIResolver.getInstance().resolveURI(viewId);
+        resolved.put(viewId, action);
+        return action;
+    }
+
     /**
      * Resolve the controller and store it on the controllerContext. Also store the page fragment location in the
      * request scope so that it can be included in the view.
@@ -105,6 +105,9 @@ public class URIResolverInitializer implements ServletContextListener
                     resolver.addControllerName(name);
                 }
             }
+
+            // Compile the routes upfront, rather than on the first request.
+            resolver.getRoutes();
         }
     }
 
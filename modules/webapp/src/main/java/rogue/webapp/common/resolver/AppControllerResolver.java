@@ -24,6 +24,7 @@ import rogue.app.framework.view.urisupport.URIAction;
 import rogue.app.framework.view.urisupport.URIResolutionContext;
 import rogue.app.framework.view.urisupport.URIResolutionProvider;
 import rogue.app.framework.view.urisupport.URIResolver;
+import rogue.app.framework.view.urisupport.URIRouteTrie;
 import rogue.app.framework.view.util.FacesUtils;
 
 import java.util.Objects;
@@ -91,132 +92,41 @@ public class AppControllerResolver implements URIResolutionProvider
             return null;
         }
 
-        URIAction uriAction = null;
-
-        // 1. Split the uri on '/'
-        String[] tokens = uri.split("/");
-
-        int idx = 0;
-
-        if (uri.startsWith("/"))
+        URIRouteTrie.Route route = URIResolver.getInstance().getRoutes().match(uri);
+        int size = route.size();
+        if (!route.isComplete())
         {
-            // ignore the first token
-            idx++;
-        }
-
-        if (idx < tokens.length)
-        {
-            while (idx < tokens.length)
+            if (LOGGER.isLoggable(Level.FINE))
             {
-                // 2 - The following scenario exist
-                // a) The first token belongs to the container names list
-                // b) The first token represents a view action after an id
-                if (URIResolver.getInstance().getControllerNames().contains(tokens[idx]))
-                {
-                    String controllerName = tokens[idx++];
-                    // The default action type is view.
-                    ActionType actionType = ActionType.VIEW;
-                    String id = null;
-
-                    // 3.2 - we now the following scenarios
-                    // a) There are no more tokens, in which case the action would be view
-                    // b) The token could belong to action suffixes
-                    // c) The token can represent an id
-                    if (idx == tokens.length)
-                    {
-                        actionType = ActionType.VIEW;
-                    }
-                    else if (ActionType.ACTIONS.contains(tokens[idx]))
-                    {
-                        String type = tokens[idx++];
-                        try
-                        {
-                            actionType = ActionType.lookup(type);
-                        }
-                        catch (IllegalArgumentException e)
-                        {
-                            LOGGER.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME,
-                                        "Internal Error: List of actions contains search string, but evaluating it to enum has failed: " + type);
-                            break;
-                        }
-                    }
-                    else if (tokens[idx].matches("\\w+"))
-                    {
-                        id = tokens[idx++];
-                    }
-                    else
-                    {
-                        if (LOGGER.isLoggable(Level.FINE))
-                        {
-                            LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "Unknown uri pattern: " + tokens[idx]);
-                        }
-                        break;
-                    }
-
-                    uriAction = uriAction == null ? new AppControllerAction(context.getRootContext(), controllerName) :
-                                new AppControllerAction(controllerName, uriAction);
-                    uriAction.setActionType(actionType);
-                    uriAction.setId(id);
-                }
-                else if (ActionType.ACTIONS.contains(tokens[idx]))
-                {
-                    if (uriAction != null)
-                    {
-                        String type = tokens[idx++];
-                        try
-                        {
-                            uriAction.setActionType(ActionType.lookup(type));
-                        }
-                        catch (IllegalArgumentException e)
-                        {
-                            LOGGER.logp(Level.SEVERE, CLASS_NAME, METHOD_NAME,
-                                        "Internal Error: List of actions contains search string, but evaluating it to enum has failed: " + type);
-                            break;
-                        }
-
-                        if (idx != tokens.length)
-                        {
-                            StringBuilder builder = new StringBuilder(100);
-                            for (int i = idx; i < tokens.length; i++)
-                            {
-                                builder.append(tokens[i]).append((i + 1) != tokens.length ? "/" : "");
-                            }
-                            if (LOGGER.isLoggable(Level.FINE))
-                            {
-                                LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
-                                            "Reached a logical end in the evaluation, but more tokens found: "
-                                                    + builder.toString());
-                            }
-                        }
+                LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
+                            "Not a recognized uri pattern. Using the segments matched so far: " + uri);
+            }
 
-                        break;
-                    }
-                    else
-                    {
-                        if (LOGGER.isLoggable(Level.FINE))
-                        {
-                            LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
-                                        "Invalid pattern. Not expecting a view action before a controller has been set! Found: " + tokens[idx]);
-                        }
-                        break;
-                    }
-                }
-                else
-                {
-                    if (LOGGER.isLoggable(Level.FINE))
-                    {
-                        LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME,
-                                    "Not a recognized uri pattern. Returning null: " + uri);
-                    }
-                    break;
-                }
+            // A controller that is followed by an unknown pattern is not an action of its own.
+            if (size > 0 && route.getType(size - 1) == URIRouteTrie.SegmentType.CONTROLLER)
+            {
+                size--;
             }
         }
-        else
+
+        URIAction uriAction = null;
+        for (int i = 0; i < size; i++)
         {
-            if (LOGGER.isLoggable(Level.FINE))
+            String value = route.getValue(i);
+            switch (route.getType(i))
             {
-                LOGGER.logp(Level.FINE, CLASS_NAME, METHOD_NAME, "URI prefix not recognized: " + tokens[0]);
+                case CONTROLLER:
+                    // The default action type is view.
+                    uriAction = uriAction == null ? new AppControllerAction(context.getRootContext(), value) :
+                                new AppControllerAction(value, uriAction);
+                    uriAction.setActionType(ActionType.VIEW);
+                    break;
+                case ID:
+                    uriAction.setId(value);
+                    break;
+                case ACTION:
+                    uriAction.setActionType(ActionType.lookup(value));
+                    break;
             }
         }
 
@@ -241,7 +151,7 @@ public class AppControllerResolver implements URIResolutionProvider
         }
 
         String context = action.getContext();
-        Object obj = FacesUtils.resolveObject("#{" + context + "}");
+        Object obj = FacesUtils.resolveNamedObject(context);
         if (obj != null)
         {
             if (obj instanceof AppObjectControllerCollection)
@@ -60,19 +60,19 @@ public class CatalogResolver implements URIResolutionProvider
             // For case 1, we don't have to do anything as of now.
             if (uri != null && !uri.isEmpty())
             {
-                String[] tokens = uri.split("/");
-                int idx = 0;
-                if (uri.startsWith("/"))
+                // Walk the segments in place, rather than splitting the uri.
+                int idx = uri.startsWith("/") ? 1 : 0;
+                while (idx < uri.length())
                 {
-                    // ignore the first token
-                    idx++;
-                }
+                    int next = uri.indexOf('/', idx);
+                    if (next == -1)
+                    {
+                        next = uri.length();
+                    }
 
-                if (idx < tokens.length)
-                {
-                    while (idx < tokens.length)
+                    if (next > idx)
                     {
-                        String category = tokens[idx++];
+                        String category = uri.substring(idx, next);
                         if (action == null)
                         {
                             action = new CatalogAction(context.getRootContext(), ROOT_CATEGORY);
@@ -85,6 +85,7 @@ public class CatalogResolver implements URIResolutionProvider
                         action.setId(category);
                         action.setViewId(VIEW_ID);
                     }
+                    idx = next + 1;
                 }
 
                 if (action != null)
@@ -105,7 +106,7 @@ public class CatalogResolver implements URIResolutionProvider
             return null;
         }
 
-        Object obj = FacesUtils.resolveObject("#{" + action.getContext() + "}");
+        Object obj = FacesUtils.resolveNamedObject(action.getContext());
 
         if (obj instanceof Catalog)
         {
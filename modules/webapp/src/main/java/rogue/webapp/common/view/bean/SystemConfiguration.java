@@ -16,10 +16,10 @@
 
 package rogue.webapp.common.view.bean;
 
-import com.google.appengine.api.datastore.Blob;
 import org.apache.commons.lang.StringUtils;
 import org.primefaces.event.FileUploadEvent;
 import org.primefaces.model.UploadedFile;
+import rogue.app.framework.AppRuntimeException;
 import rogue.app.framework.model.BinaryResource;
 import rogue.app.framework.model.attr.Attribute;
 import rogue.app.framework.model.attr.Attributes;
@@ -34,6 +34,8 @@ import javax.faces.component.UIInput;
 import javax.faces.validator.ValidatorException;
 import javax.faces.view.ViewScoped;
 import javax.inject.Named;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.List;
@@ -117,7 +119,14 @@ public class SystemConfiguration implements Serializable
         resource.setDescription(file.getFileName());
 
         // set the content.
-        resource.setBlob(new Blob(file.getContents()));
+        try (InputStream in = file.getInputstream())
+        {
+            resource.setContent(in);
+        }
+        catch (IOException e)
+        {
+            throw new AppRuntimeException("Unable to store the uploaded file: " + file.getFileName(), e);
+        }
     }
 
     public void invokeSaveCommand()